@@ -4,6 +4,7 @@
 #define PREFIX(x) Java_com_example_VMWrapper_##x
 
 std::vector<VM> vms;
+std::vector<std::vector<Value>> constants; // constant pools of the vms (see setConstant)
 
 Value disassemble(int prog, Value val);
 
@@ -40,6 +41,42 @@ JNIEXPORT void JNICALL PREFIX(runDouble) (JNIEnv *env, jclass, jint vm, jint opc
     }
 }
 
+void setConstant(int vm, int index, Value value) {
+    if (constants.size() <= vm) constants.resize(vm + 1);
+    if (constants[vm].size() <= index) constants[vm].resize(index + 1);
+    constants[vm][index] = value;
+}
+
+JNIEXPORT void JNICALL PREFIX(setConstant) (JNIEnv *env, jclass, jint vm, jint index, jint type, jstring data) {
+    switch ((int) type) {
+    case (int) Types::Null:
+        setConstant(vm, index, Value());
+        break;
+    case (int) Types::False:
+        setConstant(vm, index, Types::False);
+        break;
+    case (int) Types::True:
+        setConstant(vm, index, Types::True);
+        break;
+    case (int) Types::BigNumber:
+        setConstant(vm, index, NUMBER_FROM_STRING(env->GetStringUTFChars(data, new jboolean(1))));
+        break;
+    case (int) Types::Text:
+        setConstant(vm, index, env->GetStringUTFChars(data, new jboolean(1)));
+        break;
+    }
+}
+
+JNIEXPORT void JNICALL PREFIX(setConstantDouble) (JNIEnv *env, jclass, jint vm, jint index, jint type, jdouble data) {
+    Value value = data;
+    if ((int) type == (int) Types::SmallNumber) value.setType(Types::SmallNumber);
+    setConstant(vm, index, value);
+}
+
+JNIEXPORT void JNICALL PREFIX(runConstant) (JNIEnv *env, jclass, jint vm, jint opcode, jint index) {
+    vms[vm].run1(opcode, constants[vm][index]);
+}
+
 JNIEXPORT jstring JNICALL PREFIX(disassemble) (JNIEnv *env, jclass, jint opcode, jint type, jstring data) {
     switch ((int) type) {
     case (int) Types::Null:
@@ -0,0 +1,246 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Growable buffer of the code made by VMByteCodeGenerator.
+ *
+ * The opcodes are appended to a byte array, and every opcode has at most one operand: an int or the index of a
+ * constant (the names, numbers, texts, ... are kept once in the constant pool). toArray makes the Object[] used by
+ * VMWrapper.run (an opcode followed by its operand).
+ *
+ * The operands of the jumps (SKIP, SKIPIF, ...) are set with labels: a jump to a label that is not placed yet is
+ * resolved when placeLabel is called, so the code is never scanned for the jumps.
+ */
+public class ByteCodeBuffer {
+    // kinds of the operands
+    public static final byte NONE = 0, INT = 1, CONSTANT = 2;
+
+    private byte[] opcodes = new byte[64];
+    private byte[] kinds = new byte[64];
+    private int[] operands = new int[64];
+    private int size = 0;
+    private int length = 0; // number of the opcodes and the operands
+    private final ArrayList<Object> constants = new ArrayList<>();
+    private final HashMap<Object, Integer> constantIndexes = new HashMap<>();
+    // labels: position (or -1 if the label is not placed), unit (see newLabel) and the last jump waiting for the label
+    private int[] labelPositions = new int[16];
+    private boolean[] labelItems = new boolean[16];
+    private int[] labelJumps = new int[16];
+    private int labels = 0;
+    // jumps waiting for their labels: opcode index, position after the jump and the previous jump to the same label
+    private int[] jumpIndexes = new int[16];
+    private int[] jumpEnds = new int[16];
+    private int[] jumpNext = new int[16];
+    private int jumps = 0;
+
+    private void grow() {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            kinds = Arrays.copyOf(kinds, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+        }
+    }
+
+    public void emit(byte opcode) {
+        grow();
+        opcodes[size] = opcode;
+        kinds[size++] = NONE;
+        length++;
+    }
+
+    public void emit(byte opcode, int operand) {
+        grow();
+        opcodes[size] = opcode;
+        kinds[size] = INT;
+        operands[size++] = operand;
+        length += 2;
+    }
+
+    /**
+     * appends opcode with operand (Integers are kept as ints, the other operands in the constant pool)
+     */
+    public void emit(byte opcode, Object operand) {
+        if (operand instanceof Integer) {
+            emit(opcode, (int) operand);
+            return;
+        }
+        grow();
+        opcodes[size] = opcode;
+        kinds[size] = CONSTANT;
+        operands[size++] = constant(operand);
+        length += 2;
+    }
+
+    /**
+     * appends opcode with the constant at index (of the constant pool) as its operand
+     */
+    void emitConstant(byte opcode, int index) {
+        grow();
+        opcodes[size] = opcode;
+        kinds[size] = CONSTANT;
+        operands[size++] = index;
+        length += 2;
+    }
+
+    /**
+     * makes a label, the distances of the jumps to it are counted in opcodes and operands if items is true (like in the
+     * recorded blocks of the VM), otherwise in opcodes
+     */
+    public int newLabel(boolean items) {
+        if (labels == labelPositions.length) {
+            labelPositions = Arrays.copyOf(labelPositions, labels * 2);
+            labelItems = Arrays.copyOf(labelItems, labels * 2);
+            labelJumps = Arrays.copyOf(labelJumps, labels * 2);
+        }
+        labelPositions[labels] = -1;
+        labelItems[labels] = items;
+        labelJumps[labels] = -1;
+        return labels++;
+    }
+
+    private int position(boolean items) {
+        return items ? length : size;
+    }
+
+    /**
+     * places label at the end of the buffer and sets the operands of the jumps to it
+     */
+    public void placeLabel(int label) {
+        if (labelPositions[label] != -1) throw new IllegalStateException("label " + label + " is already placed");
+        labelPositions[label] = position(labelItems[label]);
+        for (int jump = labelJumps[label]; jump != -1; jump = jumpNext[jump]) {
+            operands[jumpIndexes[jump]] = labelPositions[label] - jumpEnds[jump];
+        }
+        labelJumps[label] = -1;
+    }
+
+    /**
+     * appends opcode with the distance from the end of the jump to label as its operand
+     */
+    public void emitJump(byte opcode, int label) {
+        emit(opcode, 0);
+        int end = position(labelItems[label]);
+        if (labelPositions[label] != -1) {
+            operands[size - 1] = labelPositions[label] - end;
+            return;
+        }
+        if (jumps == jumpIndexes.length) {
+            jumpIndexes = Arrays.copyOf(jumpIndexes, jumps * 2);
+            jumpEnds = Arrays.copyOf(jumpEnds, jumps * 2);
+            jumpNext = Arrays.copyOf(jumpNext, jumps * 2);
+        }
+        jumpIndexes[jumps] = size - 1;
+        jumpEnds[jumps] = end;
+        jumpNext[jumps] = labelJumps[label];
+        labelJumps[label] = jumps++;
+    }
+
+    /**
+     * appends code in the format of toArray
+     */
+    public void append(Object[] code) {
+        for (Object item : code) {
+            if (item instanceof Byte) {
+                emit((byte) item);
+            } else {
+                if (size == 0 || kinds[size - 1] != NONE) {
+                    throw new IllegalArgumentException("an operand without an opcode: " + item);
+                }
+                size--;
+                length--;
+                emit(opcodes[size], item);
+            }
+        }
+    }
+
+    /**
+     * index of value in the constant pool (it is added the first time)
+     */
+    public int constant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    public Object getConstant(int index) {
+        return constants.get(index);
+    }
+
+    public int getConstantCount() {
+        return constants.size();
+    }
+
+    /**
+     * number of the opcodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * number of the opcodes and the operands (the length of toArray)
+     */
+    public int length() {
+        return length;
+    }
+
+    public byte getOpcode(int index) {
+        return opcodes[index];
+    }
+
+    public void setOpcode(int index, byte opcode) {
+        opcodes[index] = opcode;
+    }
+
+    /**
+     * kind of the operand of the opcode at index (NONE, INT or CONSTANT)
+     */
+    public byte getOperandKind(int index) {
+        return kinds[index];
+    }
+
+    public Object getOperand(int index) {
+        switch (kinds[index]) {
+            case INT:
+                return operands[index];
+            case CONSTANT:
+                return constants.get(operands[index]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * index in the constant pool of the operand of the opcode at index (the operand must be a CONSTANT)
+     */
+    public int getConstantIndex(int index) {
+        if (kinds[index] != CONSTANT) throw new IllegalArgumentException("opcode " + index + " has no constant");
+        return operands[index];
+    }
+
+    /**
+     * sets the operand of the opcode at index to an int (the number of the operands must not change)
+     */
+    public void setOperand(int index, int operand) {
+        if (kinds[index] == NONE) throw new IllegalArgumentException("opcode " + index + " has no operand");
+        kinds[index] = INT;
+        operands[index] = operand;
+    }
+
+    public Object[] toArray() {
+        Object[] code = new Object[length];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            code[j++] = opcodes[i];
+            if (kinds[i] != NONE) code[j++] = getOperand(i);
+        }
+        return code;
+    }
+}
@@ -0,0 +1,272 @@
+package com.example;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Precompiled code of VMByteCodeGenerator (.vmc files, see Main -o and run).
+ *
+ * The file starts with a header (MAGIC, VERSION, the SHA-256 of the source and the path of the source file relative
+ * to the .vmc file, or an empty text), then the constant pool (a tag and the data of every constant) and the
+ * instructions. Every instruction is a varint of the opcode and the kind of its operand (opcode * 4 + kind) followed by
+ * the operand: a zigzag varint for ints and a varint index for constants. The files are read with a memory map,
+ * without the lexer and the parser.
+ */
+public class ByteCodeFile {
+    private static final byte[] MAGIC = { 'V', 'M', 'C', 0 };
+    public static final int VERSION = 2;
+    private static final int HASH_SIZE = 32;
+    // tags of the constants
+    private static final byte NULL = 0, TRUE = 1, FALSE = 2, DOUBLE = 3, NUMBER = 4, TEXT = 5;
+
+    private final int version;
+    private final byte[] sourceHash;
+    private final String sourcePath;
+    private final ByteCodeBuffer code;
+
+    private ByteCodeFile(int version, byte[] sourceHash, String sourcePath, ByteCodeBuffer code) {
+        this.version = version;
+        this.sourceHash = sourceHash;
+        this.sourcePath = sourcePath;
+        this.code = code;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public byte[] getSourceHash() {
+        return sourceHash.clone();
+    }
+
+    public ByteCodeBuffer getCode() {
+        return code;
+    }
+
+    /**
+     * path of the source file (relative to the .vmc file) or null if it was not written
+     */
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    /**
+     * the source file of this file read from file (or null if its path was not written)
+     */
+    public Path getSourceFile(Path file) {
+        if (sourcePath == null) return null;
+        Path directory = file.toAbsolutePath().getParent();
+        return directory == null ? Paths.get(sourcePath) : directory.resolve(sourcePath);
+    }
+
+    /**
+     * checks if the file was made from source
+     */
+    public boolean isMadeFrom(CharSequence source) {
+        return Arrays.equals(sourceHash, hash(source));
+    }
+
+    public static byte[] hash(CharSequence source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // (every Java platform has SHA-256)
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("invalid varint");
+    }
+
+    private static void writeText(OutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(ByteBuffer in) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining()) throw new IOException("invalid text length: " + length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * writes code (made from source) to out
+     */
+    public static void write(ByteCodeBuffer code, CharSequence source, OutputStream out) throws IOException {
+        write(code, source, null, out);
+    }
+
+    /**
+     * writes code (made from source, which is read from the file at sourcePath relative to the .vmc file) to out
+     */
+    public static void write(ByteCodeBuffer code, CharSequence source, String sourcePath, OutputStream out)
+            throws IOException {
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        out.write(hash(source));
+        writeText(out, sourcePath == null ? "" : sourcePath);
+        writeVarint(out, code.getConstantCount());
+        for (int i = 0; i < code.getConstantCount(); i++) {
+            Object constant = code.getConstant(i);
+            if (constant == null) {
+                out.write(NULL);
+            } else if (constant instanceof Boolean) {
+                out.write((Boolean) constant ? TRUE : FALSE);
+            } else if (constant instanceof Double) {
+                out.write(DOUBLE);
+                long bits = Double.doubleToLongBits((Double) constant);
+                for (int j = 56; j >= 0; j -= 8) out.write((int) (bits >>> j));
+            } else if (constant instanceof BigDecimal) {
+                out.write(NUMBER);
+                writeText(out, constant.toString());
+            } else if (constant instanceof String) {
+                out.write(TEXT);
+                writeText(out, (String) constant);
+            } else {
+                throw new IllegalArgumentException("constant can't be written: " + constant);
+            }
+        }
+        writeVarint(out, code.size());
+        for (int i = 0; i < code.size(); i++) {
+            byte kind = code.getOperandKind(i);
+            writeVarint(out, code.getOpcode(i) * 4 + kind);
+            if (kind == ByteCodeBuffer.INT) {
+                int operand = (int) code.getOperand(i);
+                writeVarint(out, (operand << 1) ^ (operand >> 31));
+            } else if (kind == ByteCodeBuffer.CONSTANT) {
+                writeVarint(out, code.getConstantIndex(i));
+            }
+        }
+    }
+
+    public static void write(ByteCodeBuffer code, CharSequence source, File file) throws IOException {
+        write(code, source, null, file);
+    }
+
+    /**
+     * writes code (made from source, which is read from sourceFile) to file
+     */
+    public static void write(ByteCodeBuffer code, CharSequence source, File sourceFile, File file)
+            throws IOException {
+        String sourcePath = null;
+        if (sourceFile != null) {
+            Path directory = file.getAbsoluteFile().toPath().getParent();
+            Path path = sourceFile.getAbsoluteFile().toPath();
+            sourcePath = (directory == null ? path : directory.relativize(path)).toString();
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            write(code, source, sourcePath, out);
+        }
+    }
+
+    public static ByteCodeFile read(ByteBuffer in) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a .vmc file");
+            int version = readVarint(in);
+            if (version != VERSION) throw new IOException("unsupported .vmc version: " + version);
+            byte[] sourceHash = new byte[HASH_SIZE];
+            in.get(sourceHash);
+            String sourcePath = readText(in);
+            ByteCodeBuffer code = new ByteCodeBuffer();
+            int constants = readVarint(in);
+            if (constants < 0) throw new IOException("invalid constant count: " + constants);
+            for (int i = 0; i < constants; i++) {
+                byte tag = in.get();
+                switch (tag) {
+                    case NULL:
+                        code.constant(null);
+                        break;
+                    case TRUE:
+                    case FALSE:
+                        code.constant(tag == TRUE);
+                        break;
+                    case DOUBLE:
+                        code.constant(in.getDouble());
+                        break;
+                    case NUMBER:
+                        code.constant(new BigDecimal(readText(in)));
+                        break;
+                    case TEXT:
+                        code.constant(readText(in));
+                        break;
+                    default:
+                        throw new IOException("invalid constant tag: " + tag);
+                }
+            }
+            int size = readVarint(in);
+            if (size < 0) throw new IOException("invalid instruction count: " + size);
+            for (int i = 0; i < size; i++) {
+                int instruction = readVarint(in);
+                byte opcode = (byte) (instruction >>> 2);
+                switch (instruction & 3) {
+                    case ByteCodeBuffer.NONE:
+                        code.emit(opcode);
+                        break;
+                    case ByteCodeBuffer.INT:
+                        int operand = readVarint(in);
+                        code.emit(opcode, (operand >>> 1) ^ -(operand & 1));
+                        break;
+                    case ByteCodeBuffer.CONSTANT:
+                        int index = readVarint(in);
+                        if (index < 0 || index >= constants) throw new IOException("invalid constant index: " + index);
+                        code.emitConstant(opcode, index);
+                        break;
+                    default:
+                        throw new IOException("invalid operand kind");
+                }
+            }
+            return new ByteCodeFile(version, sourceHash, sourcePath.isEmpty() ? null : sourcePath, code);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("truncated .vmc file", e);
+        }
+    }
+
+    /**
+     * reads a .vmc file (mapped to memory)
+     */
+    public static ByteCodeFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * checks if the file starts like a .vmc file
+     */
+    public static boolean isByteCodeFile(Path path) {
+        try (InputStream in = new FileInputStream(path.toFile())) {
+            byte[] magic = new byte[MAGIC.length];
+            return in.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -5,9 +5,13 @@ package com.example;
  */
 public class Compiler {
 
-    private String code;
+    private CharSequence code;
+    private boolean prattParser = false;
+    private boolean lazyFunctions = false;
+    private boolean debugInfo = true;
+    private boolean interning = true;
 
-    public Compiler(String code) {
+    public Compiler(CharSequence code) {
         this.code = code;
         Errors.clear();
     }
@@ -16,18 +20,83 @@ public class Compiler {
         Errors.clear();
     }
 
-    public String getCode() {
+    public CharSequence getCode() {
         return code;
     }
 
-    public void setCode(String code) {
+    public void setCode(CharSequence code) {
         this.code = code;
     }
 
-    public String getInputCode() {
+    public CharSequence getInputCode() {
         return code;
     }
 
+    /**
+     * parse the tokens with PrattParser instead of the rules of parse (the rules are still used for the inputs
+     * PrattParser can't parse)
+     */
+    public void setPrattParser(boolean prattParser) {
+        this.prattParser = prattParser;
+    }
+
+    public boolean isPrattParser() {
+        return prattParser;
+    }
+
+    /**
+     * parse the bodies of the top level functions only if they are called by the program (see LazyFunctions), the
+     * functions that are never called are left out of the program
+     */
+    public void setLazyFunctions(boolean lazyFunctions) {
+        this.lazyFunctions = lazyFunctions;
+    }
+
+    public boolean isLazyFunctions() {
+        return lazyFunctions;
+    }
+
+    /**
+     * keep the line numbers of the blocks (for the error messages of the tools), without them the line numbers are not
+     * set at all
+     */
+    public void setDebugInfo(boolean debugInfo) {
+        this.debugInfo = debugInfo;
+    }
+
+    public boolean isDebugInfo() {
+        return debugInfo;
+    }
+
+    /**
+     * share the literals and the operations of literals in the program (see Parser.setInterning), the shared blocks
+     * make the same code with less memory
+     */
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    public boolean isInterning() {
+        return interning;
+    }
+
+    private static class DefaultLexerSpec {
+        private static final LexerSpec spec;
+
+        static {
+            Lexer lexer = new Lexer();
+            initLexer(lexer);
+            spec = lexer.getSpec();
+        }
+    }
+
+    /**
+     * returns the (precompiled) rules of initLexer, shared between all lexers
+     */
+    public static LexerSpec getLexerSpec() {
+        return DefaultLexerSpec.spec;
+    }
+
     public static void initLexer(Lexer lexer) {
         lexer.add("NEWLINE", new NewlineToken());
         // Text
@@ -108,7 +177,8 @@ public class Compiler {
         tokens.replace("BREAK", "program", SyntaxTreeBinder::breakStatement);
         tokens.replace("PRINT expression", "program", SyntaxTreeBinder::print);
         tokens.replace("RETURN( expression)?", "program", SyntaxTreeBinder::returnStatement, ((parser, index) -> {
-            if (index == 0) return true;
+            // (a chunk of ParallelParser can end after the expression)
+            if (index == 0 || index + 2 >= parser.getTokens().size()) return true;
             String tmp = parser.getTokens().get(index + 2).getName();
             return !(tmp.startsWith("OP") || tmp.equals("EXPONENTIATION") || tmp.equals("COMP"));
         }));
@@ -1,7 +1,6 @@
 package com.example;
 
 import java.util.ArrayList;
-import java.util.Objects;
 
 public class CompilerMain {
 	private static final SyntaxTree.Blocks empty = new SyntaxTree.Blocks();
@@ -9,20 +8,47 @@ public class CompilerMain {
 	public static SyntaxTree.Block compile(Compiler compiler) {
 		Parser parser = lex(compiler);
 		if (parser == null) return empty;
-		String pMap = null;
-		// Until the program is fully compiled and the parser rules are not effective anymore
-		while (!Objects.equals(pMap, parser.getMap())) {
-			pMap = parser.getMap();
-			compiler.parse(parser);
+		if (compiler.isLazyFunctions()) {
+			LazyFunctions.skipBodies(compiler, parser);
+			return LazyFunctions.link(new ParallelParser(compiler).parse(parser));
+		}
+		// (the top level statements of big inputs are parsed in parallel)
+		return new ParallelParser(compiler).parse(parser);
+	}
+
+	/**
+	 * parses the tokens of parser with PrattParser (if the compiler uses it) or with the rules
+	 */
+	static SyntaxTree.Block parseProgram(Compiler compiler, Parser parser) {
+		if (compiler.isPrattParser()) {
+			SyntaxTree.Block program = new PrattParser(parser).parse();
+			if (program != null) return program;
 		}
+		parse(compiler, parser);
 		return compiler.afterParse(parser);
 	}
 
+	/**
+	 * runs the rules until they don't change the tokens anymore (after the first pass a rule only looks at the tokens
+	 * changed since its last run, see Parser.startPass)
+	 */
+	public static void parse(Compiler compiler, Parser parser) {
+		int changes;
+		// Until the program is fully compiled and the parser rules are not effective anymore
+		do {
+			changes = parser.getChanges();
+			parser.startPass();
+			compiler.parse(parser);
+		} while (parser.getChanges() != changes);
+	}
+
 	public static Parser lex(Compiler compiler) {
-		Lexer lexer = new Lexer();
-		Compiler.initLexer(lexer);
-		ArrayList<Token> result = lexer.lex(compiler.getInputCode());
+		// (small inputs are lexed sequentially)
+		ParallelLexer lexer = new ParallelLexer(Compiler.getLexerSpec());
+		ArrayList<Token> result = lexer.scan(compiler.getInputCode()).toTokens();
 		Parser parser = new Parser(result);
+		parser.setDebugInfo(compiler.isDebugInfo());
+		parser.setInterning(compiler.isInterning());
 		parser.purge("IGNORE");
 		if (compiler.afterLex(parser)) return parser;
 		return null;
@@ -0,0 +1,144 @@
+package com.example;
+
+import java.math.BigDecimal;
+
+/**
+ * Folds the operators of literals (e.g. 60 * 60 * 24 or "a" + "b") and the conditions of if and while.
+ *
+ * The folded value of an operator is kept in its "folded" extra data and the value of a constant condition (a Boolean)
+ * in the "constant" extra data of the if or the while, the generator uses them instead of the code of the tree (like
+ * "inplace" of OptimizerTool). The numbers are folded only when the result is exact in BigDecimal (like the numbers of
+ * the VM), the operators that may fail or depend on the VM (a division with an infinite result, a negative modulo,
+ * texts and numbers together, ...) are left for the VM.
+ */
+public class ConstantFoldingTool extends Tool {
+    private static final int MAX_POW = 1000;
+    private int folded = 0;
+    private int pruned = 0;
+
+    /**
+     * number of the folded operators
+     */
+    public int getFolded() {
+        return folded;
+    }
+
+    /**
+     * number of the ifs and whiles with constant conditions
+     */
+    public int getPruned() {
+        return pruned;
+    }
+
+    /**
+     * the literal of value (or its folded value) or null if it is not constant
+     */
+    public static SyntaxTree.Value constantOf(SyntaxTree.Value value) {
+        if (value instanceof SyntaxTree.Operator) return (SyntaxTree.Value) value.getExtraData("folded");
+        if (value instanceof SyntaxTree.Number || value instanceof SyntaxTree.Text ||
+                value instanceof SyntaxTree.Boolean || value instanceof SyntaxTree.Null) return value;
+        return null;
+    }
+
+    private static BigDecimal number(SyntaxTree.Value value) {
+        if (!(value instanceof SyntaxTree.Number)) return null;
+        Object data = value.getData();
+        return data instanceof BigDecimal ? (BigDecimal) data : new BigDecimal(data.toString());
+    }
+
+    private static SyntaxTree.Value fold(SyntaxTree.Operator operator, SyntaxTree.Value value1,
+                                         SyntaxTree.Value value2) {
+        BigDecimal number1 = number(value1), number2 = number(value2);
+        if (number1 != null && number2 != null) {
+            BigDecimal result = foldNumbers(operator, number1, number2);
+            if (result != null) return new SyntaxTree.Number(result);
+            java.lang.Boolean comparison = compareNumbers(operator, number1.compareTo(number2));
+            return comparison == null ? null : new SyntaxTree.Boolean(comparison);
+        }
+        if (value1 instanceof SyntaxTree.Text && value2 instanceof SyntaxTree.Text) {
+            if (operator instanceof SyntaxTree.Add) {
+                return new SyntaxTree.Text(value1.getData() + "" + value2.getData());
+            }
+        } else if (value1 instanceof SyntaxTree.Boolean && value2 instanceof SyntaxTree.Boolean) {
+            boolean bool1 = (boolean) value1.getData(), bool2 = (boolean) value2.getData();
+            if (operator instanceof SyntaxTree.And) return new SyntaxTree.Boolean(bool1 && bool2);
+            if (operator instanceof SyntaxTree.Or) return new SyntaxTree.Boolean(bool1 || bool2);
+        } else if (!(value1 instanceof SyntaxTree.Null && value2 instanceof SyntaxTree.Null)) {
+            return null; // (the VM compares the values of different types)
+        }
+        if (operator instanceof SyntaxTree.Equals) return new SyntaxTree.Boolean(value1.equals(value2));
+        if (operator instanceof SyntaxTree.NotEquals) return new SyntaxTree.Boolean(!value1.equals(value2));
+        return null;
+    }
+
+    private static BigDecimal foldNumbers(SyntaxTree.Operator operator, BigDecimal number1, BigDecimal number2) {
+        if (operator instanceof SyntaxTree.Add) return number1.add(number2);
+        if (operator instanceof SyntaxTree.Sub) return number1.subtract(number2);
+        if (operator instanceof SyntaxTree.Mul) return number1.multiply(number2);
+        try {
+            if (operator instanceof SyntaxTree.Div && number2.signum() != 0) {
+                return number1.divide(number2); // (throws if the result can't be exact)
+            }
+            if (operator instanceof SyntaxTree.Mod && number1.signum() >= 0 && number2.signum() > 0) {
+                return number1.remainder(number2);
+            }
+            if (operator instanceof SyntaxTree.Pow && number2.signum() >= 0 &&
+                    number2.compareTo(BigDecimal.valueOf(MAX_POW)) <= 0) {
+                return number1.pow(number2.intValueExact());
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static java.lang.Boolean compareNumbers(SyntaxTree.Operator operator, int comparison) {
+        if (operator instanceof SyntaxTree.Equals) return comparison == 0;
+        if (operator instanceof SyntaxTree.NotEquals) return comparison != 0;
+        if (operator instanceof SyntaxTree.GreaterThan) return comparison > 0;
+        if (operator instanceof SyntaxTree.LesserThan) return comparison < 0;
+        if (operator instanceof SyntaxTree.GreaterThanOrEqual) return comparison >= 0;
+        if (operator instanceof SyntaxTree.LesserThanOrEqual) return comparison <= 0;
+        return null;
+    }
+
+    @Override
+    public void processBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
+
+    }
+
+    @Override
+    public void processValue(SyntaxTree.Value value, SyntaxTree.Block parent) {
+
+    }
+
+    @Override
+    public void finalizeBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
+        SyntaxTree.Value condition;
+        if (block instanceof SyntaxTree.If) condition = constantOf(((SyntaxTree.If) block).getCondition());
+        else if (block instanceof SyntaxTree.While) condition = constantOf(((SyntaxTree.While) block).getCondition());
+        else return;
+        if (condition instanceof SyntaxTree.Boolean) {
+            block.setExtraData("constant", condition.getData());
+            pruned++;
+        }
+    }
+
+    @Override
+    public void finalizeValue(SyntaxTree.Value value, SyntaxTree.Block block) {
+        // (the operands are finalized before the operator)
+        if (!(value instanceof SyntaxTree.Operator)) return;
+        if (value.getExtraData("folded") != null) { // (an interned operator used again)
+            folded++;
+            return;
+        }
+        SyntaxTree.Operator operator = (SyntaxTree.Operator) value;
+        SyntaxTree.Value value1 = constantOf(operator.getValue1()), value2 = constantOf(operator.getValue2());
+        if (value1 == null || value2 == null) return;
+        SyntaxTree.Value result = fold(operator, value1, value2);
+        if (result != null) {
+            value.setExtraData("folded", result);
+            folded++;
+        }
+    }
+}
@@ -8,4 +8,30 @@ public class CustomToken {
 	public String getText(String data) {
 		return "";
 	}
-}
\ No newline at end of file
+
+	/**
+	 * returns the length of the token starting at offset (or -1 if there is no token there)
+	 *
+	 * checkers that are shared between threads (see LexerSpec) should override this method without keeping any state
+	 */
+	public int match(CharSequence data, int offset) {
+		String input = data.subSequence(offset, data.length()).toString();
+		if (!check(input)) return -1;
+		return getText(input).length();
+	}
+
+	/**
+	 * used to build the lexer's dispatch table (tokens that can never start with c are not checked at all)
+	 */
+	public boolean canStartWith(char c) {
+		return true;
+	}
+
+	/**
+	 * called by the lexer when none of the rules matched at offset, returns true if a (more specific) error
+	 * was reported instead of a syntax error
+	 */
+	public boolean reportError(CharSequence data, int offset, int line) {
+		return false;
+	}
+}
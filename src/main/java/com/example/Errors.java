@@ -1,7 +1,11 @@
 package com.example;
 
+import java.util.ArrayList;
+
 public class Errors {
-    private static boolean thereWasAnError = false;
+    private static volatile boolean thereWasAnError = false;
+    // errors of the current thread are kept here instead of being printed (see collect)
+    private static final ThreadLocal<ArrayList<String[]>> collected = new ThreadLocal<>();
 
     public static boolean wasThereAnError() {
         return thereWasAnError;
@@ -11,34 +15,63 @@ public class Errors {
         thereWasAnError = false;
     }
 
-    public static void accessedUndefinedVariable(String variableName, SyntaxTree.Block block) {
+    private static void error(String... msg) {
+        ArrayList<String[]> errors = collected.get();
+        if (errors != null) {
+            errors.add(msg);
+            return;
+        }
         thereWasAnError = true;
-        Utils.printError("Tried to access undefined variable ", "\"", variableName, "\"",
-                block.getExtraData("lineNumber") != null? " in line " + block.getExtraData("lineNumber") : "");
+        Utils.printError(msg);
+    }
+
+    /**
+     * runs task and returns the errors it reported (they are reported by print, e.g. to print the errors of tasks run
+     * in parallel in order)
+     */
+    static ArrayList<String[]> collect(Runnable task) {
+        ArrayList<String[]> errors = new ArrayList<>();
+        ArrayList<String[]> previous = collected.get();
+        collected.set(errors);
+        try {
+            task.run();
+        } finally {
+            collected.set(previous);
+        }
+        return errors;
+    }
+
+    static void print(ArrayList<String[]> errors) {
+        for (String[] msg : errors) error(msg);
+    }
+
+    public static void accessedUndefinedVariable(String variableName, SyntaxTree.Block block) {
+        error("Tried to access undefined variable ", "\"", variableName, "\"",
+                block.getLineNumber() != -1? " in line " + block.getLineNumber() : "");
     }
 
     public static void modifiedUndefinedVariable(String variableName, SyntaxTree.Block block) {
-        thereWasAnError = true;
-        Utils.printError("Tried to modify the value of an undefined variable ", "\"", variableName, "\"",
-                block.getExtraData("lineNumber") != null? " in line " + block.getExtraData("lineNumber") : "");
+        error("Tried to modify the value of an undefined variable ", "\"", variableName, "\"",
+                block.getLineNumber() != -1? " in line " + block.getLineNumber() : "");
     }
 
-    public static void syntaxError(int i, String line) {
+    public static void syntaxError(int i, CharSequence line) {
         thereWasAnError = true;
     }
 
+    public static void unterminatedStringLiteral(int line) {
+        error("Unterminated string literal (line: ", String.valueOf(line), ")");
+    }
+
     public static void invalidUseOfElseIfStatement(int line) {
-        thereWasAnError = true;
-        Utils.printError("Else-if statements can only be used after an if statement (line: ", String.valueOf(line), ")");
+        error("Else-if statements can only be used after an if statement (line: ", String.valueOf(line), ")");
     }
 
     public static void invalidUseOfElseStatement(int line) {
-        thereWasAnError = true;
-        Utils.printError("Else statements can only be used after an if statement (line: ", String.valueOf(line), ")");
+        error("Else statements can only be used after an if statement (line: ", String.valueOf(line), ")");
     }
 
     public static void useOfElseIfAfterElse(int line) {
-        thereWasAnError = true;
-        Utils.printError("Else-if statements can not be used after an else statement (line: ", String.valueOf(line), ")");
+        error("Else-if statements can not be used after an else statement (line: ", String.valueOf(line), ")");
     }
 }
@@ -56,6 +56,17 @@ public abstract class Generator {
     public abstract Object generateThis(SyntaxTree.This aThis);
     public abstract Object generateSuper(SyntaxTree.Super aSuper);
 
+    /**
+     * code of blocks (the code of every block joined in an Object[], a backend writing to one buffer overrides it)
+     */
+    public Object generateBlocks(SyntaxTree.Blocks blocks) {
+        ArrayList<Object> code = new ArrayList<>();
+        for (SyntaxTree.Block block : blocks.getBlocks()) {
+            code.addAll(Arrays.asList((Object[]) block.evaluate(this)));
+        }
+        return code.toArray();
+    }
+
 
     public void addTool(Tool... tool) {
         tools.addAll(Arrays.asList(tool));
@@ -65,44 +76,66 @@ public abstract class Generator {
         addTool(tools);
     }
 
-    private void runTools(SyntaxTree.Block block) {
-        if (block.getExtraData("parent") == null && block instanceof SyntaxTree.Value) {
-            block.setExtraData("unneededResult", true); // result of this block is unneeded and should be popped out from the stack
-            for (Tool tool : tools) tool.processValue((SyntaxTree.Value) block, null);
+    // (the tools are called by index, an iterator would be made for every call)
+
+    private void processBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
+        for (int i = 0; i < tools.size(); i++) tools.get(i).processBlock(block, parent);
+    }
+
+    private void finalizeBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
+        for (int i = 0; i < tools.size(); i++) tools.get(i).finalizeBlock(block, parent);
+    }
+
+    private void processValue(SyntaxTree.Value value, SyntaxTree.Block parent) {
+        for (int i = 0; i < tools.size(); i++) tools.get(i).processValue(value, parent);
+    }
+
+    private void finalizeValue(SyntaxTree.Value value, SyntaxTree.Block parent) {
+        for (int i = 0; i < tools.size(); i++) tools.get(i).finalizeValue(value, parent);
+    }
+
+    /**
+     * walks the tree of block (with getCodeBlockAt and getValueAt, so the walk doesn't allocate) and calls the tools
+     */
+    void runTools(SyntaxTree.Block block) {
+        if (block.getParentBlock() == null && block instanceof SyntaxTree.Value) {
+            block.setUnneededResult(true); // result of this block is unneeded and should be popped out from the stack
+            processValue((SyntaxTree.Value) block, null);
         }
-        if (block.getCodeBlocks() != null) {
-            for (SyntaxTree.Block block1 : block.getCodeBlocks()) {
-                block1.setExtraData("parent", block);
-                if (block1 instanceof SyntaxTree.Value) { // in case there was a value inside the list of blocks (such as function calls)
-                    block1.setExtraData("unneededResult", true); // result of this block is unneeded and should be popped out from the stack
-                    for (Tool tool : tools) tool.processValue((SyntaxTree.Value) block1, block);
-                    runTools(block1);
-                    for (Tool tool : tools) tool.finalizeValue((SyntaxTree.Value) block1, block);
-                } else {
-                    for (Tool tool : tools) tool.processBlock(block1, block);
-                    runTools(block1);
-                    for (Tool tool : tools) tool.finalizeBlock(block1, block);
-                }
+        // (the blocks added by the tools while the children are processed are not visited)
+        int count = block.getCodeBlockCount();
+        for (int i = 0; i < count; i++) {
+            SyntaxTree.Block block1 = block.getCodeBlockAt(i);
+            block1.setParentBlock(block);
+            if (block1 instanceof SyntaxTree.Value) { // in case there was a value inside the list of blocks (such as function calls)
+                block1.setUnneededResult(true); // result of this block is unneeded and should be popped out from the stack
+                processValue((SyntaxTree.Value) block1, block);
+                runTools(block1);
+                finalizeValue((SyntaxTree.Value) block1, block);
+            } else {
+                processBlock(block1, block);
+                runTools(block1);
+                finalizeBlock(block1, block);
             }
         }
-        if (block.getValues() != null) {
-            for (SyntaxTree.Value value : block.getValues()) {
-                value.setExtraData("parent", block);
-                for (Tool tool : tools) tool.processValue(value, block);
-                runTools(value);
-                for (Tool tool : tools) tool.finalizeValue(value, block);
-            }
+        count = block.getValueCount();
+        for (int i = 0; i < count; i++) {
+            SyntaxTree.Value value = block.getValueAt(i);
+            value.setParentBlock(block);
+            processValue(value, block);
+            runTools(value);
+            finalizeValue(value, block);
         }
-        if (block.getExtraData("parent") == null && block instanceof SyntaxTree.Value) {
-            for (Tool tool : tools) tool.finalizeValue((SyntaxTree.Value) block, null);
+        if (block.getParentBlock() == null && block instanceof SyntaxTree.Value) {
+            finalizeValue((SyntaxTree.Value) block, null);
         }
     }
 
     public Object generate(SyntaxTree.Block block) {
         Errors.clear();
-        for (Tool tool : tools) tool.processBlock(block, null);
+        processBlock(block, null);
         runTools(block);
-        for (Tool tool : tools) tool.finalizeBlock(block, null);
+        finalizeBlock(block, null);
         if (Errors.wasThereAnError()) {
             Errors.clear();
             return empty;
@@ -6,25 +6,27 @@ import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 
 import java.io.*;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
 public class Highlighter implements org.jline.reader.Highlighter {
     HashMap<String, String> colorConfigs = null;
+    private final Lexer lexer = new Lexer(Compiler.getLexerSpec());
+    // tokens of the last highlighted buffer (only the edited part of the buffer is lexed again)
+    private TokenStream tokens = null;
 
     @Override
     public AttributedString highlight(LineReader lineReader, String s) {
         init();
         AttributedStyle attributedStyle = new AttributedStyle();
         AttributedStringBuilder builder = new AttributedStringBuilder();
-        Lexer lexer = new Lexer();
         lexer.ignoreErrors(true);
-        Compiler.initLexer(lexer);
-        ArrayList<Token> tokens = lexer.lex(s);
-        for (Token token : tokens) {
-            if (colorConfigs.containsKey(token.getName())) {
-                String conf = colorConfigs.get(token.getName());
+        tokens = tokens == null ? lexer.scan(s) : lexer.relex(tokens, s);
+        for (int i = 0; i < tokens.size(); i++) {
+            String name = tokens.getName(i);
+            String text = tokens.getText(i);
+            if (colorConfigs.containsKey(name)) {
+                String conf = colorConfigs.get(name);
                 AttributedStyle attributedStyle1 = new AttributedStyle();
                 int bgIndex = conf.indexOf("bg=");
                 if (bgIndex != -1) {
@@ -43,18 +45,18 @@ public class Highlighter implements org.jline.reader.Highlighter {
                 if (conf.contains("underlined")) {
                     attributedStyle1 = attributedStyle1.underline();
                 }
-                builder.styled(attributedStyle1, token.getText());
+                builder.styled(attributedStyle1, text);
             } else {
-                switch (token.getName()) {
+                switch (name) {
                     case "TXT":
-                        builder.styled(attributedStyle.foreground(2), token.getText());
+                        builder.styled(attributedStyle.foreground(2), text);
                         break;
                     case "NUM":
-                        builder.styled(attributedStyle.foreground(AttributedStyle.BLUE), token.getText());
+                        builder.styled(attributedStyle.foreground(AttributedStyle.BLUE), text);
                         break;
                     case "BOOL":
                     case "NULL":
-                        builder.styled(attributedStyle.foreground(215), token.getText());
+                        builder.styled(attributedStyle.foreground(215), text);
                         break;
                     case "OP1":
                     case "OP2":
@@ -62,7 +64,7 @@ public class Highlighter implements org.jline.reader.Highlighter {
                     case "EXPONENTIATION":
                     case "COMP":
                     case "SET":
-                        builder.styled(attributedStyle.foreground(AttributedStyle.MAGENTA), token.getText());
+                        builder.styled(attributedStyle.foreground(AttributedStyle.MAGENTA), text);
                         break;
                     case "IF":
                     case "ELSE":
@@ -73,13 +75,13 @@ public class Highlighter implements org.jline.reader.Highlighter {
                     case "WHILE":
                     case "BREAK":
                     case "CONTINUE":
-                        builder.styled(attributedStyle.foreground(140), token.getText());
+                        builder.styled(attributedStyle.foreground(140), text);
                         break;
                     case "ID":
-                        builder.styled(attributedStyle.underline(), token.getText());
+                        builder.styled(attributedStyle.underline(), text);
                         break;
                     default:
-                        builder.styled(AttributedStyle.DEFAULT, token.getText());
+                        builder.styled(AttributedStyle.DEFAULT, text);
                         break;
                 }
             }
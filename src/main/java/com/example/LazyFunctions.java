@@ -0,0 +1,167 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lazy parsing of the top level functions (see Compiler.setLazyFunctions).
+ *
+ * Before the rules run, skipBodies only matches the braces of every top level function and replaces its tokens with a
+ * program token holding a LazyFunctions.Function (which keeps the tokens of the declaration). After parsing, link
+ * parses the bodies of the functions called by the top level code (and by the bodies parsed for them) and leaves the
+ * other functions out of the program, so they are never parsed or generated. The errors in the bodies of the
+ * functions that are never called are not reported.
+ */
+public class LazyFunctions {
+    private static final int FUNC = Parser.kindOf("FUNC");
+    private static final int ID = Parser.kindOf("ID");
+    private static final int COMMA = Parser.kindOf("COMMA");
+    private static final int LEFT_BRACE = Parser.kindOf("LEFT_BRACE");
+    private static final int RIGHT_BRACE = Parser.kindOf("RIGHT_BRACE");
+    private static final int LEFT_PARENTHESIS = Parser.kindOf("LEFT_PARENTHESIS");
+    private static final int RIGHT_PARENTHESIS = Parser.kindOf("RIGHT_PARENTHESIS");
+
+    /**
+     * a function with a body that is parsed the first time getCode is called
+     */
+    public static class Function extends SyntaxTree.Function {
+        private Compiler compiler;
+        private Parser declaration; // tokens of the declaration (FUNC ... RIGHT_BRACE)
+
+        Function(String functionName, String[] args, Compiler compiler, Parser declaration) {
+            super(functionName);
+            withArgs(args);
+            this.compiler = compiler;
+            this.declaration = declaration;
+        }
+
+        public boolean isParsed() {
+            return declaration == null;
+        }
+
+        @Override
+        public SyntaxTree.Blocks getCode() {
+            if (declaration != null) {
+                // (the whole declaration is parsed, so the rules see the body like in the other functions)
+                SyntaxTree.Block function = CompilerMain.parseProgram(compiler, declaration);
+                declaration = null;
+                compiler = null;
+                if (function instanceof SyntaxTree.Function) {
+                    setCode(((SyntaxTree.Function) function).getCode().getBlocks());
+                }
+            }
+            return super.getCode();
+        }
+    }
+
+    /**
+     * index of the LEFT_BRACE of the function declared at index (or -1 if the tokens are not a function declaration),
+     * the name and the arguments are added to names
+     */
+    private static int header(List<Token> tokens, int index, ArrayList<String> names) {
+        int i = index + 1;
+        if (i + 3 >= tokens.size() || tokens.get(i).getKind() != ID ||
+                tokens.get(i + 1).getKind() != LEFT_PARENTHESIS) return -1;
+        names.add(tokens.get(i).getText());
+        i += 2;
+        if (tokens.get(i).getKind() == ID) {
+            names.add(tokens.get(i++).getText());
+            while (i + 1 < tokens.size() && tokens.get(i).getKind() == COMMA && tokens.get(i + 1).getKind() == ID) {
+                names.add(tokens.get(i + 1).getText());
+                i += 2;
+            }
+        }
+        if (i + 1 >= tokens.size() || tokens.get(i).getKind() != RIGHT_PARENTHESIS ||
+                tokens.get(i + 1).getKind() != LEFT_BRACE) return -1;
+        return i + 1;
+    }
+
+    /**
+     * index of the RIGHT_BRACE matching the LEFT_BRACE at index (or -1)
+     */
+    private static int matchBrace(List<Token> tokens, int index) {
+        int depth = 0;
+        for (int i = index; i < tokens.size(); i++) {
+            int kind = tokens.get(i).getKind();
+            if (kind == LEFT_BRACE) depth++;
+            else if (kind == RIGHT_BRACE && --depth == 0) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * replaces the top level function declarations in the tokens of parser (after Compiler.afterLex) with programs
+     * made of LazyFunctions.Function
+     */
+    public static void skipBodies(Compiler compiler, Parser parser) {
+        List<Token> tokens = parser.getTokens();
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            int kind = tokens.get(i).getKind();
+            if (kind == FUNC && depth == 0) {
+                ArrayList<String> names = new ArrayList<>();
+                int start = header(tokens, i, names);
+                int end = start == -1 ? -1 : matchBrace(tokens, start);
+                if (end != -1) {
+                    Parser declaration = parser.subParser(i, end + 1);
+                    String[] args = names.subList(1, names.size()).toArray(new String[0]);
+                    parser.collapse(i, end + 1, "program",
+                            matched -> new Function(names.get(0), args, compiler, declaration));
+                    continue;
+                }
+            }
+            if (kind == LEFT_BRACE || kind == LEFT_PARENTHESIS) depth++;
+            else if ((kind == RIGHT_BRACE || kind == RIGHT_PARENTHESIS) && depth > 0) depth--;
+        }
+    }
+
+    /**
+     * collects the lazy functions and the names of the called functions of block (without parsing the lazy functions)
+     */
+    private static void visit(SyntaxTree.Block block, HashMap<String, ArrayList<Function>> functions,
+                              ArrayDeque<String> calls) {
+        if (block instanceof Function && !((Function) block).isParsed()) {
+            functions.computeIfAbsent(((Function) block).getFunctionName(), name -> new ArrayList<>())
+                    .add((Function) block);
+            return;
+        }
+        if (block instanceof SyntaxTree.CallFunction) calls.add(((SyntaxTree.CallFunction) block).getFunctionName());
+        for (int i = 0; i < block.getCodeBlockCount(); i++) visit(block.getCodeBlockAt(i), functions, calls);
+        for (int i = 0; i < block.getValueCount(); i++) visit(block.getValueAt(i), functions, calls);
+    }
+
+    /**
+     * removes the functions that are not parsed from the top level blocks of program (null if program is one of them)
+     */
+    private static SyntaxTree.Block removeUnused(SyntaxTree.Block program) {
+        if (program instanceof Function) return ((Function) program).isParsed() ? program : null;
+        if (!(program instanceof SyntaxTree.Blocks)) return program;
+        ArrayList<SyntaxTree.Block> blocks = new ArrayList<>();
+        for (SyntaxTree.Block block : ((SyntaxTree.Blocks) program).getBlocks()) {
+            block = removeUnused(block);
+            if (block != null) blocks.add(block);
+        }
+        ((SyntaxTree.Blocks) program).setBlocks(blocks.toArray(new SyntaxTree.Block[0]));
+        return program;
+    }
+
+    /**
+     * parses the bodies of the functions reachable from the top level code of program and returns the program without
+     * the other lazy functions
+     */
+    public static SyntaxTree.Block link(SyntaxTree.Block program) {
+        if (program == null) return null;
+        HashMap<String, ArrayList<Function>> functions = new HashMap<>();
+        ArrayDeque<String> calls = new ArrayDeque<>();
+        visit(program, functions, calls);
+        while (!calls.isEmpty()) {
+            ArrayList<Function> called = functions.remove(calls.poll());
+            if (called == null) continue; // (not a lazy function or already parsed)
+            for (Function function : called) visit(function.getCode(), functions, calls);
+        }
+        program = removeUnused(program);
+        return program == null ? new SyntaxTree.Blocks() : program;
+    }
+}
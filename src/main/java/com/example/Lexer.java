@@ -2,16 +2,31 @@ package com.example;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Lexer {
     private final LinkedHashMap<String, String> lexerConf = new LinkedHashMap<>();
     private final LinkedHashMap<String, CustomToken> lexerConfWithStringChecker = new LinkedHashMap<>();
+    private final boolean sharedSpec;
+    private LexerSpec spec;
+    private Matcher[] matchers;
+    private CharSequence matchedInput;
+    private int matchLength;
     private int line = 1;
     private boolean ignoreErrors = false;
 
+    public Lexer() {
+        sharedSpec = false;
+    }
+
+    /**
+     * creates a lexer using precompiled rules (see Compiler.getLexerSpec())
+     */
+    public Lexer(LexerSpec spec) {
+        this.spec = spec;
+        sharedSpec = true;
+    }
+
     public void ignoreErrors(boolean ignoreErrors) {
         this.ignoreErrors = ignoreErrors;
     }
@@ -25,61 +40,191 @@ public class Lexer {
     }
 
     public void add(String name, String regex) {
+        checkNotShared();
         lexerConf.put(name, addStrings("(", regex, ")"));
+        spec = null;
     }
 
     public void add(String name, CustomToken checker) {
+        checkNotShared();
         lexerConfWithStringChecker.put(name, checker);
+        spec = null;
+    }
+
+    private void checkNotShared() {
+        if (sharedSpec) throw new IllegalStateException("rules of a shared LexerSpec can not be changed");
     }
 
-    private String findFromText(String text, String regex) {
-        Pattern p = Pattern.compile(addStrings("^", lexerConf.get(regex)));
-        Matcher m = p.matcher(text);
-        if (m.find()) {
-            return m.group(0);
+    /**
+     * returns the compiled form of the rules added to this lexer (compiled once, until a new rule is added)
+     */
+    public LexerSpec getSpec() {
+        if (spec == null) {
+            spec = new LexerSpec(lexerConfWithStringChecker, lexerConf);
+            matchers = null;
         }
-        return "";
+        return spec;
     }
 
-    public Token getToken(String input) {
-        for (Map.Entry<String, CustomToken> conf : lexerConfWithStringChecker.entrySet()) {
-            if (conf.getValue().check(input)) {
-                String text = conf.getValue().getText(input);
-                for (char c : text.toCharArray())
-                    if (c == '\n') line++;
-                return new Token(conf.getKey(), text, line);
-            }
+    /**
+     * finds the rule matching at offset (or -1), the length of the match is stored in matchLength
+     */
+    private int match(CharSequence input, int offset) {
+        LexerSpec spec = getSpec();
+        if (matchers == null || matchedInput != input) {
+            matchers = spec.newMatchers(input);
+            matchedInput = input;
         }
-        for (Map.Entry<String, String> conf : lexerConf.entrySet()) {
-            String result = findFromText(input, conf.getKey());
-            if (!result.equals("")) {
-                for (char c : result.toCharArray())
-                    if (c == '\n') line++;
-                return new Token(conf.getKey(), result, line);
+        for (int rule : spec.candidates(input.charAt(offset))) {
+            CustomToken customToken = spec.getCustomToken(rule);
+            if (customToken != null) {
+                matchLength = customToken.match(input, offset);
+                if (matchLength == -1) continue;
+                return rule;
             }
+            Matcher matcher = matchers[rule].region(offset, input.length());
+            if (!matcher.lookingAt() || matcher.end() == offset) continue;
+            matchLength = matcher.end() - offset;
+            return rule;
+        }
+        return -1;
+    }
+
+    private void countLines(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (input.charAt(i) == '\n') line++;
+    }
+
+    public Token getToken(String input) {
+        if (input.isEmpty()) return new Token();
+        int rule = match(input, 0);
+        if (rule == -1) return new Token();
+        countLines(input, 0, matchLength);
+        return new Token(getSpec().getName(rule), input.substring(0, matchLength), line);
+    }
+
+    private boolean reportError(CharSequence input, int offset) {
+        LexerSpec spec = getSpec();
+        for (int rule : spec.candidates(input.charAt(offset))) {
+            CustomToken customToken = spec.getCustomToken(rule);
+            if (customToken != null && customToken.reportError(input, offset, line)) return true;
+        }
+        return false;
+    }
+
+    int getLine() {
+        return line;
+    }
+
+    void setLine(int line) {
+        this.line = line;
+    }
+
+    boolean isIgnoringErrors() {
+        return ignoreErrors;
+    }
+
+    /**
+     * lexes the token starting at offset and adds it to tokens, returns the offset after the token
+     * (or -1 if none of the rules matched)
+     */
+    int next(CharSequence input, int offset, TokenStream tokens) {
+        int rule = match(input, offset);
+        if (rule == -1 || matchLength == 0) return -1;
+        countLines(input, offset, offset + matchLength);
+        tokens.add(rule, offset, matchLength, line);
+        return offset + matchLength;
+    }
+
+    /**
+     * handles the input that could not be lexed (starting at offset) and returns the result of the lexer
+     */
+    TokenStream fail(CharSequence input, int offset, TokenStream tokens) {
+        if (!ignoreErrors) {
+            if (!reportError(input, offset)) Errors.syntaxError(offset, input);
+            TokenStream empty = new TokenStream(input, getSpec(), 0);
+            empty.setErrorOffset(offset);
+            return empty;
+        }
+        tokens.setErrorOffset(offset);
+        tokens.add(TokenStream.NONE, offset, input.length() - offset, line);
+        return tokens;
+    }
+
+    /**
+     * lexes the input with a cursor (nothing is copied from the input)
+     */
+    public TokenStream scan(CharSequence input) {
+        TokenStream tokens = new TokenStream(input, getSpec(), input.length() / 4);
+        int offset = 0;
+        while (offset < input.length()) {
+            int next = next(input, offset, tokens);
+            if (next == -1) return fail(input, offset, tokens);
+            offset = next;
         }
-        return new Token();
-    }
-
-    public ArrayList<Token> lex(String input) {
-        String line = input;
-        String previousInput;
-        ArrayList<Token> tokens = new ArrayList<>();
-        while (input.length() != 0) {
-            Token token = getToken(input);
-            tokens.add(token);
-            previousInput = input;
-            input = input.substring(token.getText().length());
-            if (previousInput.equals(input)) {
-                if (!ignoreErrors) {
-                    Errors.syntaxError(line.length() - input.length(), line);
-                    return new ArrayList<>();
-                } else {
-                    tokens.add(new Token("NONE", input));
+        return tokens;
+    }
+
+    /**
+     * lexes source, which is the source of previous after an edit (the characters of the edit are found by comparing
+     * the sources)
+     */
+    public TokenStream relex(TokenStream previous, CharSequence source) {
+        CharSequence oldSource = previous.getSource();
+        int length = Math.min(oldSource.length(), source.length());
+        int prefix = 0;
+        while (prefix < length && oldSource.charAt(prefix) == source.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < length - prefix && oldSource.charAt(oldSource.length() - suffix - 1) ==
+                source.charAt(source.length() - suffix - 1)) suffix++;
+        return relex(previous, source, prefix, oldSource.length() - prefix - suffix, source.length() - prefix - suffix);
+    }
+
+    /**
+     * lexes the source of previous after replacing removed characters at offset with inserted
+     */
+    public TokenStream relex(TokenStream previous, int offset, int removed, CharSequence inserted) {
+        CharSequence oldSource = previous.getSource();
+        String source = new StringBuilder(oldSource.length() - removed + inserted.length())
+                .append(oldSource, 0, offset).append(inserted)
+                .append(oldSource, offset + removed, oldSource.length()).toString();
+        return relex(previous, source, offset, removed, inserted.length());
+    }
+
+    /**
+     * lexes the tokens from the start of the line of the edit, until a token ends after the edit where a token of
+     * previous starts (the rest of the tokens are the same as before, only shifted)
+     */
+    private TokenStream relex(TokenStream previous, CharSequence source, int offset, int removed, int inserted) {
+        int delta = inserted - removed;
+        TokenStream tokens = new TokenStream(source, getSpec(), previous.size() + 16);
+        int first = 0;
+        while (first < previous.size() && previous.getEnd(first) < offset) first++;
+        // the edit may also change the tokens before it on its line (e.g. "else i" + "f " is one ELSEIF), the rules
+        // don't match over a NEWLINE (without a NEWLINE rule, all the tokens before the edit are lexed again)
+        int newline = getSpec().indexOf("NEWLINE");
+        while (first > 0 && (newline == -1 || previous.getKind(first - 1) != newline)) first--;
+        tokens.addAll(previous, 0, first, 0, 0);
+        int position = first < previous.size() ? previous.getStart(first) : 0;
+        line = first > 0 ? previous.getLine(first - 1) : 1;
+        while (position < source.length()) {
+            if (position >= offset + inserted) {
+                int i = previous.indexOf(position - delta);
+                if (i != -1 && previous.getKind(i) != TokenStream.NONE) {
+                    tokens.addAll(previous, i, previous.size(), delta, line - (i > 0 ? previous.getLine(i - 1) : 1));
+                    if (previous.hasError()) tokens.setErrorOffset(previous.getErrorOffset() + delta);
                     return tokens;
                 }
             }
+            int next = next(source, position, tokens);
+            if (next == -1) return fail(source, position, tokens);
+            position = next;
         }
         return tokens;
     }
+
+    public ArrayList<Token> lex(CharSequence input) {
+        TokenStream tokens = scan(input);
+        return tokens.toTokens();
+    }
 }
@@ -0,0 +1,102 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable, precompiled form of the rules registered with Lexer.add(...).
+ *
+ * Every rule is compiled once and a dispatch table (indexed by the first character of the remaining input) lists
+ * the rules that are able to match there, in the same priority order the Lexer always used:
+ * custom tokens first (in the order they were added), then regex rules (in the order they were added).
+ * Nothing in this class changes after construction, so one instance can be shared between threads
+ * (e.g. by the Highlighter, the Shell and CompilerMain).
+ */
+public final class LexerSpec {
+    private static final int NON_ASCII = 128;
+
+    private final String[] names;
+    private final CustomToken[] customTokens; // null for regex rules
+    private final Pattern[] patterns; // null for custom tokens
+    private final int[][] candidates = new int[NON_ASCII + 1][];
+
+    LexerSpec(Map<String, CustomToken> customTokens, Map<String, String> regexRules) {
+        int size = customTokens.size() + regexRules.size();
+        names = new String[size];
+        this.customTokens = new CustomToken[size];
+        patterns = new Pattern[size];
+        int i = 0;
+        for (Map.Entry<String, CustomToken> rule : customTokens.entrySet()) {
+            names[i] = rule.getKey();
+            this.customTokens[i++] = rule.getValue();
+        }
+        for (Map.Entry<String, String> rule : regexRules.entrySet()) {
+            names[i] = rule.getKey();
+            patterns[i++] = Pattern.compile(rule.getValue());
+        }
+        for (int c = 0; c <= NON_ASCII; c++) {
+            ArrayList<Integer> rules = new ArrayList<>();
+            for (int rule = 0; rule < size; rule++) {
+                if (c == NON_ASCII || canStartWith(rule, (char) c)) rules.add(rule);
+            }
+            candidates[c] = new int[rules.size()];
+            for (int j = 0; j < rules.size(); j++) candidates[c][j] = rules.get(j);
+        }
+    }
+
+    /**
+     * checks if the rule is able to match a (non-empty) text starting with c
+     */
+    private boolean canStartWith(int rule, char c) {
+        if (customTokens[rule] != null) return customTokens[rule].canStartWith(c);
+        Matcher matcher = patterns[rule].matcher(String.valueOf(c));
+        // if the regex engine did not need to look past c, longer inputs starting with c give the same result
+        return (matcher.lookingAt() && matcher.end() > 0) || matcher.hitEnd();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int rule) {
+        return names[rule];
+    }
+
+    /**
+     * returns the index of a rule (or -1 if there is no rule with this name)
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * rules (in priority order) that should be tried when the remaining input starts with c
+     */
+    int[] candidates(char c) {
+        return candidates[c < NON_ASCII ? c : NON_ASCII];
+    }
+
+    CustomToken getCustomToken(int rule) {
+        return customTokens[rule];
+    }
+
+    Pattern getPattern(int rule) {
+        return patterns[rule];
+    }
+
+    /**
+     * returns a matcher for every regex rule (matchers are not thread-safe, so every Lexer gets its own set)
+     */
+    Matcher[] newMatchers(CharSequence input) {
+        Matcher[] matchers = new Matcher[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i] != null) matchers[i] = patterns[i].matcher(input);
+        }
+        return matchers;
+    }
+}
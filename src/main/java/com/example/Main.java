@@ -1,8 +1,10 @@
 package com.example;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
 
 import org.apache.commons.cli.*;
 
@@ -10,18 +12,10 @@ import org.apache.commons.cli.*;
  * Main class
  */
 public class Main {
-    private static String readFile(String fileName) {
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
-
-            while (line != null) {
-                sb.append(line);
-                sb.append(System.lineSeparator());
-                line = br.readLine();
-            }
-            return sb.toString();
-        } catch (FileNotFoundException e) {
+    private static CharSequence readFile(String fileName) {
+        try {
+            return Source.map(fileName);
+        } catch (NoSuchFileException e) {
             Utils.printError(fileName, ": No such file or directory");
         } catch (IOException e) {
             e.printStackTrace();
@@ -29,6 +23,15 @@ public class Main {
         return null;
     }
 
+    /**
+     * adds the optimizations of -O to generator
+     */
+    private static void addOptimizations(VMByteCodeGenerator generator) {
+        generator.addTool(new ConstantFoldingTool());
+        generator.setPeepholeOptimizer(new PeepholeOptimizer());
+        generator.setJumpLoops(true);
+    }
+
     public static void main(String[] args) throws ParseException, IOException {
         Options options = new Options();
 
@@ -40,6 +43,18 @@ public class Main {
         help.setRequired(false);
         options.addOption(help);
 
+        Option pratt = new Option("p", "pratt", false, "parse with the precedence climbing parser");
+        pratt.setRequired(false);
+        options.addOption(pratt);
+
+        Option lazy = new Option("l", "lazy", false, "parse only the functions called by the program");
+        lazy.setRequired(false);
+        options.addOption(lazy);
+
+        Option optimize = new Option("O", "optimize", false, "optimize the generated code");
+        optimize.setRequired(false);
+        options.addOption(optimize);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = parser.parse(options, args);
@@ -50,36 +65,29 @@ public class Main {
 
         if (cmd.getArgList().size() == 0) {
             Compiler compiler = new Compiler();
+            compiler.setPrattParser(cmd.hasOption(pratt.getOpt()));
             VMWrapper vm = new VMWrapper();
             if (System.console() == null) {
                 VMByteCodeGenerator vmByteCodeGenerator = new VMByteCodeGenerator();
-                StringBuilder sb = new StringBuilder();
-                final Scanner scanner = new Scanner(System.in);
-                for (String line; true;) {
-                    try {
-                        line = scanner.nextLine();
-                    } catch (NoSuchElementException exit) {
-                        break;
-                    }
-                    sb.append(line).append("\n");
-                }
-                String code = sb.toString();
-                if (!code.trim().equals("")) {
+                if (cmd.hasOption(optimize.getOpt())) addOptimizations(vmByteCodeGenerator);
+                CharSequence code = Source.read(new InputStreamReader(System.in));
+                if (!Source.isBlank(code)) {
                     compiler.setCode(code);
                     SyntaxTree.Block program = CompilerMain.compile(compiler);
-                    Object[] bytes = (Object[]) vmByteCodeGenerator.generate(program);
-                    vm.run(bytes);
+                    ByteCodeBuffer byteCode = vmByteCodeGenerator.generateBuffer(program);
+                    if (byteCode != null) vm.run(byteCode);
                 }
             } else {
                 VMByteCodeGenerator vmByteCodeGenerator = new VMByteCodeGenerator(new Object[] { VMWrapper.CALLFUNC, false });
+                if (cmd.hasOption(optimize.getOpt())) addOptimizations(vmByteCodeGenerator);
                 while (true) {
                     try {
                         String code = Shell.readLine(vmByteCodeGenerator.getScopeTool().getGlobals());
                         if (!code.trim().equals("")) {
                             compiler.setCode(code);
                             SyntaxTree.Block program = CompilerMain.compile(compiler);
-                            Object[] bytes = (Object[]) vmByteCodeGenerator.generate(program);
-                            vm.run(bytes);
+                            ByteCodeBuffer byteCode = vmByteCodeGenerator.generateBuffer(program);
+                            if (byteCode != null) vm.run(byteCode);
                             VMWrapper.flush();
                         }
                     } catch (NoSuchElementException exit) {
@@ -94,8 +102,9 @@ public class Main {
 
         if (cmd.getArgList().size() != 1) {
             if (cmd.getArgList().get(0).equals("highlight")) {
-                System.out.println(new Highlighter()
-                        .highlight(null, readFile(cmd.getArgList().get(1))).toAnsi());
+                CharSequence fileContent = readFile(cmd.getArgList().get(1));
+                if (fileContent == null) Utils.exit(1);
+                System.out.println(new Highlighter().highlight(null, fileContent.toString()).toAnsi());
                 Utils.exit(0);
             } else if (cmd.getArgList().get(0).equals("run")) {
                 fileName = cmd.getArgList().get(1);
@@ -105,22 +114,45 @@ public class Main {
             }
         }
 
-        String fileContent = readFile(fileName);
+        if (fileName.endsWith(".vmc") && ByteCodeFile.isByteCodeFile(new File(fileName).toPath())) {
+            // (precompiled code, the lexer and the parser are not loaded if the source was not changed)
+            ByteCodeFile byteCodeFile = ByteCodeFile.read(new File(fileName).toPath());
+            Path source = byteCodeFile.getSourceFile(new File(fileName).toPath());
+            if (source == null || !Files.isRegularFile(source) ||
+                    byteCodeFile.isMadeFrom(Source.map(source.toString()))) {
+                new VMWrapper().run(byteCodeFile.getCode());
+                Utils.exit(0);
+            }
+            Utils.printError(fileName, ": the source was changed, compiling ", source.toString());
+            fileName = source.toString();
+        }
+
+        CharSequence fileContent = readFile(fileName);
 
         if (fileContent == null) {
             Utils.exit(1);
         }
 
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler(fileContent));
+        Compiler compiler = new Compiler(fileContent);
+        compiler.setPrattParser(cmd.hasOption(pratt.getOpt()));
+        compiler.setLazyFunctions(cmd.hasOption(lazy.getOpt()));
+        SyntaxTree.Block program = CompilerMain.compile(compiler);
         VMByteCodeGenerator vmByteCodeGenerator = new VMByteCodeGenerator();
-        Object[] bytes = (Object[]) vmByteCodeGenerator.generate(program);
-        if (cmd.hasOption(output.getOpt())) {
+        if (cmd.hasOption(optimize.getOpt())) addOptimizations(vmByteCodeGenerator);
+        if (cmd.hasOption(output.getOpt()) && cmd.getOptionValue(output.getOpt()).endsWith(".vmc")) {
+            ByteCodeBuffer byteCode = vmByteCodeGenerator.generateBuffer(program);
+            if (byteCode == null) Utils.exit(1);
+            File file = new File(cmd.getOptionValue(output.getOpt()));
+            ByteCodeFile.write(byteCode, fileContent, new File(fileName), file);
+        } else if (cmd.hasOption(output.getOpt())) {
+            Object[] bytes = (Object[]) vmByteCodeGenerator.generate(program);
             BufferedWriter writer = new BufferedWriter(new FileWriter(cmd.getOptionValue(output.getOpt())));
             writer.write(VMWrapper.disassemble(bytes));
             writer.close();
         } else {
+            ByteCodeBuffer byteCode = vmByteCodeGenerator.generateBuffer(program);
             VMWrapper vm = new VMWrapper();
-            vm.run(bytes);
+            if (byteCode != null) vm.run(byteCode);
         }
     }
 }
\ No newline at end of file
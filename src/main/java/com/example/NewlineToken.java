@@ -3,15 +3,26 @@ package com.example;
 public class NewlineToken extends CustomToken {
     @Override
     public boolean check(String data) {
-        return data.startsWith("\n");
+        return match(data, 0) != -1;
     }
 
     @Override
     public String getText(String data) {
-        int i = 0;
-        while ((i < data.length()) && (data.charAt(i) == '\n')) {
+        return data.substring(0, Math.max(match(data, 0), 0));
+    }
+
+    @Override
+    public int match(CharSequence data, int offset) {
+        int i = offset;
+        // "\r\n" line separators are a part of the token too
+        while ((i < data.length()) && (data.charAt(i) == '\n' || data.charAt(i) == '\r')) {
             i++;
         }
-        return data.substring(0, i);
+        return i == offset ? -1 : i - offset;
+    }
+
+    @Override
+    public boolean canStartWith(char c) {
+        return c == '\n' || c == '\r';
     }
 }
@@ -0,0 +1,153 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lexes big inputs on a ForkJoinPool.
+ *
+ * The input is split into chunks after runs of newlines and every chunk is lexed by its own Lexer. The results are
+ * stitched in order: line numbers are shifted by the lines before the chunk, and if the last token of a chunk ends
+ * after the start of the next chunk (e.g. a token containing newlines), the input is lexed sequentially from there
+ * until a token ends where a token of the next chunk starts. The result is the same as Lexer.scan (also for errors).
+ */
+public class ParallelLexer {
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private final LexerSpec spec;
+    private final ForkJoinPool pool;
+    private int chunkSize = MIN_CHUNK_SIZE;
+    private boolean ignoreErrors = false;
+
+    public ParallelLexer(LexerSpec spec, ForkJoinPool pool) {
+        this.spec = spec;
+        this.pool = pool;
+    }
+
+    public ParallelLexer(LexerSpec spec) {
+        this(spec, ForkJoinPool.commonPool());
+    }
+
+    public void ignoreErrors(boolean ignoreErrors) {
+        this.ignoreErrors = ignoreErrors;
+    }
+
+    /**
+     * minimum size of a chunk (smaller inputs are not split)
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    private static class Chunk {
+        final int start;
+        final int end;
+        TokenStream tokens;
+        int newlines;
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private Lexer newLexer(int line) {
+        Lexer lexer = new Lexer(spec);
+        lexer.ignoreErrors(ignoreErrors);
+        lexer.setLine(line);
+        return lexer;
+    }
+
+    /**
+     * returns the offset after the first run of newlines at or after offset
+     */
+    private static int nextBoundary(CharSequence input, int offset) {
+        while (offset < input.length() && input.charAt(offset) != '\n') offset++;
+        while (offset < input.length() && (input.charAt(offset) == '\n' || input.charAt(offset) == '\r')) offset++;
+        return offset;
+    }
+
+    private ArrayList<Chunk> split(CharSequence input) {
+        int count = Math.min(pool.getParallelism() * 4, input.length() / chunkSize);
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= count && start < input.length(); i++) {
+            int end = i == count ? input.length() : nextBoundary(input, (int) ((long) input.length() * i / count));
+            if (end <= start) continue;
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private void lex(CharSequence input, Chunk chunk) {
+        Lexer lexer = newLexer(1);
+        TokenStream tokens = new TokenStream(input, spec, (chunk.end - chunk.start) / 4);
+        int offset = chunk.start;
+        while (offset < chunk.end) {
+            int next = lexer.next(input, offset, tokens);
+            if (next == -1) {
+                tokens.setErrorOffset(offset);
+                break;
+            }
+            offset = next;
+        }
+        for (int i = chunk.start; i < chunk.end; i++) {
+            if (input.charAt(i) == '\n') chunk.newlines++;
+        }
+        chunk.tokens = tokens;
+    }
+
+    public TokenStream scan(CharSequence input) {
+        ArrayList<Chunk> chunks = split(input);
+        if (chunks.size() < 2) return newLexer(1).scan(input);
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> lex(input, chunk)));
+        }
+        int tokenCount = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            tasks.get(i).join();
+            tokenCount += chunks.get(i).tokens.size();
+        }
+
+        TokenStream result = new TokenStream(input, spec, tokenCount + 1);
+        int offset = 0; // start of the next token
+        int line = 1; // line at offset
+        int chunkLine = 1; // line at the start of the current chunk
+        for (Chunk chunk : chunks) {
+            if (offset >= chunk.end) {
+                chunkLine += chunk.newlines;
+                continue;
+            }
+            TokenStream tokens = chunk.tokens;
+            int index = tokens.indexOf(offset);
+            if (index == -1 && offset != tokens.getErrorOffset()) {
+                // the previous chunk ended inside a token of this chunk, lex until the chunks are in sync again
+                Lexer lexer = newLexer(line);
+                while (offset < chunk.end && index == -1) {
+                    int next = lexer.next(input, offset, result);
+                    if (next == -1) return lexer.fail(input, offset, result);
+                    offset = next;
+                    index = tokens.indexOf(offset);
+                }
+                line = lexer.getLine();
+                if (index == -1) {
+                    chunkLine += chunk.newlines;
+                    continue;
+                }
+            }
+            if (index != -1) {
+                result.addAll(tokens, index, tokens.size(), 0, chunkLine - 1);
+                offset = result.getEnd(result.size() - 1);
+                line = result.getLine(result.size() - 1);
+            }
+            if (tokens.hasError() && offset == tokens.getErrorOffset()) {
+                return newLexer(line).fail(input, offset, result);
+            }
+            chunkLine += chunk.newlines;
+        }
+        return result;
+    }
+}
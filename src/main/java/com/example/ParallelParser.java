@@ -0,0 +1,169 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses the top level statements of big inputs on a ForkJoinPool.
+ *
+ * The tokens are split into chunks between top level statements (at a NEWLINE outside of braces and parentheses) and
+ * every chunk is parsed with its own Parser. The programs of the chunks are joined in order in one SyntaxTree.Blocks.
+ * The tokens keep their lines, and the errors of the chunks are printed in the order of the chunks after all of them
+ * are parsed. If the rules can't reduce a chunk to one program (the rules may join it with the next statements, e.g.
+ * after a removed NEWLINE is moved out of a block), all the tokens are parsed at once like in CompilerMain.
+ */
+public class ParallelParser {
+    private static final int MIN_CHUNK_SIZE = 16 * 1024; // tokens
+
+    private static final int NEWLINE = Parser.kindOf("NEWLINE");
+    private static final int LEFT_BRACE = Parser.kindOf("LEFT_BRACE");
+    private static final int RIGHT_BRACE = Parser.kindOf("RIGHT_BRACE");
+    private static final int LEFT_PARENTHESIS = Parser.kindOf("LEFT_PARENTHESIS");
+    private static final int RIGHT_PARENTHESIS = Parser.kindOf("RIGHT_PARENTHESIS");
+    // tokens a statement can end with and start with (a statement ending with other tokens, like an operator or RETURN,
+    // may continue after the newline)
+    // (program tokens are the functions reduced by LazyFunctions)
+    private static final int[] LAST = kinds("NUM", "TXT", "BOOL", "NULL", "ID", "RIGHT_PARENTHESIS", "RIGHT_BRACE",
+            "BREAK", "CONTINUE", "program");
+    private static final int[] FIRST = kinds("NUM", "TXT", "BOOL", "NULL", "ID", "VAR", "PRINT", "RETURN", "IF",
+            "WHILE", "FUNC", "BREAK", "CONTINUE", "program");
+
+    private final Compiler compiler;
+    private final ForkJoinPool pool;
+    private int chunkSize = MIN_CHUNK_SIZE;
+
+    public ParallelParser(Compiler compiler, ForkJoinPool pool) {
+        this.compiler = compiler;
+        this.pool = pool;
+    }
+
+    public ParallelParser(Compiler compiler) {
+        this(compiler, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * minimum number of tokens in a chunk (smaller inputs are not split)
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    private static int[] kinds(String... names) {
+        int[] kinds = new int[names.length];
+        for (int i = 0; i < names.length; i++) kinds[i] = Parser.kindOf(names[i]);
+        return kinds;
+    }
+
+    private static boolean contains(int[] kinds, int kind) {
+        for (int item : kinds) {
+            if (item == kind) return true;
+        }
+        return false;
+    }
+
+    private static class Chunk {
+        final int start;
+        final int end;
+        SyntaxTree.Block program;
+        boolean parsed = false; // reduced to one program
+        ArrayList<String[]> errors;
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * checks if a top level statement can end before the token at index and the next one start at it
+     */
+    private static boolean isBoundary(Parser parser, int index) {
+        List<Token> tokens = parser.getTokens();
+        int last = tokens.get(index - 1).getKind();
+        if (!contains(LAST, last) || !contains(FIRST, tokens.get(index).getKind())) return false;
+        List<Token> removed = parser.getRemovedBefore(index);
+        if (removed == null) return false;
+        for (Token token : removed) {
+            if (token.getKind() == NEWLINE) return true;
+        }
+        return false;
+    }
+
+    private ArrayList<Chunk> split(Parser parser) {
+        List<Token> tokens = parser.getTokens();
+        int count = Math.min(pool.getParallelism() * 4, tokens.size() / chunkSize);
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        if (count < 2) return chunks;
+        int start = 0;
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (depth == 0 && i > start && i >= (long) tokens.size() * (chunks.size() + 1) / count &&
+                    isBoundary(parser, i)) {
+                chunks.add(new Chunk(start, i));
+                start = i;
+            }
+            int kind = tokens.get(i).getKind();
+            if (kind == LEFT_BRACE || kind == LEFT_PARENTHESIS) depth++;
+            else if ((kind == RIGHT_BRACE || kind == RIGHT_PARENTHESIS) && depth > 0) depth--;
+        }
+        chunks.add(new Chunk(start, tokens.size()));
+        return chunks;
+    }
+
+    private void parse(Parser parser, Chunk chunk) {
+        Parser tokens = parser.subParser(chunk.start, chunk.end);
+        if (compiler.isPrattParser()) {
+            chunk.program = new PrattParser(tokens).parse();
+            chunk.parsed = chunk.program != null;
+            if (chunk.parsed) return;
+        }
+        CompilerMain.parse(compiler, tokens);
+        chunk.program = compiler.afterParse(tokens);
+        chunk.parsed = tokens.getTokens().size() == 1;
+    }
+
+    /**
+     * returns the program of the tokens of parser (after Compiler.afterLex)
+     */
+    public SyntaxTree.Block parse(Parser parser) {
+        ArrayList<Chunk> chunks = split(parser);
+        if (chunks.size() < 2) return CompilerMain.parseProgram(compiler, parser);
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> {
+                chunk.errors = Errors.collect(() -> parse(parser, chunk));
+            }));
+        }
+        boolean parsed = true;
+        for (int i = 0; i < chunks.size(); i++) {
+            tasks.get(i).join();
+            parsed &= chunks.get(i).parsed;
+        }
+        // (the tokens of parser are not changed by the chunks)
+        if (!parsed) return CompilerMain.parseProgram(compiler, parser);
+
+        ArrayList<SyntaxTree.Block> blocks = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            Errors.print(chunk.errors);
+            // (like the programs of the rules, the blocks are added to the first program if it is a Blocks)
+            if (chunk.program instanceof SyntaxTree.Blocks && !blocks.isEmpty()) {
+                Collections.addAll(blocks, ((SyntaxTree.Blocks) chunk.program).getBlocks());
+            } else if (chunk.program != null) {
+                blocks.add(chunk.program);
+            }
+        }
+        if (blocks.isEmpty()) return null;
+        SyntaxTree.Block first = blocks.get(0);
+        SyntaxTree.Block[] rest = blocks.subList(1, blocks.size()).toArray(new SyntaxTree.Block[0]);
+        if (first instanceof SyntaxTree.Blocks) {
+            ((SyntaxTree.Blocks) first).addCodeBlock(rest);
+            return first;
+        }
+        SyntaxTree.Blocks program = new SyntaxTree.Blocks(blocks.toArray(new SyntaxTree.Block[0]));
+        program.setLineNumber(first.getLineNumber());
+        return program;
+    }
+}
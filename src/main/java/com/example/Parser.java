@@ -1,25 +1,15 @@
 package com.example;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class Parser {
-	private static class RemovedObjectsPair {
-		private Integer index;
-		private final Token token;
-
-		private RemovedObjectsPair(Integer index, Token token) {
-			this.index = index;
-			this.token = token;
-		}
-	}
-
-	private final ArrayList<RemovedObjectsPair> removedObjects = new ArrayList<>();
+	private static final ConcurrentHashMap<String, Integer> kinds = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, TokenPattern> patterns = new ConcurrentHashMap<>();
 
 	private Parser parent = null;
 	private CheckerLambda checker;
-	private int ignore = 0;
 
 	public interface CompilerLambda {
 		SyntaxTree.Block run(Parser tokens);
@@ -27,22 +17,163 @@ public class Parser {
 	public interface CheckerLambda {
 		boolean matches(Parser thisParser, int matchedIndex);
 	}
-	private final ArrayList<Token> tokens;
+	private final TokenBuffer tokens;
 	private boolean saveTexts = false;
+	private boolean debugInfo = true;
+	private boolean interning = true;
+	// shared blocks of the literals (by the texts of their tokens) and of the operations (see intern)
+	private HashMap<String, SyntaxTree.Value> literals = null;
+	private HashMap<Interned, SyntaxTree.Value> operations = null;
+	// rules of the passes (see startPass), null if the rules are always run on all the tokens
+	private ArrayList<Rule> rules = null;
+	private int ruleIndex = 0;
+	private int edits = 0;
+	// origin (see TokenBuffer) and kind of the tokens made by the reductions
+	private int[] changedOrigins = new int[0];
+	private int[] changedKinds = new int[0];
+	private int changes = 0;
+	private long attempts = 0;
+	private long skippedAttempts = 0;
+
+	private static final class Rule {
+		final String model;
+		int lastChange = -1; // number of changes when the last run ended (-1 if the rule was not run)
+		boolean reduced = false;
+		// rules with removed tokens: origin of the first match (in the view) of the last run (or -1) and the number
+		// of changes after the last run without the removed tokens
+		int tail = -1;
+		int plainChange = -1;
+
+		Rule(String model) {
+			this.model = model;
+		}
+	}
 
 	public void setSaveTexts(boolean saveTexts) {
 		this.saveTexts = saveTexts;
 	}
 
+	/**
+	 * sets the line numbers of the blocks made by the rules (see Compiler.setDebugInfo)
+	 */
+	public void setDebugInfo(boolean debugInfo) {
+		this.debugInfo = debugInfo;
+	}
+
+	/**
+	 * shares the literals and the operations of literals made by the rules (see intern)
+	 */
+	public void setInterning(boolean interning) {
+		this.interning = interning;
+	}
+
+	// a key of the operations, compared with their structures
+	private static final class Interned {
+		final SyntaxTree.Value value;
+		final int hash;
+
+		Interned(SyntaxTree.Value value) {
+			this.value = value;
+			this.hash = value.structuralHashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Interned && value.structurallyEquals(((Interned) obj).value);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * the parser running the rules (the parsers given to the rules are made from its matched tokens)
+	 */
+	private Parser root() {
+		Parser root = this;
+		while (root.parent != null) root = root.parent;
+		return root;
+	}
+
+	/**
+	 * returns the shared literal of the token text (made by make the first time), the blocks of the same text are shared
+	 * by all the blocks made by the rules of a parser (see SyntaxTree.Block.isShared)
+	 */
+	SyntaxTree.Value internLiteral(String text, Function<String, SyntaxTree.Value> make) {
+		Parser root = root();
+		if (!root.interning) return make.apply(text);
+		if (root.literals == null) root.literals = new HashMap<>();
+		SyntaxTree.Value literal = root.literals.get(text);
+		if (literal == null) {
+			literal = make.apply(text);
+			literal.setShared(true);
+			root.literals.put(text, literal);
+		}
+		return literal;
+	}
+
+	/**
+	 * returns the shared operation structurally equal to operation (operation itself the first time) if its operands are
+	 * shared, otherwise operation (the operations of variables or calls are never shared)
+	 */
+	SyntaxTree.Value intern(SyntaxTree.Operator operation) {
+		Parser root = root();
+		if (!root.interning || !isShared(operation.getValue1()) || !isShared(operation.getValue2())) return operation;
+		if (root.operations == null) root.operations = new HashMap<>();
+		Interned key = new Interned(operation);
+		SyntaxTree.Value shared = root.operations.get(key);
+		if (shared == null) {
+			operation.setShared(true);
+			root.operations.put(key, operation);
+			return operation;
+		}
+		return shared;
+	}
+
+	private static boolean isShared(SyntaxTree.Value value) {
+		return value != null && value.isShared();
+	}
+
 	public Parser(ArrayList<Token> tokens) {
+		this.tokens = new TokenBuffer(tokens);
+	}
+
+	private Parser(TokenBuffer tokens) {
 		this.tokens = tokens;
 	}
 
+	/**
+	 * a parser of the tokens [start, end) of this parser (with the tokens removed between them)
+	 */
+	Parser subParser(int start, int end) {
+		Parser parser = new Parser(new TokenBuffer(tokens, start, end));
+		parser.saveTexts = saveTexts;
+		parser.debugInfo = debugInfo;
+		parser.interning = interning;
+		return parser;
+	}
+
+	/**
+	 * returns the number used for a token name (the same name always gets the same number)
+	 */
+	static int kindOf(String name) {
+		Integer kind = kinds.get(name);
+		if (kind != null) return kind;
+		synchronized (kinds) {
+			return kinds.computeIfAbsent(name, key -> kinds.size());
+		}
+	}
+
+	static TokenPattern getPattern(String model) {
+		return patterns.computeIfAbsent(model, TokenPattern::compile);
+	}
+
 	public void remove(String token) {
 		for (int i = 0; i < tokens.size(); i++) {
 			if (tokens.get(i).getName().equals(token)) {
-				removedObjects.add(new RemovedObjectsPair(i, tokens.get(i)));
-				tokens.remove(i);
+				tokens.remove(i, true);
 				i--;
 			}
 		}
@@ -51,7 +182,7 @@ public class Parser {
 	public void purge(String token) {
 		for (int i = 0; i < tokens.size(); i++) {
 			if (tokens.get(i).getName().equals(token)) {
-				tokens.remove(i);
+				tokens.remove(i, false);
 				i--;
 			}
 		}
@@ -66,78 +197,443 @@ public class Parser {
 		return tmp.toString();
 	}
 
+	/**
+	 * the tokens (starting at a token) seen by a model that uses removed tokens: after every token, the first removed
+	 * token of an included kind in the gap after it (if there is one), the view is made as the tokens are read
+	 */
+	private static final class IncludedView implements TokenPattern.Input {
+		private final TokenBuffer tokens;
+		private final int[] included;
+		private int[] kinds = new int[16];
+		private int[] indexes = new int[16]; // index of the token (or of the token after the gap for removed tokens)
+		private boolean[] removed = new boolean[16];
+		private int size = 0;
+		private int next = 0; // the next token to add
+
+		IncludedView(TokenBuffer tokens, int[] included) {
+			this.tokens = tokens;
+			this.included = included;
+		}
+
+		void reset(int first) {
+			size = 0;
+			next = first;
+		}
+
+		private void add(int kind, int index, boolean isRemoved) {
+			if (size == kinds.length) {
+				kinds = Arrays.copyOf(kinds, size * 2);
+				indexes = Arrays.copyOf(indexes, size * 2);
+				removed = Arrays.copyOf(removed, size * 2);
+			}
+			kinds[size] = kind;
+			indexes[size] = index;
+			removed[size++] = isRemoved;
+		}
+
+		boolean has(int index) {
+			while (size <= index && next < tokens.size()) {
+				add(tokens.kindAt(next), next, false);
+				Token token = findRemoved(tokens.before(++next), included);
+				if (token != null) add(token.getKind(), next, true);
+			}
+			return index < size;
+		}
+
+		@Override
+		public int kindAt(int index) {
+			return has(index) ? kinds[index] : -1;
+		}
+	}
+
+	private static Token findRemoved(ArrayList<Token> removed, int[] included) {
+		if (removed == null) return null;
+		for (Token token : removed) {
+			for (int kind : included) {
+				if (token.getKind() == kind) return token;
+			}
+		}
+		return null;
+	}
+	/**
+	 * starts a pass of the rules (replace calls in the same order in every pass, like in Compiler.parse), from the
+	 * second pass a rule is only run on the tokens changed since its last run (and skipped if there are none)
+	 */
+	public void startPass() {
+		if (rules == null) {
+			rules = new ArrayList<>();
+			edits = tokens.getEdits();
+		}
+		ruleIndex = 0;
+	}
+
+	/**
+	 * number of reductions made by replace so far
+	 */
+	public int getChanges() {
+		return changes;
+	}
+
+	/**
+	 * number of positions where a rule was tried
+	 */
+	public long getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * number of positions where a rule was not tried because it can't find a new match there
+	 */
+	public long getSkippedAttempts() {
+		return skippedAttempts;
+	}
+
+	private Rule nextRule(String model) {
+		if (rules == null) return null;
+		if (tokens.getEdits() != edits) {
+			// tokens were added or removed without replace (every rule is run again on all the tokens)
+			for (Rule rule : rules) rule.lastChange = -1;
+			edits = tokens.getEdits();
+		}
+		if (ruleIndex == rules.size()) rules.add(new Rule(model));
+		Rule rule = rules.get(ruleIndex++);
+		if (!rule.model.equals(model)) {
+			rule = new Rule(model);
+			rules.set(ruleIndex - 1, rule);
+		}
+		return rule;
+	}
+
+	/**
+	 * sorted origins of the tokens of kinds used by pattern made after the first 'from' changes
+	 */
+	private int[] changedSince(int from, TokenPattern pattern) {
+		int[] dirty = new int[changes - from];
+		int count = 0;
+		for (int i = from; i < changes; i++) {
+			if (pattern.uses(changedKinds[i])) dirty[count++] = changedOrigins[i];
+		}
+		Arrays.sort(dirty, 0, count);
+		return Arrays.copyOf(dirty, count);
+	}
+
 	// Replace the previous model with newName and store the output of lambda in its object.
 	public void replace(String model, String newName, CompilerLambda lambda, String... includedRemovedObjects) {
-		List<String> included = Arrays.asList(includedRemovedObjects);
-		String map = " " + this.getMap(includedRemovedObjects) + " ";
-		Pattern	pattern = Pattern.compile(" " + model + " ");
-		Matcher matcher = pattern.matcher(map);
-		int exclude = ignore;
-		do {
-			if (!matcher.find()) {
-				return ;
-			}
-		} while (--exclude > 0);
-		String matched = matcher.group(0).substring(1);
-		map = map.substring(1);
-		int index = map.indexOf(matched);
-		exclude = ignore - 1;
-		while (exclude-- > 0) {
-			index = map.indexOf(matched, index + 1);
-		}
-		int listIndex = 0;
-		for (int i = 0; i < index; i++) {
-			if (map.charAt(i) == ' ') {
-				listIndex++;
-			}
-			for (String included1 : included) {
-				if (map.indexOf(included1, i) == i) listIndex--;
-			}
-		}
-		if (checker != null && !checker.matches(this, listIndex)) {
-			ignore++;
-			this.replace(model, newName, lambda);
-			ignore--;
-			return;
-		}
-		StringBuilder text = null;
-		if (saveTexts) text = new StringBuilder();
-		int tmp = listIndex;
-		ArrayList<Token> tmpTokens = new ArrayList<>();
-		String[] split = matched.split(" ");
-		for (int i = 0; i < split.length; i++) {
-			if (included.contains(split[i])) {
-				int finalI = i;
-				int finalListIndex = listIndex;
-				RemovedObjectsPair removedObjectsPair = removedObjects.stream().filter(
-								removedObjectsPair1 -> removedObjectsPair1.index == finalListIndex + finalI)
-						.findFirst().get();
-				removedObjects.remove(removedObjectsPair);
-				tmpTokens.add(removedObjectsPair.token);
-				if (saveTexts) text.append(removedObjectsPair.token.getText());
-				listIndex--;
+		TokenPattern pattern = getPattern(model);
+		Rule rule = nextRule(model);
+		boolean known = rule != null && rule.lastChange != -1;
+		if (known && checker != null) {
+			// a checker may depend on any token (and a rejected match hides the next position), these rules run on
+			// all the tokens after any change
+			if (rule.lastChange == changes && !rule.reduced) {
+				skippedAttempts += tokens.size();
+				return;
+			}
+			known = false;
+		}
+		int firstChange = changes;
+		long firstAttempt = attempts;
+		int size = tokens.size();
+		if (includedRemovedObjects.length > 0) {
+			int[] included = new int[includedRemovedObjects.length];
+			for (int i = 0; i < included.length; i++) included[i] = kindOf(includedRemovedObjects[i]);
+			// a new match in the view has to include a token made after the last run or start after its first match
+			Scan scan = known ? new Scan(pattern, changedSince(rule.lastChange, pattern), rule.tail) : new Scan(pattern);
+			int origin = -1;
+			if (!scan.isEmpty()) {
+				// removed tokens are only used for the first match, the rest of the matches are found without them
+				origin = replaceFirst(pattern, new IncludedView(tokens, included), included, newName, lambda, scan);
+			}
+			if (rule != null) {
+				rule.lastChange = changes;
+				rule.tail = origin;
+				if (!known) rule.plainChange = -1;
+			}
+			if (origin != -1) {
+				replaceAll(pattern, newName, lambda, rule != null && rule.plainChange != -1 ?
+						new Scan(pattern, changedSince(rule.plainChange, pattern), -1) : new Scan(pattern));
+				if (rule != null) rule.plainChange = changes;
+			}
+		} else {
+			// the last run left no match, a new match has to include a token made after it
+			Scan scan = known ? new Scan(pattern, changedSince(rule.lastChange, pattern), -1) : new Scan(pattern);
+			if (!scan.isEmpty()) replaceAll(pattern, newName, lambda, scan);
+			if (rule != null) rule.lastChange = changes;
+		}
+		if (rule != null) rule.reduced = changes != firstChange;
+		skippedAttempts += Math.max(size - (attempts - firstAttempt), 0);
+	}
+
+	/**
+	 * the positions where a rule can find a new match: around the dirty tokens (sorted origins of the tokens made
+	 * since its last run) and from the token at origin tail on (a scan of all the tokens starts at origin 0)
+	 */
+	private final class Scan {
+		private final TokenPattern pattern;
+		private final int[] dirty;
+		private int next = 0;
+		private int tail;
+		private int limit = -1; // the last position of the current part
+		private int start = 0; // the first position of the current part
+
+		Scan(TokenPattern pattern, int[] dirty, int tail) {
+			this.pattern = pattern;
+			this.dirty = dirty;
+			this.tail = tail;
+		}
+
+		Scan(TokenPattern pattern) {
+			this(pattern, new int[0], 0);
+		}
+
+		boolean isEmpty() {
+			return dirty.length == 0 && tail == -1;
+		}
+
+		/**
+		 * returns the first position at or after position where a new match can start (or tokens.size())
+		 */
+		int next(int position) {
+			while (true) {
+				if (position <= limit) {
+					int candidate = tokens.next(pattern, position);
+					if (candidate <= limit || candidate == tokens.size()) return candidate;
+					position = candidate;
+				}
+				boolean last = tail != -1 && (next == dirty.length || dirty[next] >= tail);
+				int index;
+				if (last) {
+					index = tokens.indexOfOrigin(tail);
+					tail = -1;
+					limit = Integer.MAX_VALUE;
+				} else if (next < dirty.length) {
+					index = tokens.indexOfOrigin(dirty[next++]);
+					if (index < position) continue; // (the positions before it were tried or can't start a match)
+					limit = index;
+				} else {
+					return tokens.size();
+				}
+				position = firstStart(index, position);
+				start = position;
+			}
+		}
+
+		/**
+		 * the first position (not before bound) where a match including the token at index can start
+		 */
+		private int firstStart(int index, int bound) {
+			// the tokens of a match before the token at index are all used in the model
+			int maxLength = pattern.getMaxLength();
+			int first = Math.max(bound, index >= maxLength ? index - maxLength + 1 : 0);
+			int from = index;
+			while (from > first && pattern.uses(tokens.kindAt(from - 1))) from--;
+			return from;
+		}
+
+		/**
+		 * called when a token is made at position, returns the first position where a match including it can start
+		 * if it is before the positions tried in the current part (otherwise position)
+		 */
+		int changed(int position) {
+			limit = Math.max(limit, position);
+			int from = firstStart(position, 0);
+			if (from >= start) return position;
+			start = from;
+			return from;
+		}
+	}
+
+	/**
+	 * replaces the first match in the view (found with scan) and returns the origin of the new token, or -1 if there
+	 * is no match
+	 */
+	private int replaceFirst(TokenPattern pattern, IncludedView view, int[] included, String newName,
+							 CompilerLambda lambda, Scan scan) {
+		TokenPattern.Matcher matcher = pattern.matcher(view);
+		boolean removedCanStart = false;
+		for (int kind : included) {
+			if (pattern.canStartWith(kind)) removedCanStart = true;
+		}
+		int position = 0;
+		view.reset(removedCanStart ? 0 : scan.next(0));
+		while (view.has(position)) {
+			if (removedCanStart) {
+				// (all the positions of the view are tried)
+				if (!pattern.canStartWith(view.kindAt(position))) {
+					position++;
+					continue;
+				}
+			} else {
+				// the view is started again at the next token where a new match can start
+				int index = view.indexes[position];
+				int next = scan.next(index);
+				if (view.removed[position] || next != index) {
+					view.reset(next);
+					position = 0;
+					continue;
+				}
+			}
+			attempts++;
+			int end = matcher.match(position);
+			if (end == -1) {
+				position++;
+				continue;
+			}
+			if (checker != null && !checker.matches(this, view.indexes[position])) {
+				position = end + 1;
 				continue;
 			}
-			tmpTokens.add(tokens.get(listIndex + i));
-			if (saveTexts) text.append(tokens.get(listIndex + i).getText());
-			if (i != matched.split(" ").length - 1) {
-				for (RemovedObjectsPair entry : removedObjects) {
-					if (entry.index > listIndex + i) {
-						entry.index--;
+			int start = view.indexes[position];
+			ArrayList<Token> matched = new ArrayList<>();
+			int last = start;
+			int gap = start; // the gaps before it have no removed tokens of the included kinds anymore
+			for (int i = position; i < end; i++) {
+				if (view.removed[i]) {
+					// the first removed token of the gaps merged so far
+					for (; gap <= view.indexes[i]; gap++) {
+						Token token = findRemoved(tokens.before(gap), included);
+						if (token != null) {
+							tokens.before(gap).remove(token);
+							matched.add(token);
+							break;
+						}
 					}
+				} else {
+					matched.add(tokens.get(view.indexes[i]));
+					last = view.indexes[i];
 				}
 			}
-			tokens.remove(listIndex + i);
-			listIndex--;
+			reduce(start, last + 1, matched, newName, lambda);
+			return tokens.originAt(start);
+		}
+		return -1;
+	}
+
+	/**
+	 * replaces all the matches found with scan
+	 */
+	private void replaceAll(TokenPattern pattern, String newName, CompilerLambda lambda, Scan scan) {
+		TokenPattern.Matcher matcher = pattern.matcher(tokens);
+		// failed attempts (start and the furthest token examined by it or any attempt before it)
+		int[] failedStarts = new int[16];
+		int[] failedReach = new int[16];
+		int failed = 0;
+		int position = 0;
+		while ((position = scan.next(position)) < tokens.size()) {
+			attempts++;
+			int end = matcher.match(position);
+			if (end == -1) {
+				if (failed == failedStarts.length) {
+					failedStarts = Arrays.copyOf(failedStarts, failed * 2);
+					failedReach = Arrays.copyOf(failedReach, failed * 2);
+				}
+				failedStarts[failed] = position;
+				failedReach[failed] = failed == 0 ? matcher.reach() : Math.max(failedReach[failed - 1], matcher.reach());
+				failed++;
+				position++;
+				continue;
+			}
+			if (checker != null && !checker.matches(this, position)) {
+				// rejected matches are skipped, like the matches of the regex on the map, the next one can't start
+				// with the token after the match
+				failed = 0;
+				position = end + 1;
+				continue;
+			}
+			ArrayList<Token> matched = new ArrayList<>(end - position);
+			for (int i = position; i < end; i++) matched.add(tokens.get(i));
+			reduce(position, end, matched, newName, lambda);
+			int from = scan.changed(position);
+			// the attempts that examined the replaced tokens are tried again
+			int i = firstReaching(failedReach, failed, position);
+			if (i < failed) {
+				position = failedStarts[i];
+				failed = i;
+			}
+			if (from < position) {
+				// (and the positions before the ones tried by this scan)
+				position = from;
+				while (failed > 0 && failedStarts[failed - 1] >= from) failed--;
+			}
+		}
+	}
+
+	private static int firstReaching(int[] reach, int size, int index) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (reach[middle] < index) low = middle + 1;
+			else high = middle;
 		}
-		listIndex = tmp;
-		Token t = new Token(newName, saveTexts? text.toString():null);
-		t.setLine(tmpTokens.get(0).getLine());
-		tokens.add(listIndex, t);
-		Parser parser = new Parser(tmpTokens);
+		return low;
+	}
+
+	private void reduce(int start, int end, ArrayList<Token> matched, String newName, CompilerLambda lambda) {
+		Token t = saveTexts? span(newName, matched):new Token(newName, null);
+		t.setLine(matched.get(0).getLine());
+		tokens.replace(start, end, t);
+		if (changes == changedOrigins.length) {
+			changedOrigins = Arrays.copyOf(changedOrigins, changes * 2 + 16);
+			changedKinds = Arrays.copyOf(changedKinds, changes * 2 + 16);
+		}
+		changedOrigins[changes] = tokens.originAt(start);
+		changedKinds[changes++] = t.getKind();
+		Parser parser = new Parser(matched);
+		parser.parent = this;
+		t.setObject(lambda.run(parser), debugInfo);
+	}
+
+	/**
+	 * makes a token named newName with the object made by lambda from matched (like a reduction of the tokens, but the
+	 * tokens of this parser are not changed), used by PrattParser
+	 */
+	Token bind(ArrayList<Token> matched, String newName, CompilerLambda lambda) {
+		Token t = saveTexts? span(newName, matched):new Token(newName, null);
+		t.setLine(matched.get(0).getLine());
+		Parser parser = new Parser(matched);
 		parser.parent = this;
-		t.setObject(lambda.run(parser));
-		this.replace(model, newName, lambda);
+		t.setObject(lambda.run(parser), debugInfo);
+		return t;
+	}
+
+	/**
+	 * replaces the tokens [start, end) with a token named newName with the object made by lambda from them, the tokens
+	 * removed between them are dropped (used by LazyFunctions to skip the bodies of functions)
+	 */
+	void collapse(int start, int end, String newName, CompilerLambda lambda) {
+		for (int i = start + 1; i < end; i++) {
+			ArrayList<Token> removed = tokens.before(i);
+			if (removed != null) removed.clear();
+		}
+		reduce(start, end, new ArrayList<>(tokens.subList(start, end)), newName, lambda);
+	}
+
+	/**
+	 * the tokens removed by remove(token) between token index - 1 and token index (or null)
+	 */
+	List<Token> getRemovedBefore(int index) {
+		return tokens.before(index);
+	}
+
+	/**
+	 * creates a token referring to the part of the source covered by tokens (if they all come from the same source),
+	 * otherwise the texts are concatenated
+	 */
+	private static Token span(String name, ArrayList<Token> tokens) {
+		CharSequence source = tokens.get(0).getSource();
+		int start = Integer.MAX_VALUE;
+		int end = -1;
+		for (Token token : tokens) {
+			if (source == null || token.getSource() != source) {
+				StringBuilder text = new StringBuilder();
+				for (Token token1 : tokens) text.append(token1.getText());
+				return new Token(name, text.toString());
+			}
+			start = Math.min(start, token.getStart());
+			end = Math.max(end, token.getEnd());
+		}
+		return new Token(name, source, start, end, 0);
 	}
 
 	public void replace(String model, String newName, CompilerLambda lambda, CheckerLambda checker,
@@ -152,24 +648,19 @@ public class Parser {
 	}
 
 	public String getMap(String... includedRemovedObjects) {
-		List<String> included = Arrays.asList(includedRemovedObjects);
+		int[] included = new int[includedRemovedObjects.length];
+		for (int i = 0; i < included.length; i++) included[i] = kindOf(includedRemovedObjects[i]);
 		StringBuilder tmp = new StringBuilder();
 		for (int i = 0; i < tokens.size(); i++) {
-			tmp.append(tokens.get(i).getName()).append(" ");
-			for (RemovedObjectsPair removedObjectsPair : removedObjects) {
-				if (included.contains(removedObjectsPair.token.getName()) && removedObjectsPair.index == i + 1) {
-					tmp.append(removedObjectsPair.token.getName()).append(" ");
-					break;
-				}
-			}
+			if (i != 0) tmp.append(" ");
+			tmp.append(tokens.get(i).getName());
+			Token removed = findRemoved(tokens.before(i + 1), included);
+			if (removed != null) tmp.append(" ").append(removed.getName());
 		}
-		try {
-			return tmp.substring(0, tmp.length() - 1);
-		} catch(IndexOutOfBoundsException ignore) {}
-		return "";
+		return tmp.toString();
 	}
 
-	public ArrayList<Token> getTokens() {
+	public List<Token> getTokens() {
 		return tokens;
 	}
 
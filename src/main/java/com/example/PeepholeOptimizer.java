@@ -0,0 +1,309 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Peephole optimizer of the code made by VMByteCodeGenerator (see VMByteCodeGenerator.setPeepholeOptimizer).
+ *
+ * The rules look at a few following opcodes and remove or rewrite them until nothing changes. The jumps are kept as
+ * the opcode they jump to (not as offsets), so their operands are set again when the code is rebuilt (in opcodes, or
+ * in opcodes and operands in the recorded blocks). The opcodes that some jump lands on are never removed from the
+ * middle of a rule.
+ */
+public class PeepholeOptimizer {
+    public enum Rule {
+        /**
+         * PUT x POP and GETPARAM n POP are removed
+         */
+        DISCARDED_VALUE,
+        /**
+         * SETVAR n GETVAR n POP becomes SETVAR n
+         */
+        STORE_LOAD,
+        /**
+         * jumps to the next opcode are removed (SKIPIF and SKIPIFN become POP)
+         */
+        EMPTY_JUMP,
+        /**
+         * jumps to a SKIP jump to the target of the SKIP
+         */
+        JUMP_THREADING,
+        /**
+         * SKIPIFN a SKIP b a: becomes SKIPIF b a: (and SKIPIF a SKIP b a: becomes SKIPIFN b a:)
+         */
+        INVERTED_JUMP,
+        /**
+         * the opcodes after SKIP, RETURN, BREAK and CONTINUE are removed until a jump lands on one of them (or the
+         * recorded block ends), e.g. the DELVAR of the locals after the return of a function
+         */
+        DEAD_CODE
+    }
+
+    private final EnumSet<Rule> rules;
+    private final int[] removed = new int[Rule.values().length];
+
+    // the code being optimized (jump holds the index of the opcode the jump lands on, or -1 if it is not a jump)
+    private int size;
+    private byte[] opcodes;
+    private byte[] kinds;
+    private int[] operands;
+    private int[] jump;
+    private int[] depth; // number of the recorded blocks around the opcode
+    private boolean[] alive;
+    private int[] next; // next alive opcode (size is the end of the code)
+    private int[] prev;
+    private int[] forward; // the opcode that replaced a removed opcode as a target of the jumps
+    private boolean[] target;
+
+    public PeepholeOptimizer() {
+        rules = EnumSet.allOf(Rule.class);
+    }
+
+    public PeepholeOptimizer(Rule... rules) {
+        this.rules = EnumSet.noneOf(Rule.class);
+        this.rules.addAll(Arrays.asList(rules));
+    }
+
+    public void setEnabled(Rule rule, boolean enabled) {
+        if (enabled) rules.add(rule);
+        else rules.remove(rule);
+    }
+
+    public boolean isEnabled(Rule rule) {
+        return rules.contains(rule);
+    }
+
+    /**
+     * number of the opcodes removed by rule (since the optimizer was made)
+     */
+    public int getRemoved(Rule rule) {
+        return removed[rule.ordinal()];
+    }
+
+    public int getRemoved() {
+        int sum = 0;
+        for (int count : removed) sum += count;
+        return sum;
+    }
+
+    /**
+     * number of the removed opcodes for every rule
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Rule rule : Rule.values()) {
+            report.append(rule).append(": ").append(getRemoved(rule)).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static boolean isJump(byte opcode) {
+        return opcode == VMWrapper.SKIP || opcode == VMWrapper.SKIPIF || opcode == VMWrapper.SKIPIFN;
+    }
+
+    /**
+     * optimizes code (the result is a new buffer, or code if it has jumps that can't be followed)
+     */
+    public ByteCodeBuffer optimize(ByteCodeBuffer code) {
+        if (rules.isEmpty() || !load(code)) return code;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            findTargets();
+            for (int i = next[size]; i != size; i = next[i]) {
+                if (alive[i] && rewrite(i)) changed = true;
+            }
+        }
+        return rebuild(code);
+    }
+
+    /**
+     * reads code and finds the opcode every jump lands on (false if a jump lands in the middle of an opcode)
+     */
+    private boolean load(ByteCodeBuffer code) {
+        size = code.size();
+        opcodes = new byte[size + 1];
+        kinds = new byte[size + 1];
+        operands = new int[size + 1];
+        jump = new int[size + 1];
+        depth = new int[size + 1];
+        alive = new boolean[size + 1];
+        next = new int[size + 1];
+        prev = new int[size + 1];
+        forward = new int[size + 1];
+        target = new boolean[size + 1];
+        int[] items = new int[size + 1]; // position of the opcode in opcodes and operands
+        int recorded = 0;
+        for (int i = 0; i < size; i++) {
+            opcodes[i] = code.getOpcode(i);
+            kinds[i] = code.getOperandKind(i);
+            if (kinds[i] == ByteCodeBuffer.INT) operands[i] = (int) code.getOperand(i);
+            else if (kinds[i] == ByteCodeBuffer.CONSTANT) operands[i] = code.getConstantIndex(i);
+            if (opcodes[i] == VMWrapper.END) recorded--;
+            depth[i] = recorded;
+            if (opcodes[i] == VMWrapper.REC) recorded++;
+            items[i + 1] = items[i] + (kinds[i] == ByteCodeBuffer.NONE ? 1 : 2);
+        }
+        for (int i = 0; i <= size; i++) {
+            alive[i] = true;
+            next[i] = i == size ? 0 : i + 1;
+            prev[i] = i == 0 ? size : i - 1;
+            forward[i] = i;
+            jump[i] = -1;
+        }
+        if (size == 0) next[size] = size;
+        for (int i = 0; i < size; i++) {
+            if (!isJump(opcodes[i]) || kinds[i] != ByteCodeBuffer.INT) continue;
+            if (depth[i] == 0) {
+                jump[i] = i + 1 + operands[i];
+                if (jump[i] < 0 || jump[i] > size) return false;
+            } else {
+                jump[i] = Arrays.binarySearch(items, items[i + 1] + operands[i]);
+                if (jump[i] < 0) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the alive opcode a jump to index lands on
+     */
+    private int resolve(int index) {
+        int resolved = index;
+        while (!alive[resolved]) resolved = forward[resolved];
+        while (forward[index] != resolved && index != resolved) { // (path compression)
+            int following = forward[index];
+            forward[index] = resolved;
+            index = following;
+        }
+        return resolved;
+    }
+
+    private void findTargets() {
+        Arrays.fill(target, false);
+        for (int i = next[size]; i != size; i = next[i]) {
+            if (jump[i] != -1) target[resolve(jump[i])] = true;
+        }
+    }
+
+    private void remove(int index, Rule rule) {
+        alive[index] = false;
+        next[prev[index]] = next[index];
+        prev[next[index]] = prev[index];
+        forward[index] = next[index];
+        if (target[index]) target[next[index]] = true;
+        removed[rule.ordinal()]++;
+    }
+
+    private boolean is(int index, byte opcode) {
+        return index != size && opcodes[index] == opcode;
+    }
+
+    private boolean sameOperand(int first, int second) {
+        return kinds[first] == kinds[second] && operands[first] == operands[second];
+    }
+
+    /**
+     * applies the rules to the opcodes starting at index
+     */
+    private boolean rewrite(int index) {
+        int second = next[index];
+        int third = second == size ? size : next[second];
+        byte opcode = opcodes[index];
+        if (rules.contains(Rule.DISCARDED_VALUE) && (opcode == VMWrapper.PUT || opcode == VMWrapper.GETPARAM) &&
+                is(second, VMWrapper.POP) && !target[second]) {
+            remove(index, Rule.DISCARDED_VALUE);
+            remove(second, Rule.DISCARDED_VALUE);
+            return true;
+        }
+        if (rules.contains(Rule.STORE_LOAD) && opcode == VMWrapper.SETVAR && is(second, VMWrapper.GETVAR) &&
+                sameOperand(index, second) && is(third, VMWrapper.POP) && !target[second] && !target[third]) {
+            remove(second, Rule.STORE_LOAD);
+            remove(third, Rule.STORE_LOAD);
+            return true;
+        }
+        if (jump[index] == -1) {
+            if (rules.contains(Rule.DEAD_CODE) && depth[index] > 0 && (opcode == VMWrapper.RETURN ||
+                    opcode == VMWrapper.BREAK || opcode == VMWrapper.CONTINUE)) {
+                return removeDeadCode(index);
+            }
+            return false;
+        }
+        int to = resolve(jump[index]);
+        if (to == second) {
+            if (!rules.contains(Rule.EMPTY_JUMP)) return false;
+            if (opcode == VMWrapper.SKIP) {
+                remove(index, Rule.EMPTY_JUMP);
+            } else {
+                // (the condition is still popped)
+                opcodes[index] = VMWrapper.POP;
+                kinds[index] = ByteCodeBuffer.NONE;
+                jump[index] = -1;
+            }
+            return true;
+        }
+        if (rules.contains(Rule.JUMP_THREADING) && is(to, VMWrapper.SKIP) && jump[to] != -1 &&
+                depth[to] == depth[index]) {
+            int following = resolve(jump[to]);
+            if (following != to && following != index) {
+                jump[index] = following;
+                target[following] = true;
+                return true;
+            }
+        }
+        if (rules.contains(Rule.INVERTED_JUMP) && opcode != VMWrapper.SKIP && is(second, VMWrapper.SKIP) &&
+                jump[second] != -1 && !target[second] && to == third) {
+            opcodes[index] = opcode == VMWrapper.SKIPIF ? VMWrapper.SKIPIFN : VMWrapper.SKIPIF;
+            jump[index] = jump[second];
+            remove(second, Rule.INVERTED_JUMP);
+            return true;
+        }
+        if (rules.contains(Rule.DEAD_CODE) && opcode == VMWrapper.SKIP) return removeDeadCode(index);
+        return false;
+    }
+
+    /**
+     * removes the opcodes after index that are never run
+     */
+    private boolean removeDeadCode(int index) {
+        boolean changed = false;
+        for (int i = next[index]; i != size && !target[i] && opcodes[i] != VMWrapper.REC &&
+                opcodes[i] != VMWrapper.END; i = next[index]) {
+            remove(i, Rule.DEAD_CODE);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * makes the buffer of the alive opcodes (with the constant pool of code)
+     */
+    private ByteCodeBuffer rebuild(ByteCodeBuffer code) {
+        int[] position = new int[size + 1]; // in opcodes
+        int[] items = new int[size + 1]; // in opcodes and operands
+        int opcode = 0, item = 0;
+        for (int i = next[size]; ; i = next[i]) {
+            position[i] = opcode;
+            items[i] = item;
+            if (i == size) break;
+            opcode++;
+            item += kinds[i] == ByteCodeBuffer.NONE ? 1 : 2;
+        }
+        ByteCodeBuffer optimized = new ByteCodeBuffer();
+        for (int i = 0; i < code.getConstantCount(); i++) optimized.constant(code.getConstant(i));
+        for (int i = next[size]; i != size; i = next[i]) {
+            if (jump[i] != -1) {
+                int to = resolve(jump[i]);
+                optimized.emit(opcodes[i], depth[i] == 0 ? position[to] - position[i] - 1 : items[to] - items[i] - 2);
+            } else if (kinds[i] == ByteCodeBuffer.INT) {
+                optimized.emit(opcodes[i], operands[i]);
+            } else if (kinds[i] == ByteCodeBuffer.CONSTANT) {
+                optimized.emitConstant(opcodes[i], operands[i]);
+            } else {
+                optimized.emit(opcodes[i]);
+            }
+        }
+        return optimized;
+    }
+}
@@ -0,0 +1,304 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recursive descent parser (with precedence climbing for the operators), an alternative to the rules of
+ * Compiler.parse that reads the tokens once instead of running the rules until they don't change the tokens.
+ *
+ * The nodes are made by the SyntaxTreeBinder methods used by the rules, from the same tokens the rules match (e.g.
+ * IF expression LEFT_BRACE program RIGHT_BRACE), so the trees are the same as the trees made by the rules.
+ * parse returns null for inputs that are not in the grammar, they are left to the rules (which report the errors).
+ */
+public class PrattParser {
+    private static final int NEWLINE = Parser.kindOf("NEWLINE");
+    private static final int SEMICOLON = Parser.kindOf("SEMICOLON");
+    private static final int ID = Parser.kindOf("ID");
+    private static final int SET = Parser.kindOf("SET");
+    private static final int COMMA = Parser.kindOf("COMMA");
+    private static final int LEFT_PARENTHESIS = Parser.kindOf("LEFT_PARENTHESIS");
+    private static final int RIGHT_PARENTHESIS = Parser.kindOf("RIGHT_PARENTHESIS");
+    private static final int RIGHT_BRACE = Parser.kindOf("RIGHT_BRACE");
+    private static final int ELSE = Parser.kindOf("ELSE");
+    private static final int ELSEIF = Parser.kindOf("ELSEIF");
+
+    // operators from the lowest precedence (all of them are left associative)
+    private static final int[] OPERATORS = {
+            Parser.kindOf("OP3"), Parser.kindOf("COMP"), Parser.kindOf("OP2"), Parser.kindOf("OP1"),
+            Parser.kindOf("EXPONENTIATION")
+    };
+    private static final Parser.CompilerLambda[] OPERATIONS = {
+            SyntaxTreeBinder::operationsWithPriority3, SyntaxTreeBinder::comparisonOperators,
+            SyntaxTreeBinder::operationsWithPriority2, SyntaxTreeBinder::operationsWithPriority1,
+            SyntaxTreeBinder::exponentiation
+    };
+
+    private static final class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final SyntaxError syntaxError = new SyntaxError();
+
+    private final Parser parser;
+    private final List<Token> tokens;
+    private int position = 0;
+
+    /**
+     * parser has the tokens after Compiler.afterLex (the removed NEWLINE tokens separate the statements)
+     */
+    public PrattParser(Parser parser) {
+        this.parser = parser;
+        this.tokens = parser.getTokens();
+    }
+
+    /**
+     * returns the program (or null if the tokens are not a program of the grammar)
+     */
+    public SyntaxTree.Block parse() {
+        position = 0;
+        try {
+            Token program = program();
+            if (program == null || position != tokens.size()) return null;
+            return program.getObject();
+        } catch (SyntaxError e) {
+            return null;
+        }
+    }
+
+    private int kindAt(int index) {
+        return index < tokens.size() ? tokens.get(index).getKind() : -1;
+    }
+
+    private Token next() {
+        if (position == tokens.size()) throw syntaxError;
+        return tokens.get(position++);
+    }
+
+    private Token expect(String name) {
+        Token token = next();
+        if (!token.getName().equals(name)) throw syntaxError;
+        return token;
+    }
+
+    private boolean newlineBefore(int index) {
+        List<Token> removed = parser.getRemovedBefore(index);
+        if (removed == null) return false;
+        for (Token token : removed) {
+            if (token.getKind() == NEWLINE) return true;
+        }
+        return false;
+    }
+
+    private Token bind(String name, Parser.CompilerLambda lambda, Token... matched) {
+        return parser.bind(new ArrayList<>(Arrays.asList(matched)), name, lambda);
+    }
+
+    // program( (NEWLINE|SEMICOLON) program)+ (null if there is no statement before the end or a RIGHT_BRACE)
+    private Token program() {
+        ArrayList<Token> statements = new ArrayList<>();
+        boolean separated = false;
+        while (true) {
+            while (kindAt(position) == SEMICOLON) {
+                position++;
+                separated = true;
+            }
+            if (position == tokens.size() || kindAt(position) == RIGHT_BRACE) break;
+            if (!statements.isEmpty() && !separated && !newlineBefore(position)) throw syntaxError;
+            statements.add(statement());
+            separated = false;
+        }
+        if (statements.size() < 2) return statements.isEmpty() ? null : statements.get(0);
+        return parser.bind(statements, "program", SyntaxTreeBinder::programs);
+    }
+
+    // LEFT_BRACE (program )?RIGHT_BRACE
+    private void block(ArrayList<Token> matched) {
+        matched.add(expect("LEFT_BRACE"));
+        Token program = program();
+        if (program != null) matched.add(program);
+        matched.add(expect("RIGHT_BRACE"));
+    }
+
+    private Token statement() {
+        Token token = tokens.get(position);
+        switch (token.getName()) {
+            case "VAR":
+                if (kindAt(position + 2) == SET) return setVariable();
+                position++;
+                return bind("program", SyntaxTreeBinder::variableDeclaration, token, expect("ID"));
+            case "ID":
+                if (kindAt(position + 1) == SET) return setVariable();
+                break;
+            case "PRINT":
+                position++;
+                return bind("program", SyntaxTreeBinder::print, token, expression(0));
+            case "RETURN":
+                position++;
+                if (!startsValue(position)) return bind("program", SyntaxTreeBinder::returnStatement, token);
+                return bind("program", SyntaxTreeBinder::returnStatement, token, expression(0));
+            case "CONTINUE":
+                position++;
+                return bind("program", SyntaxTreeBinder::continueStatement, token);
+            case "BREAK":
+                position++;
+                return bind("program", SyntaxTreeBinder::breakStatement, token);
+            case "IF":
+                return ifStatement();
+            case "WHILE": {
+                position++;
+                ArrayList<Token> matched = new ArrayList<>();
+                matched.add(token);
+                matched.add(expression(0));
+                block(matched);
+                return parser.bind(matched, "program", SyntaxTreeBinder::whileStatement);
+            }
+            case "FUNC":
+                return functionDeclaration();
+            case "program": // (reduced before, see LazyFunctions)
+                position++;
+                return token;
+        }
+        return bind("program", SyntaxTreeBinder::valueAsProgram, expression(0));
+    }
+
+    // (VAR )?ID SET expression
+    private Token setVariable() {
+        ArrayList<Token> matched = new ArrayList<>();
+        if (tokens.get(position).getName().equals("VAR")) matched.add(next());
+        matched.add(expect("ID"));
+        matched.add(expect("SET"));
+        Token variable = parser.bind(matched, "variable_set", SyntaxTreeBinder::setVariable);
+        return bind("program", SyntaxTreeBinder::setVariable1, variable, expression(0));
+    }
+
+    // IF expression LEFT_BRACE (program )?RIGHT_BRACE, followed by the else if and else parts
+    private Token ifStatement() {
+        ArrayList<Token> matched = new ArrayList<>();
+        matched.add(next());
+        matched.add(expression(0));
+        block(matched);
+        Token statement = parser.bind(matched, "program", SyntaxTreeBinder::ifStatement);
+        while (kindAt(position) == ELSEIF) {
+            // (else if after else is reported by the rules)
+            if (statement.getObject().getExtraData("else") != null) throw syntaxError;
+            matched = new ArrayList<>();
+            matched.add(statement);
+            matched.add(next());
+            matched.add(expression(0));
+            block(matched);
+            statement = parser.bind(matched, "program", SyntaxTreeBinder::elseIfStatement);
+        }
+        if (kindAt(position) == ELSE) {
+            matched = new ArrayList<>();
+            matched.add(statement);
+            matched.add(next());
+            block(matched);
+            statement = parser.bind(matched, "program", SyntaxTreeBinder::elseStatement);
+        }
+        return statement;
+    }
+
+    // FUNC ID LEFT_PARENTHESIS( ID( COMMA ID)*)? RIGHT_PARENTHESIS LEFT_BRACE( program)? RIGHT_BRACE
+    private Token functionDeclaration() {
+        ArrayList<Token> matched = new ArrayList<>();
+        matched.add(next());
+        matched.add(expect("ID"));
+        matched.add(expect("LEFT_PARENTHESIS"));
+        if (kindAt(position) == ID) {
+            matched.add(next());
+            while (kindAt(position) == COMMA) {
+                matched.add(next());
+                matched.add(expect("ID"));
+            }
+        }
+        matched.add(expect("RIGHT_PARENTHESIS"));
+        matched.add(expect("LEFT_BRACE"));
+        Token function = parser.bind(matched, "declare_function", SyntaxTreeBinder::functionDeclaration);
+        matched = new ArrayList<>();
+        matched.add(function);
+        Token program = program();
+        if (program != null) matched.add(program);
+        matched.add(expect("RIGHT_BRACE"));
+        return parser.bind(matched, "program", SyntaxTreeBinder::functionDeclaration1);
+    }
+
+    /**
+     * checks if the token at index starts an expression (and not an assignment)
+     */
+    private boolean startsValue(int index) {
+        if (index == tokens.size()) return false;
+        switch (tokens.get(index).getName()) {
+            case "NUM":
+            case "TXT":
+            case "BOOL":
+            case "NULL":
+                return true;
+            case "ID":
+                return kindAt(index + 1) != SET;
+            default:
+                return false;
+        }
+    }
+
+    private static int precedence(int kind) {
+        for (int i = 0; i < OPERATORS.length; i++) {
+            if (OPERATORS[i] == kind) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * parses the operations with at least the given precedence (the index of the operator in OPERATORS)
+     */
+    private Token expression(int minPrecedence) {
+        Token left = value();
+        int precedence = precedence(kindAt(position));
+        while (precedence >= minPrecedence) {
+            Token operator = next();
+            Token right = expression(precedence + 1);
+            left = bind("expression", OPERATIONS[precedence], left, operator, right);
+            precedence = precedence(kindAt(position));
+        }
+        return left;
+    }
+
+    private Token value() {
+        Token token = next();
+        switch (token.getName()) {
+            case "NUM":
+                return bind("expression", SyntaxTreeBinder::numberExpression, token);
+            case "TXT":
+                return bind("expression", SyntaxTreeBinder::textExpression, token);
+            case "BOOL":
+                return bind("expression", SyntaxTreeBinder::boolExpression, token);
+            case "NULL":
+                return bind("expression", SyntaxTreeBinder::nullExpression, token);
+            case "ID":
+                if (kindAt(position) == LEFT_PARENTHESIS) return callFunction(token);
+                return bind("expression", SyntaxTreeBinder::variable, token);
+            default:
+                throw syntaxError;
+        }
+    }
+
+    // call_function (expression (COMMA expression )*)?RIGHT_PARENTHESIS
+    private Token callFunction(Token name) {
+        ArrayList<Token> matched = new ArrayList<>();
+        matched.add(bind("call_function", SyntaxTreeBinder::callFunction, name, next()));
+        if (kindAt(position) != RIGHT_PARENTHESIS) {
+            matched.add(expression(0));
+            while (kindAt(position) == COMMA) {
+                matched.add(next());
+                matched.add(expression(0));
+            }
+        }
+        matched.add(expect("RIGHT_PARENTHESIS"));
+        return parser.bind(matched, "expression", SyntaxTreeBinder::callFunction1);
+    }
+}
@@ -1,30 +1,105 @@
 package com.example;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.PriorityQueue;
 
 /**
  * Tool designed to manage scopes.
+ *
+ * The local variables get their slots (the IDs used instead of their names) when the function (or the program) they
+ * are declared in is finalized: the live range of a local goes from its declaration to its last use (to the end of the
+ * loop if it is used in a loop it is not declared in, or if it is declared in a loop), and the locals with live ranges
+ * that don't overlap share a slot (the ranges are coloured by their starts, so the number of the slots is the most
+ * locals live at once). The slot of a local is freed (with a Free block) only after the last local using it, and only
+ * if the code of the function doesn't end there.
+ *
+ * The names are resolved in a chain of scopes (the code of a function, an if, a while or an else and the program), a
+ * scope keeps only its own locals and its outer scope. The locals found in the outer scopes are kept in the scopes
+ * between (the outer scopes don't change while an inner scope is walked), so every name is looked up in the chain once.
  */
 public class ScopeTool extends Tool {
+    private static final int END = Integer.MAX_VALUE; // (the locals used until their function ends)
 
-    private int idCounter;
-    private final HashSet<Integer> ids = new HashSet<>();
-    private final HashMap<SyntaxTree.Block, HashMap<String, Integer>> info = new HashMap<>();
-    private final HashSet<String> globals = new HashSet<>();
+    /**
+     * a local variable (or a parameter) of a function or of the program
+     */
+    private static final class Local {
+        private final String name;
+        private final SyntaxTree.Block function; // (the function the local is declared in, null in the program)
+        private final SyntaxTree.Block scope; // (the blocks the local is declared in)
+        private final int start; // (position of the declaration in the walk of the tools)
+        private int end;
+        private int slot;
+        private final ArrayList<SyntaxTree.Block> uses = new ArrayList<>(); // (the SetVariables and the Variables)
+
+        Local(String name, SyntaxTree.Block function, SyntaxTree.Block scope, int start) {
+            this.name = name;
+            this.function = function;
+            this.scope = scope;
+            this.start = start;
+            this.end = start;
+        }
+
+        boolean isParameter() {
+            return scope == null;
+        }
+    }
 
     /**
-     * returns an unoccupied ID to use instead of the variable's name (where appropriate).
+     * a function (or the program) with its locals and loops (the functions declared in functions are in the unit of
+     * the outer function, their locals keep their slots until it ends)
      */
-    private int nextId() {
-        if (ids.isEmpty()) {
-            return idCounter++;
+    private static final class Unit {
+        private final SyntaxTree.Block block;
+        private final ArrayList<Local> locals = new ArrayList<>();
+        private final ArrayList<SyntaxTree.While> loops = new ArrayList<>();
+        private final HashMap<SyntaxTree.While, int[]> loopRanges = new HashMap<>();
+        private int slots = 0;
+
+        Unit(SyntaxTree.Block block) {
+            this.block = block;
         }
-        int id = ids.stream().min(Integer::compare).get();
-        ids.remove(id);
-        return id;
     }
 
+    /**
+     * locals of a block of code (and the locals of its outer scopes found in it)
+     */
+    private static final class Scope {
+        private final Scope outer;
+        private HashMap<String, Local> locals; // (made when the first local is added)
+
+        Scope(Scope outer) {
+            this.outer = outer;
+        }
+
+        void put(String name, Local local) {
+            if (locals == null) locals = new HashMap<>();
+            locals.put(name, local);
+        }
+
+        Local get(String name) {
+            Local local = null;
+            Scope scope = this;
+            while (scope != null && (local = scope.locals == null ? null : scope.locals.get(name)) == null) {
+                scope = scope.outer;
+            }
+            if (local != null) {
+                for (Scope scope1 = this; scope1 != scope; scope1 = scope1.outer) scope1.put(name, local);
+            }
+            return local;
+        }
+    }
+
+    private int position = 0;
+    private final ArrayDeque<Unit> units = new ArrayDeque<>();
+    private final ArrayDeque<SyntaxTree.Block> functions = new ArrayDeque<>();
+    private final ArrayDeque<Scope> scopes = new ArrayDeque<>();
+    private final HashSet<String> globals = new HashSet<>();
+    private int slots = 0;
+
     /**
      * free local variables at the end of the scope (if needed).
      * (In VMByteCodeGenerator, the DELVAR opcode is used to remove unneeded variables.)
@@ -50,87 +125,86 @@ public class ScopeTool extends Tool {
         }
     }
 
+    /**
+     * checks if block has its own scope (the program and the code of the blocks with locals)
+     */
+    private static boolean isScope(SyntaxTree.Block block, SyntaxTree.Block parent) {
+        return parent == null || block instanceof SyntaxTree.Blocks && parent.getExtraData("locals") != null;
+    }
+
     @Override
     public void processBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
-        SyntaxTree.Block initialParent = parent; // expected to be an instance of Blocks (in case the change needs to be performed)
-        SyntaxTree.Block pParent = null;
-        while (parent != null && parent.getExtraData("locals") == null) {
-            pParent = parent;
-            parent = (SyntaxTree.Block) parent.getExtraData("parent");
+        position++;
+        if (parent == null) { // (the program)
+            units.clear();
+            functions.clear();
+            scopes.clear();
+            units.push(new Unit(block));
         }
-        if (block instanceof SyntaxTree.SetVariable) {
+        if (block instanceof SyntaxTree.Function) {
+            if (functions.isEmpty()) units.push(new Unit(block));
+            functions.push(block);
+        } else if (block instanceof SyntaxTree.While) {
+            units.peek().loopRanges.put((SyntaxTree.While) block, new int[] { position, END });
+        }
+        if (isScope(block, parent)) {
+            Scope scope = new Scope(scopes.peek());
+            if (parent != null && parent.getExtraData("args") != null) {
+                int i = 0;
+                for (String arg : (String[]) parent.getExtraData("args")) {
+                    // negative numbers are for function parameters
+                    Local local = new Local(arg, parent, null, position);
+                    local.slot = --i;
+                    scope.put(arg, local);
+                }
+            }
+            scopes.push(scope);
+        } else if (block instanceof SyntaxTree.SetVariable) {
+            SyntaxTree.SetVariable setVariable = (SyntaxTree.SetVariable) block;
             // TODO: check type of the instance and check if the property exists
-            if (((SyntaxTree.SetVariable) block).getInstance() != null) return;
-            if (parent == null && ((SyntaxTree.SetVariable) block).isDeclaration()) {
-                globals.add(((SyntaxTree.SetVariable) block).getVariableName());
+            if (setVariable.getInstance() != null) return;
+            if (scopes.size() == 1 && setVariable.isDeclaration()) {
+                globals.add(setVariable.getVariableName());
                 return;
             }
-            if (!((SyntaxTree.SetVariable) block).isDeclaration() && (!info.containsKey(pParent) ||
-                    !info.get(pParent).containsKey(((SyntaxTree.SetVariable) block).getVariableName()))) {
-                if (globals.contains(((SyntaxTree.SetVariable) block).getVariableName())) return; // don't make any changes
-                Errors.modifiedUndefinedVariable(((SyntaxTree.SetVariable) block).getVariableName(), block);
+            Local local;
+            if (setVariable.isDeclaration()) {
+                local = new Local(setVariable.getVariableName(), functions.peek(), parent, position);
+                units.peek().locals.add(local);
+                if (functions.size() > 1) local.end = END;
+                scopes.peek().put(setVariable.getVariableName(), local);
+            } else if ((local = scopes.peek().get(setVariable.getVariableName())) == null) {
+                if (globals.contains(setVariable.getVariableName())) return; // don't make any changes
+                Errors.modifiedUndefinedVariable(setVariable.getVariableName(), block);
                 return;
             }
-            int id;
-            if (((SyntaxTree.SetVariable) block).isDeclaration()) {
-                id = nextId();
-                if (!info.containsKey(pParent)) info.put(pParent, new HashMap<>());
-                if (initialParent instanceof SyntaxTree.Blocks) {
-                    Free free = new Free(((SyntaxTree.SetVariable) block).getVariableName());
-                    free.setExtraData("id", id);
-                    ((SyntaxTree.Blocks) initialParent).addCodeBlock(free);
-                }
-            } else {
-                id = info.get(pParent).get(((SyntaxTree.SetVariable) block).getVariableName());
-            }
-            block.setExtraData("id", id);
-            info.get(pParent).put(((SyntaxTree.SetVariable) block).getVariableName(), id);
-        } else if (block instanceof SyntaxTree.Blocks) {
-            if (!info.containsKey(block)) info.put(block, new HashMap<>());
-            if (parent != null) {
-                int i = 0;
-                if (parent.getExtraData("args") != null) {
-                    for (String arg : (String[]) parent.getExtraData("args")) {
-                        info.get(block).put(arg, --i);
-                    }
-                }
-            }
-            while (parent != null) {
-                if (parent.getExtraData("locals") != null) {
-                    if (info.containsKey(pParent))
-                        info.get(block).putAll(info.get(pParent));
-                }
-                pParent = parent;
-                parent = (SyntaxTree.Block) parent.getExtraData("parent");
-            }
+            use(local, block);
         }
     }
 
+    /**
+     * adds a use of local at the current position (the locals used in other functions live until their function ends)
+     */
+    private void use(Local local, SyntaxTree.Block block) {
+        if (local.isParameter()) {
+            block.setExtraData("id", local.slot);
+            return;
+        }
+        local.uses.add(block);
+        local.end = local.function == functions.peek() ? Math.max(local.end, position) : END;
+    }
+
     @Override
     public void processValue(SyntaxTree.Value value, SyntaxTree.Block parent) {
+        position++;
         if (value instanceof SyntaxTree.Variable) {
             // TODO: check type of the instance and check if the property exists
             if (((SyntaxTree.Variable) value).getInstance() != null) return;
-            SyntaxTree.Block pParent = null;
-            while (parent != null && parent.getExtraData("locals") == null) {
-                pParent = parent;
-                parent = (SyntaxTree.Block) parent.getExtraData("parent");
-            }
-            if (parent != null && parent.getExtraData("condition") != null &&
-                    (pParent instanceof SyntaxTree.Value || pParent == null)) {
-                do {
-                    pParent = parent;
-                    parent = (SyntaxTree.Block) parent.getExtraData("parent");
-                } while (parent != null && parent.getExtraData("locals") == null);
-            }
-            boolean error = true;
-            if (info.containsKey(pParent) && info.get(pParent).containsKey(((SyntaxTree.Variable) value).getVariableName())) {
-                value.setExtraData("id", info.get(pParent).get(((SyntaxTree.Variable) value).getVariableName()));
-                error = false;
-            } else if (globals.contains(((SyntaxTree.Variable) value).getVariableName())) {
-                error = false;
-            }
-            if (error) {
+            // (the conditions are walked after the code of their blocks, in the outer scope)
+            Local local = scopes.peek().get(((SyntaxTree.Variable) value).getVariableName());
+            if (local != null) {
+                use(local, value);
+            } else if (!globals.contains(((SyntaxTree.Variable) value).getVariableName())) {
                 Errors.accessedUndefinedVariable(((SyntaxTree.Variable) value).getVariableName(), value);
             }
         }
@@ -138,16 +212,103 @@ public class ScopeTool extends Tool {
 
     @Override
     public void finalizeBlock(SyntaxTree.Block block, SyntaxTree.Block parent) {
-        if (info.containsKey(block)) {
-            // Mark the freed block's ID(s) as accessible
-            ids.addAll(info.get(block).values());
-            info.remove(block);
+        if (isScope(block, parent)) scopes.pop();
+        if (block instanceof SyntaxTree.While) {
+            Unit unit = units.peek();
+            unit.loopRanges.get(block)[1] = position;
+            unit.loops.add((SyntaxTree.While) block);
+        } else if (block instanceof SyntaxTree.Function) {
+            functions.pop();
         }
+        if (units.peek() != null && units.peek().block == block) allocate(units.pop());
     }
 
     @Override
     public void finalizeValue(SyntaxTree.Value value, SyntaxTree.Block block) {}
 
+    /**
+     * sets the slots of the locals of unit and adds the Free blocks
+     */
+    private void allocate(Unit unit) {
+        // (the locals used in a loop live until the loop ends, like the locals declared in a loop)
+        for (Local local : unit.locals) {
+            for (SyntaxTree.While loop : unit.loops) {
+                int[] range = unit.loopRanges.get(loop);
+                if (range[0] <= local.end && range[1] >= local.start) local.end = Math.max(local.end, range[1]);
+            }
+        }
+        // (the locals are sorted by their starts already)
+        PriorityQueue<Local> live = new PriorityQueue<>((local1, local2) -> Integer.compare(local1.end, local2.end));
+        PriorityQueue<Integer> free = new PriorityQueue<>();
+        HashMap<Integer, Local> last = new HashMap<>(); // the last local of every slot
+        for (Local local : unit.locals) {
+            while (!live.isEmpty() && live.peek().end < local.start) free.add(live.poll().slot);
+            local.slot = free.isEmpty() ? unit.slots++ : free.poll();
+            live.add(local);
+            last.put(local.slot, local);
+            for (SyntaxTree.Block use : local.uses) use.setExtraData("id", local.slot);
+        }
+        slots += unit.slots;
+        for (Local local : last.values()) {
+            if (local.end == END) continue;
+            // (after the outermost loop the local is declared in, or at the end of its scope)
+            SyntaxTree.Block after = null;
+            for (SyntaxTree.While loop : unit.loops) {
+                int[] range = unit.loopRanges.get(loop);
+                if (range[0] < local.start && range[1] >= local.start && (after == null ||
+                        range[0] < unit.loopRanges.get(after)[0])) after = loop;
+            }
+            SyntaxTree.Block blocks = after == null ? local.scope : after.getParentBlock();
+            if (!(blocks instanceof SyntaxTree.Blocks) || (after == null ? endsUnit(blocks, unit) :
+                    isLast(after, blocks) && endsUnit(blocks, unit))) continue;
+            Free free1 = new Free(local.name);
+            free1.setExtraData("id", local.slot);
+            if (after == null) ((SyntaxTree.Blocks) blocks).addCodeBlock(free1);
+            else insertAfter((SyntaxTree.Blocks) blocks, after, free1);
+        }
+    }
+
+    private static boolean isLast(SyntaxTree.Block block, SyntaxTree.Block blocks) {
+        SyntaxTree.Block[] code = ((SyntaxTree.Blocks) blocks).getBlocks();
+        for (int i = code.length - 1; i >= 0; i--) {
+            if (code[i] == block) return true;
+            if (!(code[i] instanceof Free)) return false;
+        }
+        return false;
+    }
+
+    /**
+     * checks if nothing of unit runs after blocks
+     */
+    private static boolean endsUnit(SyntaxTree.Block blocks, Unit unit) {
+        while (blocks != unit.block) {
+            SyntaxTree.Block parent = blocks.getParentBlock();
+            if (parent == null) return true;
+            if (parent instanceof SyntaxTree.While) return false; // (runs again)
+            if (parent instanceof SyntaxTree.Blocks && !isLast(blocks, parent)) return false;
+            blocks = parent;
+        }
+        return true;
+    }
+
+    private static void insertAfter(SyntaxTree.Blocks blocks, SyntaxTree.Block block, SyntaxTree.Block inserted) {
+        SyntaxTree.Block[] code = blocks.getBlocks();
+        SyntaxTree.Block[] result = new SyntaxTree.Block[code.length + 1];
+        int j = 0;
+        for (SyntaxTree.Block block1 : code) {
+            result[j++] = block1;
+            if (block1 == block) result[j++] = inserted;
+        }
+        if (j == result.length) blocks.setBlocks(result);
+    }
+
+    /**
+     * number of the slots of the locals given to the functions (and the programs) finalized so far
+     */
+    public int getSlotCount() {
+        return slots;
+    }
+
     public HashSet<String> getGlobals() {
         return globals;
     }
@@ -75,8 +75,7 @@ public class Shell {
     public static String readLine(HashSet<String> variables) {
         init();
         variables = (HashSet<String>) variables.clone();
-        int openBracketCounter = 0;
-        boolean repeat = false;
+        Input input = new Input();
         Map<String, Completer> completion = new HashMap<>();
         StringBuilder res = new StringBuilder();
         String line = "";
@@ -99,31 +98,14 @@ public class Shell {
             try {
                 if (bufferedReader == null || (line = bufferedReader.readLine()) == null) {
                     bufferedReader = null;
-                    if (openBracketCounter > 0 || repeat) {
-                        line = lineReader.readLine("... ", replaceTimedVariables(prompt2),
-                                (Character) null, new String(new char[openBracketCounter]).replace("\0", "  "));
+                    if (input.isIncomplete()) {
+                        line = lineReader.readLine("... ", replaceTimedVariables(prompt2), (Character) null,
+                                new String(new char[input.getOpenBrackets()]).replace("\0", "  "));
                     } else {
                         line = lineReader.readLine(replaceTimedVariables(prompt1), replaceTimedVariables(prompt2),
                                 (Character) null, "");
                     }
-                    Lexer lexer = new Lexer();
-                    lexer.ignoreErrors(true);
-                    Compiler.initLexer(lexer);
-                    Parser parser = new Parser(lexer.lex(line));
-                    openBracketCounter += parser.countStartsWith("LEFT_");
-                    openBracketCounter -= parser.countStartsWith("RIGHT_");
-                    if (parser.getTokens().size() > 0) {
-                        String name = parser.getTokens().get(parser.getTokens().size() - 1).getName();
-                        repeat = name.startsWith("OP") || name.equals("EXPONENTIATION") || name.equals("COMP") ||
-                                name.equals("SET");
-                    } else repeat = false;
-
-                    int i = parser.findFirst("VAR");
-                    while (i != -1) {
-                        if (parser.getTokens().get(i + 1).getName().equals("ID"))
-                            variables.add(parser.getTokens().get(i + 1).getText());
-                        i = parser.findAfter(i + 1, "VAR");
-                    }
+                    input.add(line, variables);
                 }
             } catch (EndOfFileException e) {
                 throw new NoSuchElementException();
@@ -173,10 +155,60 @@ public class Shell {
             } else {
                 res.append(line).append('\n');
             }
-        } while (openBracketCounter > 0 || repeat);
+        } while (input.isIncomplete());
         return res.toString();
     }
 
+    /**
+     * the lines of an input read so far (the lines are appended to the lexed input and only the new line is lexed)
+     */
+    static class Input {
+        private final Lexer lexer = new Lexer(Compiler.getLexerSpec());
+        private TokenStream tokens;
+        private int openBrackets = 0;
+        private boolean repeat = false;
+
+        Input() {
+            lexer.ignoreErrors(true);
+            tokens = lexer.scan("");
+        }
+
+        /**
+         * lexes line and counts its brackets, the variables it declares are added to variables
+         */
+        void add(String line, Set<String> variables) {
+            // (the error token of a line that could not be lexed runs to the end of the input, the next lines are
+            // lexed on their own)
+            if (tokens.hasError()) tokens = lexer.scan("");
+            int lineStart = tokens.getSource().length();
+            tokens = lexer.relex(tokens, lineStart, 0, line + "\n");
+            int first = 0;
+            while (first < tokens.size() && tokens.getStart(first) < lineStart) first++;
+            String last = null;
+            for (int i = first; i < tokens.size(); i++) {
+                String name = tokens.getName(i);
+                if (name.startsWith("LEFT_")) openBrackets++;
+                if (name.startsWith("RIGHT_")) openBrackets--;
+                if (name.equals("VAR") && i + 1 < tokens.size() && tokens.getName(i + 1).equals("ID"))
+                    variables.add(tokens.getText(i + 1));
+                if (!name.equals("NEWLINE")) last = name;
+            }
+            repeat = last != null && (last.startsWith("OP") || last.equals("EXPONENTIATION") ||
+                    last.equals("COMP") || last.equals("SET"));
+        }
+
+        int getOpenBrackets() {
+            return openBrackets;
+        }
+
+        /**
+         * checks if more lines are needed (a bracket is open or the last line ends with an operator)
+         */
+        boolean isIncomplete() {
+            return openBrackets > 0 || repeat;
+        }
+    }
+
     private static String replaceTimedVariables(String prompt) {
         DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("E, MMM dd HH:mm:ss");
         DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
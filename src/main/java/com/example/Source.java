@@ -0,0 +1,95 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Inputs of the compiler as CharSequences (the lexer reads them with a cursor, see Lexer.scan)
+ */
+public class Source {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * maps the file to memory, the returned CharSequence reads characters directly from the mapped buffer
+     * (so the file is paged in by the OS while it's lexed and never copied to the heap)
+     *
+     * files with non-ASCII characters are decoded (UTF-8) to a CharBuffer instead
+     */
+    public static CharSequence map(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(fileName + ": file is too large");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int i = 0; i < size; i++) {
+                if (buffer.get(i) < 0) return StandardCharsets.UTF_8.decode(buffer);
+            }
+            return new ByteCharSequence(buffer, 0, (int) size);
+        }
+    }
+
+    /**
+     * reads the input in chunks (without splitting it to lines)
+     */
+    public static CharSequence read(Reader reader) throws IOException {
+        StringBuilder builder = new StringBuilder(CHUNK_SIZE);
+        char[] chunk = new char[CHUNK_SIZE];
+        for (int count = reader.read(chunk); count != -1; count = reader.read(chunk)) {
+            builder.append(chunk, 0, count);
+        }
+        return builder;
+    }
+
+    public static boolean isBlank(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (!Character.isWhitespace(input.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * ASCII view of a (mapped) byte buffer
+     */
+    private static final class ByteCharSequence implements CharSequence {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+
+        ByteCharSequence(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+            return (char) buffer.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException(start + ", " + end);
+            }
+            return new ByteCharSequence(buffer, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + i);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
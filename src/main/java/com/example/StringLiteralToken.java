@@ -1,29 +1,62 @@
 package com.example;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * Text literals ("..." or '...'), a backslash escapes the next character and literals can not span lines.
+ *
+ * The literal is scanned character by character (linear in its length), nothing is allocated by match().
+ */
 public class StringLiteralToken extends CustomToken {
-    int size = 0;
-
     @Override
     public boolean check(String data) {
-        Pattern pattern = Pattern.compile("\"(.*?(\\\\\")*)*(\")|'(.*?(\\\\')*)*(')");
-        Matcher matcher = pattern.matcher(data);
-        if (!matcher.find()) {
-            return false;
-        }
-        String matched = matcher.group(0);
-        if (data.startsWith(matched)) {
-            size = matched.length();
-            return (matched.endsWith("\"") || matched.endsWith("'")) &&
-                    !(matched.endsWith("\\\"") || matched.endsWith("\\'"));
-        }
-        return false;
+        return match(data, 0) != -1;
     }
 
     @Override
     public String getText(String data) {
-        return data.substring(0, size);
+        return data.substring(0, Math.max(match(data, 0), 0));
+    }
+
+    @Override
+    public int match(CharSequence data, int offset) {
+        int end = end(data, offset);
+        return end == -1 ? -1 : end - offset;
+    }
+
+    /**
+     * returns the offset after the closing quote (or -1 if the literal is not terminated)
+     */
+    private static int end(CharSequence data, int offset) {
+        if (offset >= data.length() || !isQuote(data.charAt(offset))) return -1;
+        char quote = data.charAt(offset);
+        for (int i = offset + 1; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == quote) return i + 1;
+            if (isLineTerminator(c)) return -1;
+            if (c == '\\') {
+                i++;
+                if (i == data.length() || isLineTerminator(data.charAt(i))) return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isQuote(char c) {
+        return c == '"' || c == '\'';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    @Override
+    public boolean canStartWith(char c) {
+        return isQuote(c);
+    }
+
+    @Override
+    public boolean reportError(CharSequence data, int offset, int line) {
+        if (!isQuote(data.charAt(offset))) return false;
+        Errors.unterminatedStringLiteral(line);
+        return true;
     }
-}
\ No newline at end of file
+}
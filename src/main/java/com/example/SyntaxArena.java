@@ -0,0 +1,493 @@
+package com.example;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact representation of a syntax tree for very large programs: the nodes are indexes into int arrays (kind,
+ * line, index of the literal in the pool and the children) instead of an object per node.
+ *
+ * An arena is made from a SyntaxTree before it is generated (see of) and converted back with toTree, only the line
+ * numbers of the extra data are kept. The nodes are read with the methods of the arena or with a Cursor, none of them
+ * allocates. The children of every kind of node are (NONE for a missing value):
+ *  - Number, Text, Boolean, Null, This, Super, Continue, Break: none (the data of the values is the literal)
+ *  - List, New: the values (the class name of New is the literal)
+ *  - Map: the keys and the values (key, value, key, value...)
+ *  - Variable: the instance (the name is the literal)
+ *  - SetVariable (and DECLARE_VARIABLE for declarations): the instance and the value (the name is the literal)
+ *  - operators, Print, Return: the values
+ *  - If: the condition, the code and the else code (Blocks)
+ *  - While: the condition and the code
+ *  - Blocks: the blocks
+ *  - Function: the code (the literal is a String[] of the name and the arguments)
+ *  - CallFunction: the instance and the arguments (the name is the literal)
+ *  - Class: the content (the literal is a String[] of the name and the parents)
+ */
+public class SyntaxArena {
+    public static final int NONE = -1;
+
+    public static final int NUMBER = 0, TEXT = 1, BOOLEAN = 2, NULL = 3, LIST = 4, MAP = 5, VARIABLE = 6,
+            SET_VARIABLE = 7, DECLARE_VARIABLE = 8, ADD = 9, SUB = 10, MUL = 11, DIV = 12, MOD = 13, POW = 14,
+            EQUALS = 15, NOT_EQUALS = 16, LOOKS_EQUALS = 17, GREATER_THAN = 18, LESSER_THAN = 19,
+            GREATER_THAN_OR_EQUAL = 20, LESSER_THAN_OR_EQUAL = 21, AND = 22, OR = 23, BITWISE_AND = 24,
+            BITWISE_OR = 25, LEFT_SHIFT = 26, RIGHT_SHIFT = 27, XOR = 28, NEGATIVE = 29, NOT = 30, BITWISE_NOT = 31,
+            PRINT = 32, IF = 33, WHILE = 34, BLOCKS = 35, FUNCTION = 36, CALL_FUNCTION = 37, RETURN = 38,
+            CONTINUE = 39, BREAK = 40, CLASS = 41, NEW = 42, THIS = 43, SUPER = 44;
+
+    private static final HashMap<Class<?>, Integer> kindsOfClasses = new HashMap<>();
+
+    static {
+        Class<?>[] classes = {
+                SyntaxTree.Number.class, SyntaxTree.Text.class, SyntaxTree.Boolean.class, SyntaxTree.Null.class,
+                SyntaxTree.List.class, SyntaxTree.Map.class, SyntaxTree.Variable.class, SyntaxTree.SetVariable.class,
+                null, SyntaxTree.Add.class, SyntaxTree.Sub.class, SyntaxTree.Mul.class, SyntaxTree.Div.class,
+                SyntaxTree.Mod.class, SyntaxTree.Pow.class, SyntaxTree.Equals.class, SyntaxTree.NotEquals.class,
+                SyntaxTree.LooksEquals.class, SyntaxTree.GreaterThan.class, SyntaxTree.LesserThan.class,
+                SyntaxTree.GreaterThanOrEqual.class, SyntaxTree.LesserThanOrEqual.class, SyntaxTree.And.class,
+                SyntaxTree.Or.class, SyntaxTree.BitwiseAnd.class, SyntaxTree.BitwiseOr.class,
+                SyntaxTree.LeftShift.class, SyntaxTree.RightShift.class, SyntaxTree.Xor.class,
+                SyntaxTree.Negative.class, SyntaxTree.Not.class, SyntaxTree.BitwiseNot.class, SyntaxTree.Print.class,
+                SyntaxTree.If.class, SyntaxTree.While.class, SyntaxTree.Blocks.class, SyntaxTree.Function.class,
+                SyntaxTree.CallFunction.class, SyntaxTree.Return.class, SyntaxTree.Continue.class,
+                SyntaxTree.Break.class, SyntaxTree.Class.class, SyntaxTree.New.class, SyntaxTree.This.class,
+                SyntaxTree.Super.class
+        };
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] != null) kindsOfClasses.put(classes[i], i);
+        }
+    }
+
+    private int size = 0;
+    private int[] kinds = new int[64];
+    private int[] lines = new int[64];
+    private int[] literals = new int[64];
+    private int[] firstChildren = new int[64]; // index of the first child in children
+    private int[] childCounts = new int[64];
+    private int[] children = new int[64];
+    private int childrenSize = 0;
+    private final ArrayList<Object> pool = new ArrayList<>();
+    private HashMap<Object, Integer> poolIndexes = new HashMap<>(); // (only while the arena is made)
+    private int root = NONE;
+
+    private SyntaxArena() {
+    }
+
+    /**
+     * makes an arena of the tree of block
+     */
+    public static SyntaxArena of(SyntaxTree.Block block) {
+        SyntaxArena arena = new SyntaxArena();
+        arena.root = arena.add(block);
+        arena.poolIndexes = null;
+        arena.trim();
+        return arena;
+    }
+
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, size);
+        lines = Arrays.copyOf(lines, size);
+        literals = Arrays.copyOf(literals, size);
+        firstChildren = Arrays.copyOf(firstChildren, size);
+        childCounts = Arrays.copyOf(childCounts, size);
+        children = Arrays.copyOf(children, childrenSize);
+        pool.trimToSize();
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * number of the nodes (the nodes are 0 to size() - 1, the children are added before their parents)
+     */
+    public int size() {
+        return size;
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    /**
+     * line number of the node (or -1 if it is unknown)
+     */
+    public int line(int node) {
+        return lines[node];
+    }
+
+    /**
+     * the literal of the node (or null)
+     */
+    public Object literal(int node) {
+        return literals[node] == NONE ? null : pool.get(literals[node]);
+    }
+
+    public int childCount(int node) {
+        return childCounts[node];
+    }
+
+    /**
+     * the child at index of node (or NONE)
+     */
+    public int child(int node, int index) {
+        if (index < 0 || index >= childCounts[node]) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childCounts[node]);
+        }
+        return children[firstChildren[node] + index];
+    }
+
+    private int literal(Object literal) {
+        if (literal == null) return NONE;
+        if (literal instanceof Object[]) { // (arrays are not compared by their content)
+            pool.add(literal);
+            return pool.size() - 1;
+        }
+        Integer index = poolIndexes.get(literal);
+        if (index == null) {
+            index = pool.size();
+            pool.add(literal);
+            poolIndexes.put(literal, index);
+        }
+        return index;
+    }
+
+    private int add(int kind, int line, Object literal, int... nodes) {
+        if (size == kinds.length) {
+            int capacity = size * 2 + 16;
+            kinds = Arrays.copyOf(kinds, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+        }
+        if (childrenSize + nodes.length > children.length) {
+            children = Arrays.copyOf(children, Math.max(children.length * 2 + 16, childrenSize + nodes.length));
+        }
+        kinds[size] = kind;
+        lines[size] = line;
+        literals[size] = literal(literal);
+        firstChildren[size] = childrenSize;
+        childCounts[size] = nodes.length;
+        System.arraycopy(nodes, 0, children, childrenSize, nodes.length);
+        childrenSize += nodes.length;
+        return size++;
+    }
+
+    private int addAll(SyntaxTree.Block first, SyntaxTree.Block[] blocks, int[] nodes) {
+        int i = 0;
+        if (nodes.length > (blocks == null ? 0 : blocks.length)) nodes[i++] = add(first);
+        if (blocks != null) {
+            for (SyntaxTree.Block block : blocks) nodes[i++] = add(block);
+        }
+        return i;
+    }
+
+    private int add(SyntaxTree.Block block) {
+        if (block == null) return NONE;
+        Integer kind = kindsOfClasses.get(block.getClass());
+        if (kind == null && block instanceof SyntaxTree.Function) kind = FUNCTION; // (e.g. LazyFunctions.Function)
+        if (kind == null) throw new IllegalArgumentException("unsupported block: " + block.getClass().getName());
+        int line = block.getLineNumber();
+        switch (kind) {
+            case LIST:
+            case MAP: {
+                SyntaxTree.Value[] values = block.getValues();
+                int[] nodes = new int[values.length];
+                addAll(null, values, nodes);
+                return add(kind, line, null, nodes);
+            }
+            case VARIABLE: {
+                SyntaxTree.Variable variable = (SyntaxTree.Variable) block;
+                return add(kind, line, variable.getVariableName(), add(variable.getInstance()));
+            }
+            case SET_VARIABLE: {
+                SyntaxTree.SetVariable setVariable = (SyntaxTree.SetVariable) block;
+                int instance = add(setVariable.getInstance());
+                return add(setVariable.isDeclaration() ? DECLARE_VARIABLE : SET_VARIABLE, line,
+                        setVariable.getVariableName(), instance, add(setVariable.getValue()));
+            }
+            case PRINT:
+                return add(kind, line, null, add(((SyntaxTree.Print) block).getMessage()));
+            case RETURN:
+                return add(kind, line, null, add(((SyntaxTree.Return) block).getValue()));
+            case IF: {
+                SyntaxTree.If anIf = (SyntaxTree.If) block;
+                int condition = add(anIf.getCondition());
+                int code = add(anIf.getCode());
+                return add(kind, line, null, condition, code, add(anIf.getElseCode()));
+            }
+            case WHILE: {
+                SyntaxTree.While aWhile = (SyntaxTree.While) block;
+                int condition = add(aWhile.getCondition());
+                return add(kind, line, null, condition, add(aWhile.getCode()));
+            }
+            case BLOCKS: {
+                SyntaxTree.Block[] blocks = ((SyntaxTree.Blocks) block).getBlocks();
+                int[] nodes = new int[blocks.length];
+                addAll(null, blocks, nodes);
+                return add(kind, line, null, nodes);
+            }
+            case FUNCTION: {
+                SyntaxTree.Function function = (SyntaxTree.Function) block;
+                String[] args = function.getArgs();
+                String[] literal = new String[args.length + 1];
+                literal[0] = function.getFunctionName();
+                System.arraycopy(args, 0, literal, 1, args.length);
+                return add(kind, line, literal, add(function.getCode()));
+            }
+            case CALL_FUNCTION: {
+                SyntaxTree.CallFunction callFunction = (SyntaxTree.CallFunction) block;
+                SyntaxTree.Value[] args = callFunction.getArgs();
+                int[] nodes = new int[(args == null ? 0 : args.length) + 1];
+                addAll(callFunction.getInstance(), args, nodes);
+                return add(kind, line, callFunction.getFunctionName(), nodes);
+            }
+            case CLASS: {
+                SyntaxTree.Class aClass = (SyntaxTree.Class) block;
+                return add(kind, line, new String[] { aClass.getName(), aClass.getParent() },
+                        add(aClass.getContent()));
+            }
+            case NEW: {
+                SyntaxTree.New aNew = (SyntaxTree.New) block;
+                SyntaxTree.Value[] args = aNew.getArgs();
+                int[] nodes = new int[args == null ? 0 : args.length];
+                addAll(null, args, nodes);
+                return add(kind, line, aNew.getClassName(), nodes);
+            }
+            default:
+                if (block instanceof SyntaxTree.Operator) {
+                    SyntaxTree.Operator operator = (SyntaxTree.Operator) block;
+                    int value1 = add(operator.getValue1());
+                    return add(kind, line, null, value1, add(operator.getValue2()));
+                }
+                // (literals and blocks without children)
+                return add(kind, line, block instanceof SyntaxTree.Value ? ((SyntaxTree.Value) block).getData() : null);
+        }
+    }
+
+    /**
+     * makes the SyntaxTree of the arena
+     */
+    public SyntaxTree.Block toTree() {
+        return toTree(root);
+    }
+
+    private SyntaxTree.Value value(int node) {
+        return (SyntaxTree.Value) toTree(node);
+    }
+
+    private SyntaxTree.Value[] values(int node, int from) {
+        SyntaxTree.Value[] values = new SyntaxTree.Value[childCount(node) - from];
+        for (int i = 0; i < values.length; i++) values[i] = value(child(node, i + from));
+        return values;
+    }
+
+    private SyntaxTree.Blocks blocks(int node) {
+        return (SyntaxTree.Blocks) toTree(node);
+    }
+
+    /**
+     * makes the SyntaxTree of node
+     */
+    public SyntaxTree.Block toTree(int node) {
+        if (node == NONE) return null;
+        SyntaxTree.Block block;
+        Object literal = literal(node);
+        switch (kind(node)) {
+            case NUMBER:
+                block = new SyntaxTree.Number(BigDecimal.ZERO);
+                ((SyntaxTree.Value) block).setData(literal);
+                break;
+            case TEXT:
+                block = new SyntaxTree.Text(null);
+                ((SyntaxTree.Value) block).setData(literal);
+                break;
+            case BOOLEAN:
+                block = new SyntaxTree.Boolean(false);
+                ((SyntaxTree.Value) block).setData(literal);
+                break;
+            case NULL:
+                block = new SyntaxTree.Null();
+                break;
+            case LIST:
+                block = new SyntaxTree.List(values(node, 0));
+                break;
+            case MAP: {
+                HashMap<SyntaxTree.Value, SyntaxTree.Value> map = new HashMap<>();
+                for (int i = 0; i < childCount(node); i += 2) {
+                    map.put(value(child(node, i)), value(child(node, i + 1)));
+                }
+                block = new SyntaxTree.Map(map);
+                break;
+            }
+            case VARIABLE:
+                block = new SyntaxTree.Variable((String) literal).fromInstance(value(child(node, 0)));
+                break;
+            case SET_VARIABLE:
+            case DECLARE_VARIABLE:
+                block = new SyntaxTree.SetVariable((String) literal, value(child(node, 1)))
+                        .fromInstance(value(child(node, 0))).setDeclaration(kind(node) == DECLARE_VARIABLE);
+                break;
+            case PRINT:
+                block = new SyntaxTree.Print(value(child(node, 0)));
+                break;
+            case RETURN:
+                block = new SyntaxTree.Return(value(child(node, 0)));
+                break;
+            case IF: {
+                SyntaxTree.If anIf = new SyntaxTree.If(value(child(node, 0)), blocks(child(node, 1)));
+                if (child(node, 2) != NONE) anIf.setElseCode(blocks(child(node, 2)).getBlocks());
+                block = anIf;
+                break;
+            }
+            case WHILE:
+                block = new SyntaxTree.While(value(child(node, 0)), blocks(child(node, 1)));
+                break;
+            case BLOCKS: {
+                SyntaxTree.Block[] blocks = new SyntaxTree.Block[childCount(node)];
+                for (int i = 0; i < blocks.length; i++) blocks[i] = toTree(child(node, i));
+                block = new SyntaxTree.Blocks(blocks);
+                break;
+            }
+            case FUNCTION: {
+                String[] names = (String[]) literal;
+                block = new SyntaxTree.Function(names[0], blocks(child(node, 0)))
+                        .withArgs(Arrays.copyOfRange(names, 1, names.length));
+                break;
+            }
+            case CALL_FUNCTION:
+                block = new SyntaxTree.CallFunction((String) literal, values(node, 1))
+                        .fromInstance(value(child(node, 0)));
+                break;
+            case CONTINUE:
+                block = new SyntaxTree.Continue();
+                break;
+            case BREAK:
+                block = new SyntaxTree.Break();
+                break;
+            case CLASS: {
+                String[] names = (String[]) literal;
+                block = new SyntaxTree.Class(names[0], names[1], blocks(child(node, 0)).getBlocks());
+                break;
+            }
+            case NEW:
+                block = new SyntaxTree.New((String) literal).setArgs(values(node, 0));
+                break;
+            case THIS:
+                block = new SyntaxTree.This();
+                break;
+            case SUPER:
+                block = new SyntaxTree.Super();
+                break;
+            default:
+                block = operator(kind(node), value(child(node, 0)), value(child(node, 1)));
+        }
+        block.setLineNumber(line(node));
+        return block;
+    }
+
+    private static SyntaxTree.Operator operator(int kind, SyntaxTree.Value value1, SyntaxTree.Value value2) {
+        switch (kind) {
+            case ADD: return new SyntaxTree.Add(value1, value2);
+            case SUB: return new SyntaxTree.Sub(value1, value2);
+            case MUL: return new SyntaxTree.Mul(value1, value2);
+            case DIV: return new SyntaxTree.Div(value1, value2);
+            case MOD: return new SyntaxTree.Mod(value1, value2);
+            case POW: return new SyntaxTree.Pow(value1, value2);
+            case EQUALS: return new SyntaxTree.Equals(value1, value2);
+            case NOT_EQUALS: return new SyntaxTree.NotEquals(value1, value2);
+            case LOOKS_EQUALS: return new SyntaxTree.LooksEquals(value1, value2);
+            case GREATER_THAN: return new SyntaxTree.GreaterThan(value1, value2);
+            case LESSER_THAN: return new SyntaxTree.LesserThan(value1, value2);
+            case GREATER_THAN_OR_EQUAL: return new SyntaxTree.GreaterThanOrEqual(value1, value2);
+            case LESSER_THAN_OR_EQUAL: return new SyntaxTree.LesserThanOrEqual(value1, value2);
+            case AND: return new SyntaxTree.And(value1, value2);
+            case OR: return new SyntaxTree.Or(value1, value2);
+            case BITWISE_AND: return new SyntaxTree.BitwiseAnd(value1, value2);
+            case BITWISE_OR: return new SyntaxTree.BitwiseOr(value1, value2);
+            case LEFT_SHIFT: return new SyntaxTree.LeftShift(value1, value2);
+            case RIGHT_SHIFT: return new SyntaxTree.RightShift(value1, value2);
+            case XOR: return new SyntaxTree.Xor(value1, value2);
+            case NEGATIVE: return new SyntaxTree.Negative(value1, value2);
+            case NOT: return new SyntaxTree.Not(value1, value2);
+            case BITWISE_NOT: return new SyntaxTree.BitwiseNot(value1, value2);
+            default: throw new IllegalArgumentException("unknown kind: " + kind);
+        }
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A position in the arena (one object for a whole walk): enter moves to a child and exit moves back to the parent.
+     */
+    public final class Cursor {
+        private int node = root;
+        private int[] path = new int[32]; // the parents of node
+        private int depth = 0;
+
+        private Cursor() {
+        }
+
+        public int getNode() {
+            return node;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public int kind() {
+            return kinds[node];
+        }
+
+        public int line() {
+            return lines[node];
+        }
+
+        public Object literal() {
+            return SyntaxArena.this.literal(node);
+        }
+
+        public int childCount() {
+            return childCounts[node];
+        }
+
+        /**
+         * checks if the child at index is not missing (NONE)
+         */
+        public boolean hasChild(int index) {
+            return child(node, index) != NONE;
+        }
+
+        /**
+         * moves to the child at index (it must not be missing)
+         */
+        public void enter(int index) {
+            int child = child(node, index);
+            if (child == NONE) throw new IllegalStateException("missing child " + index);
+            if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+            path[depth++] = node;
+            node = child;
+        }
+
+        /**
+         * moves back to the parent
+         */
+        public void exit() {
+            if (depth == 0) throw new IllegalStateException("at the root");
+            node = path[--depth];
+        }
+
+        /**
+         * moves to node (as the root of the walk)
+         */
+        public void reset(int node) {
+            this.node = node;
+            depth = 0;
+        }
+    }
+}
@@ -14,7 +14,22 @@ public class SyntaxTree {
      * The smallest block of code
      */
     public static abstract class Block {
-        private final HashMap<Object, Object> extraData = new HashMap<>(); // defined to hold extra information (namespaces, ...)
+        // flags of the extra data (a flag is set if the value of its key is not null)
+        private static final int UNNEEDED_RESULT = 1, LOCALS = 2, CONDITION = 4, ELSE = 8;
+        private static final int SHARED = 16; // (not an extra data key, see isShared)
+        private static final int CONSTANT = 32, CONSTANT_TRUE = 64; // (the Boolean of "constant")
+
+        // the extra information (namespaces, ...) of the keys used by the compiler is kept in fields
+        private Block parent;
+        private int lineNumber = -1;
+        private Object id;
+        private Object inplace;
+        private String[] args;
+        private Block lastElseIf;
+        private Value folded;
+        private byte flags;
+        private HashMap<Object, Object> extraData = null; // other keys (made for the first one)
+
         public abstract Object evaluate(Generator generator);
         public Value[] getValues() {
             return null;
@@ -23,11 +38,154 @@ public class SyntaxTree {
             return null;
         }
 
+        /**
+         * number of the values (like getValues().length, the blocks of the compiler override getValueCount,
+         * getValueAt, getCodeBlockCount and getCodeBlockAt so they don't make arrays)
+         */
+        public int getValueCount() {
+            Value[] values = getValues();
+            return values == null ? 0 : values.length;
+        }
+
+        public Value getValueAt(int index) {
+            return getValues()[index];
+        }
+
+        public int getCodeBlockCount() {
+            Block[] blocks = getCodeBlocks();
+            return blocks == null ? 0 : blocks.length;
+        }
+
+        public Block getCodeBlockAt(int index) {
+            return getCodeBlocks()[index];
+        }
+
+        public Block getParentBlock() {
+            return parent;
+        }
+
+        public void setParentBlock(Block parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * line of the first token of the block (or -1 if it is unknown, see Compiler.setDebugInfo)
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public void setLineNumber(int lineNumber) {
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * checks if the result of this block is unneeded and should be popped out from the stack
+         */
+        public boolean isUnneededResult() {
+            return (flags & UNNEEDED_RESULT) != 0;
+        }
+
+        public void setUnneededResult(boolean unneededResult) {
+            setFlag(UNNEEDED_RESULT, unneededResult);
+        }
+
+        /**
+         * checks if the block may be used in more than one place of the tree (the literals and the operations of
+         * literals made by SyntaxTreeBinder are shared, see Parser.intern), the tools should not keep information of
+         * one place in a shared block
+         */
+        public boolean isShared() {
+            return (flags & SHARED) != 0;
+        }
+
+        public void setShared(boolean shared) {
+            setFlag(SHARED, shared);
+        }
+
+        private Object getFlag(int flag) {
+            return (flags & flag) != 0 ? true : null;
+        }
+
+        private void setFlag(int flag, boolean value) {
+            flags = (byte) (value ? flags | flag : flags & ~flag);
+        }
+
         public Object getExtraData(Object key) {
-            return extraData.get(key);
+            if (key instanceof String) {
+                switch ((String) key) {
+                    case "parent":
+                        return parent;
+                    case "lineNumber":
+                        return lineNumber == -1 ? null : lineNumber;
+                    case "id":
+                        return id;
+                    case "inplace":
+                        return inplace;
+                    case "args":
+                        return args;
+                    case "lastElseIf":
+                        return lastElseIf;
+                    case "unneededResult":
+                        return getFlag(UNNEEDED_RESULT);
+                    case "locals":
+                        return getFlag(LOCALS);
+                    case "condition":
+                        return getFlag(CONDITION);
+                    case "else":
+                        return getFlag(ELSE);
+                    case "folded":
+                        return folded;
+                    case "constant":
+                        return (flags & CONSTANT) != 0 ? (java.lang.Boolean) ((flags & CONSTANT_TRUE) != 0) : null;
+                }
+            }
+            return extraData == null ? null : extraData.get(key);
         }
 
         public void setExtraData(Object key, Object value) {
+            if (key instanceof String) {
+                switch ((String) key) {
+                    case "parent":
+                        parent = (Block) value;
+                        return;
+                    case "lineNumber":
+                        lineNumber = value == null ? -1 : (Integer) value;
+                        return;
+                    case "id":
+                        id = value;
+                        return;
+                    case "inplace":
+                        inplace = value;
+                        return;
+                    case "args":
+                        args = (String[]) value;
+                        return;
+                    case "lastElseIf":
+                        lastElseIf = (Block) value;
+                        return;
+                    case "unneededResult":
+                        setFlag(UNNEEDED_RESULT, value != null);
+                        return;
+                    case "locals":
+                        setFlag(LOCALS, value != null);
+                        return;
+                    case "condition":
+                        setFlag(CONDITION, value != null);
+                        return;
+                    case "else":
+                        setFlag(ELSE, value != null);
+                        return;
+                    case "folded":
+                        folded = (Value) value;
+                        return;
+                    case "constant":
+                        setFlag(CONSTANT, value != null);
+                        setFlag(CONSTANT_TRUE, java.lang.Boolean.TRUE.equals(value));
+                        return;
+                }
+            }
+            if (extraData == null) extraData = new HashMap<>();
             extraData.put(key, value);
         }
     }
@@ -57,7 +215,7 @@ public class SyntaxTree {
 
         @Override
         public Object evaluate(Generator generator) {
-            if (getExtraData("unneededResult") != null) {
+            if (isUnneededResult()) {
                 return generator.generatePop(this);
             } else {
                 return evaluateValue(generator);
@@ -79,6 +237,21 @@ public class SyntaxTree {
         public int hashCode() {
             return getData() != null ? getData().hashCode() : 0;
         }
+
+        /**
+         * hash of the structure of the value (see structurallyEquals)
+         */
+        public int structuralHashCode() {
+            return 31 * getClass().hashCode() + hashCode();
+        }
+
+        /**
+         * checks if value is the same kind of block with the same structure (unlike equals, which only compares the
+         * data, the operators compare their operands)
+         */
+        public boolean structurallyEquals(Value value) {
+            return value == this || value != null && value.getClass() == getClass() && equals(value);
+        }
     }
 
     /**
@@ -169,12 +342,26 @@ public class SyntaxTree {
             v = values.toArray(v);
             return v;
         }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int getValueCount() {
+            return ((ArrayList<Value>) getData()).size();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Value getValueAt(int index) {
+            return ((ArrayList<Value>) getData()).get(index);
+        }
     }
 
     /**
      * Class representing a Map (e.g. {}, {1: "one"})
      */
     public static class Map extends Value {
+        private Value[] values = null; // keys and values for getValueAt (made again if the size of the map changes)
+
         public Map(HashMap<Value, Value> values) {
             setData(values);
         }
@@ -195,6 +382,18 @@ public class SyntaxTree {
             }
             return res;
         }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int getValueCount() {
+            return ((HashMap<Value, Value>) getData()).size() * 2;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (values == null || values.length != getValueCount()) values = getValues();
+            return values[index];
+        }
     }
 
     /**
@@ -288,6 +487,17 @@ public class SyntaxTree {
         public Value[] getValues() {
             return new Value[] { value };
         }
+
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return value;
+        }
     }
 
     /**
@@ -296,6 +506,7 @@ public class SyntaxTree {
     public static abstract class Operator extends Value {
         private final Value value1;
         private final Value value2;
+        private int structuralHash = 0; // (0 if it is not computed yet)
         public Operator(Value value1, Value value2) {
             this.value1 = value1;
             this.value2 = value2;
@@ -315,6 +526,36 @@ public class SyntaxTree {
         public Value[] getValues() {
             return new Value[] { value1, value2 };
         }
+
+        @Override
+        public int getValueCount() {
+            return 2;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0 && index != 1) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 2");
+            return index == 0 ? value1 : value2;
+        }
+
+        @Override
+        public int structuralHashCode() {
+            if (structuralHash == 0) {
+                int hash = 31 * getClass().hashCode() + (value1 == null ? 0 : value1.structuralHashCode());
+                hash = 31 * hash + (value2 == null ? 0 : value2.structuralHashCode());
+                structuralHash = hash == 0 ? 1 : hash;
+            }
+            return structuralHash;
+        }
+
+        @Override
+        public boolean structurallyEquals(Value value) {
+            if (value == this) return true;
+            if (value == null || value.getClass() != getClass()) return false;
+            Operator operator = (Operator) value;
+            return (value1 == null ? operator.value1 == null : value1.structurallyEquals(operator.value1)) &&
+                    (value2 == null ? operator.value2 == null : value2.structurallyEquals(operator.value2));
+        }
     }
 
     public static class Add extends Operator {
@@ -550,6 +791,17 @@ public class SyntaxTree {
         public Value[] getValues() {
             return new Value[] { message };
         }
+
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return message;
+        }
     }
 
     public static class ControlFLowBlock extends Block {
@@ -619,6 +871,17 @@ public class SyntaxTree {
             return new Value[] { condition };
         }
 
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return condition;
+        }
+
         @Override
         public Block[] getCodeBlocks() {
             if (elseCode == null) {
@@ -627,6 +890,18 @@ public class SyntaxTree {
                 return new Block[] { getCode(), elseCode };
             }
         }
+
+        @Override
+        public int getCodeBlockCount() {
+            return elseCode == null ? 1 : 2;
+        }
+
+        @Override
+        public Block getCodeBlockAt(int index) {
+            if (index == 0) return getCode();
+            if (index == 1 && elseCode != null) return elseCode;
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + getCodeBlockCount());
+        }
     }
 
     /**
@@ -659,10 +934,32 @@ public class SyntaxTree {
             return new Value[] { condition };
         }
 
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return condition;
+        }
+
         @Override
         public Block[] getCodeBlocks() {
             return new Block[] { getCode() };
         }
+
+        @Override
+        public int getCodeBlockCount() {
+            return 1;
+        }
+
+        @Override
+        public Block getCodeBlockAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return getCode();
+        }
     }
 
     public static class Blocks extends Block {
@@ -694,19 +991,23 @@ public class SyntaxTree {
 
         @Override
         public Object evaluate(Generator generator) {
-            ArrayList<Object> code = new ArrayList<>();
-            for (Block i : blocks) {
-                code.addAll(Arrays.asList((Object[]) i.evaluate(generator)));
-            }
-            Object[] res = new Object[code.size()];
-            res = code.toArray(res);
-            return res;
+            return generator.generateBlocks(this);
         }
 
         @Override
         public Block[] getCodeBlocks() {
             return blocks;
         }
+
+        @Override
+        public int getCodeBlockCount() {
+            return blocks.length;
+        }
+
+        @Override
+        public Block getCodeBlockAt(int index) {
+            return blocks[index];
+        }
     }
 
     public static class Function extends ControlFLowBlock {
@@ -744,6 +1045,17 @@ public class SyntaxTree {
         public Block[] getCodeBlocks() {
             return new Block[] { getCode() };
         }
+
+        @Override
+        public int getCodeBlockCount() {
+            return 1;
+        }
+
+        @Override
+        public Block getCodeBlockAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return getCode();
+        }
     }
 
     public static class CallFunction extends Value {
@@ -787,6 +1099,16 @@ public class SyntaxTree {
         public Value[] getValues() {
             return args;
         }
+
+        @Override
+        public int getValueCount() {
+            return args == null ? 0 : args.length;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            return args[index];
+        }
     }
 
     public static class Return extends Block {
@@ -813,6 +1135,17 @@ public class SyntaxTree {
         public Value[] getValues() {
             return new Value[] { value };
         }
+
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public Value getValueAt(int index) {
+            if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            return value;
+        }
     }
 
     public static class Continue extends Block {
@@ -6,9 +6,14 @@ package com.example;
 public class SyntaxTreeBinder {
     private static final SyntaxTree.Value nullInstance = new SyntaxTree.Null();
 
+    static {
+        nullInstance.setShared(true);
+    }
+
     // NUM (e.g. 1, 2, 1234)
+    // (the literals and the operations of literals are shared, see Parser.intern)
     public static SyntaxTree.Block numberExpression(Parser parser) {
-        return new SyntaxTree.Number(parser.getTokens().get(0).getText());
+        return parser.internLiteral(parser.getTokens().get(0).getText(), SyntaxTree.Number::new);
     }
 
     // null
@@ -18,65 +23,69 @@ public class SyntaxTreeBinder {
 
     // true | false
     public static SyntaxTree.Block boolExpression(Parser parser) {
-        return new SyntaxTree.Boolean(parser.getTokens().get(0).getText().equals("true"));
+        return parser.internLiteral(parser.getTokens().get(0).getText(),
+                text -> new SyntaxTree.Boolean(text.equals("true")));
     }
 
     // "Hello!"
     public static SyntaxTree.Block textExpression(Parser parser) {
-        String text = parser.getTokens().get(0).getText();
-        return new SyntaxTree.Text(text.substring(1, text.length() - 1));
+        return parser.internLiteral(parser.getTokens().get(0).getText(),
+                text -> new SyntaxTree.Text(text.substring(1, text.length() - 1)));
     }
 
     // 10 ** 2
     public static SyntaxTree.Block exponentiation(Parser parser) {
-        return new SyntaxTree.Pow((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+        return parser.intern(new SyntaxTree.Pow((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
     }
 
     // 10 * 2, 10 / 2, 10 % 2
     public static SyntaxTree.Block operationsWithPriority1(Parser parser) {
         if (parser.getTokens().get(1).getText().equals("*")) {
-            return new SyntaxTree.Mul((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                    (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+            return parser.intern(new SyntaxTree.Mul((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                    (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
         } else if (parser.getTokens().get(1).getText().equals("%")) {
-            return new SyntaxTree.Mod((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                    (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+            return parser.intern(new SyntaxTree.Mod((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                    (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
         }
-        return new SyntaxTree.Div((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+        return parser.intern(new SyntaxTree.Div((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
     }
 
     // 10 + 2, 10 - 2
     public static SyntaxTree.Block operationsWithPriority2(Parser parser) {
         if (parser.getTokens().get(1).getText().equals("+")) {
-            return new SyntaxTree.Add((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                    (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+            return parser.intern(new SyntaxTree.Add((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                    (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
         }
-        return new SyntaxTree.Sub((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+        return parser.intern(new SyntaxTree.Sub((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
     }
 
     // ==, <, > , <=, >=, !=
     public static SyntaxTree.Block comparisonOperators(Parser parser) {
         switch (parser.getTokens().get(1).getText()) {
             case "==":
-                return new SyntaxTree.Equals((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.Equals((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case ">":
-                return new SyntaxTree.GreaterThan((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.GreaterThan(
+                        (SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "<":
-                return new SyntaxTree.LesserThan((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.LesserThan((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "<=":
-                return new SyntaxTree.LesserThanOrEqual((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.LesserThanOrEqual(
+                        (SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "!=":
-                return new SyntaxTree.NotEquals((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.NotEquals((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             default:
-                return new SyntaxTree.GreaterThanOrEqual((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.GreaterThanOrEqual(
+                        (SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
         }
     }
 
@@ -84,28 +93,28 @@ public class SyntaxTreeBinder {
     public static SyntaxTree.Block operationsWithPriority3(Parser parser) {
         switch (parser.getTokens().get(1).getText()) {
             case ">>":
-                return new SyntaxTree.RightShift((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.RightShift((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "<<":
-                return new SyntaxTree.LeftShift((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.LeftShift((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "^":
-                return new SyntaxTree.Xor((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.Xor((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "&":
-                return new SyntaxTree.BitwiseAnd((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.BitwiseAnd((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "and":
             case "&&":
-                return new SyntaxTree.And((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.And((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             case "or":
             case "||":
-                return new SyntaxTree.Or((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.Or((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
             default:
-                return new SyntaxTree.BitwiseOr((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
-                        (SyntaxTree.Value) parser.getTokens().get(2).getObject());
+                return parser.intern(new SyntaxTree.BitwiseOr((SyntaxTree.Value) parser.getTokens().get(0).getObject(),
+                        (SyntaxTree.Value) parser.getTokens().get(2).getObject()));
         }
     }
 
@@ -123,18 +132,20 @@ public class SyntaxTreeBinder {
         parser.purge("SEMICOLON");
         parser.purge("NEWLINE");
         // In order to prevent having a lot of nested, unnecessary blocks
+        // (the blocks are added at once, addCodeBlock copies the array)
         if (parser.getTokens().get(0).getObject() instanceof SyntaxTree.Blocks) {
+            SyntaxTree.Block[] blocks = new SyntaxTree.Block[parser.getTokens().size() - 1];
             for (int i = 1; i < parser.getTokens().size(); i++) {
-                ((SyntaxTree.Blocks) parser.getTokens().get(0).getObject())
-                        .addCodeBlock(parser.getTokens().get(i).getObject());
+                blocks[i - 1] = parser.getTokens().get(i).getObject();
             }
+            ((SyntaxTree.Blocks) parser.getTokens().get(0).getObject()).addCodeBlock(blocks);
             return parser.getTokens().get(0).getObject();
         }
-        SyntaxTree.Blocks blocks = new SyntaxTree.Blocks();
-        for (Token token : parser.getTokens()) {
-            blocks.addCodeBlock(token.getObject());
+        SyntaxTree.Block[] blocks = new SyntaxTree.Block[parser.getTokens().size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = parser.getTokens().get(i).getObject();
         }
-        return blocks;
+        return new SyntaxTree.Blocks(blocks);
     }
 
     public static SyntaxTree.Block ifStatement(Parser parser) {
@@ -247,7 +258,10 @@ public class SyntaxTreeBinder {
     }
 
     public static SyntaxTree.Block valueAsProgram(Parser parser) {
-        return parser.getTokens().get(0).getObject();
+        SyntaxTree.Block value = parser.getTokens().get(0).getObject();
+        // (the generator marks the values used as programs, so a shared value is copied)
+        if (value != null && value.isShared()) return SyntaxArena.of(value).toTree();
+        return value;
     }
 
     public static SyntaxTree.Block returnStatement(Parser parser) {
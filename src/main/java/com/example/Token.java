@@ -2,9 +2,14 @@ package com.example;
 
 public class Token {
 	private String name;
+	private int kind = -1; // see Parser.kindOf
 	private String text = "";
 	private SyntaxTree.Block object = null;
 	private int line;
+	// position of the token in the source (text is read from here when it's needed)
+	private CharSequence source = null;
+	private int start = -1;
+	private int end = -1;
 
 	public Token(String name, String text) {
 		this.text = text;
@@ -17,6 +22,18 @@ public class Token {
 		this.line = line;
 	}
 
+	/**
+	 * creates a token that refers to a span of the source (the text is materialized on the first getText() call)
+	 */
+	public Token(String name, CharSequence source, int start, int end, int line) {
+		this.name = name;
+		this.text = null;
+		this.source = source;
+		this.start = start;
+		this.end = end;
+		this.line = line;
+	}
+
 	public Token() {
 		name = "NONE";
 	}
@@ -27,22 +44,65 @@ public class Token {
 
 	public void setName(String name) {
 		this.name = name;
+		kind = -1;
+	}
+
+	/**
+	 * the name of the token coded as an int (used by Parser)
+	 */
+	int getKind() {
+		if (kind == -1) kind = Parser.kindOf(name);
+		return kind;
 	}
 
 	public void setText(String text) {
 		this.text = text;
+		this.source = null;
 	}
 
 	public String getText() {
+		if (text == null && source != null) {
+			text = source.subSequence(start, end).toString();
+		}
 		return text;
 	}
-	
+
+	public CharSequence getSource() {
+		return source;
+	}
+
+	/**
+	 * offset of the first character of this token in the source (or -1 if the token is not from the source)
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * length of the text (without materializing it)
+	 */
+	public int length() {
+		if (text == null && source != null) return end - start;
+		return text == null ? 0 : text.length();
+	}
+
 	public SyntaxTree.Block getObject() {
 		return object;
 	}
- 
+
 	public void setObject(SyntaxTree.Block object) {
-		if (object != null) object.setExtraData("lineNumber", line);
+		setObject(object, true);
+	}
+
+	/**
+	 * sets the object (and its line number if lineNumber is true, see Compiler.setDebugInfo)
+	 */
+	void setObject(SyntaxTree.Block object, boolean lineNumber) {
+		if (object != null && lineNumber) object.setLineNumber(line);
 		this.object = object;
 	}
 
@@ -56,6 +116,6 @@ public class Token {
 
 	@Override
 	public String toString() {
-		return name + " : " + text;
+		return name + " : " + getText();
 	}
 }
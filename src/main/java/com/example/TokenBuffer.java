@@ -0,0 +1,233 @@
+package com.example;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Gap buffer of the tokens of a Parser (tokens and their kinds), replacing a few tokens with one near the last edit
+ * only moves the tokens between the two edits.
+ *
+ * Tokens removed with Parser.remove are kept in the gap where they were removed: before(i) lists the removed tokens
+ * between token i - 1 and token i (before(size()) lists the ones after the last token).
+ *
+ * Every token also has an origin, the index of its first token in the initial list, which doesn't change when the
+ * tokens around it are replaced (so the tokens stay sorted by their origins). The origins of the tokens of every kind
+ * are indexed, so the tokens that can start a match are found without looking at the others.
+ */
+final class TokenBuffer extends AbstractList<Token> implements TokenPattern.Input {
+    private Token[] tokens;
+    private int[] kinds;
+    private int[] origins;
+    private Object[] before; // ArrayList<Token> or null
+    private int gapStart;
+    private int gapEnd;
+    private ArrayList<Token> trailing = null;
+    private int edits = 0; // tokens added or removed (not replaced)
+    private BitSet[] byKind = null; // origins of the tokens of every kind (made by the first call to next)
+
+    TokenBuffer(ArrayList<Token> list) {
+        int capacity = list.size() + 16;
+        tokens = new Token[capacity];
+        kinds = new int[capacity];
+        origins = new int[capacity];
+        before = new Object[capacity];
+        for (int i = 0; i < list.size(); i++) {
+            tokens[i] = list.get(i);
+            kinds[i] = list.get(i).getKind();
+            origins[i] = i;
+        }
+        gapStart = list.size();
+        gapEnd = capacity;
+    }
+
+    /**
+     * copies the tokens [start, end) of buffer (and the tokens removed between them)
+     */
+    TokenBuffer(TokenBuffer buffer, int start, int end) {
+        this(new ArrayList<>(buffer.subList(start, end)));
+        for (int i = start + 1; i < end; i++) {
+            ArrayList<Token> list = buffer.before(i);
+            if (list != null) before[i - start] = new ArrayList<>(list);
+        }
+    }
+
+    private int physical(int index) {
+        return index < gapStart ? index : index + gapEnd - gapStart;
+    }
+
+    @Override
+    public int size() {
+        return tokens.length - (gapEnd - gapStart);
+    }
+
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        return tokens[physical(index)];
+    }
+
+    @Override
+    public int kindAt(int index) {
+        return index < size() ? kinds[physical(index)] : -1;
+    }
+
+    private void index(int kind, int origin, boolean add) {
+        if (byKind == null) return;
+        if (kind >= byKind.length) byKind = Arrays.copyOf(byKind, kind + 16);
+        if (byKind[kind] == null) byKind[kind] = new BitSet();
+        byKind[kind].set(origin, add);
+    }
+
+    /**
+     * index of the first token at or after index that can start a match of pattern (or size() if there is none)
+     */
+    int next(TokenPattern pattern, int index) {
+        if (index >= size()) return size();
+        if (byKind == null) {
+            byKind = new BitSet[0];
+            for (int i = 0; i < size(); i++) index(kindAt(i), originAt(i), true);
+        }
+        int origin = originAt(index);
+        int next = Integer.MAX_VALUE;
+        for (int kind : pattern.getFirstKinds()) {
+            if (kind >= byKind.length || byKind[kind] == null) continue;
+            int found = byKind[kind].nextSetBit(origin);
+            if (found != -1 && found < next) next = found;
+        }
+        return next == Integer.MAX_VALUE ? size() : indexOfOrigin(next);
+    }
+
+    int originAt(int index) {
+        return origins[physical(index)];
+    }
+
+    /**
+     * index of the token covering origin (the last token with an origin that is not greater than it)
+     */
+    int indexOfOrigin(int origin) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (originAt(middle) <= origin) low = middle + 1;
+            else high = middle;
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    /**
+     * number of tokens added or removed so far (replace doesn't count)
+     */
+    int getEdits() {
+        return edits;
+    }
+
+    @SuppressWarnings("unchecked")
+    ArrayList<Token> before(int index) {
+        if (index == size()) return trailing;
+        return (ArrayList<Token>) before[physical(index)];
+    }
+
+    private void setBefore(int index, ArrayList<Token> list) {
+        if (index == size()) trailing = list;
+        else before[physical(index)] = list;
+    }
+
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(tokens, index, tokens, gapEnd - count, count);
+            System.arraycopy(kinds, index, kinds, gapEnd - count, count);
+            System.arraycopy(origins, index, origins, gapEnd - count, count);
+            System.arraycopy(before, index, before, gapEnd - count, count);
+            gapStart = index;
+            gapEnd -= count;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(tokens, gapEnd, tokens, gapStart, count);
+            System.arraycopy(kinds, gapEnd, kinds, gapStart, count);
+            System.arraycopy(origins, gapEnd, origins, gapStart, count);
+            System.arraycopy(before, gapEnd, before, gapStart, count);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    /**
+     * replaces tokens [start, end) with token, the removed tokens before start and between the replaced tokens are
+     * moved before the new token
+     */
+    void replace(int start, int end, Token token) {
+        ArrayList<Token> merged = null;
+        for (int i = start; i < end; i++) {
+            ArrayList<Token> list = before(i);
+            if (list == null || list.isEmpty()) continue;
+            if (merged == null) merged = new ArrayList<>(list);
+            else merged.addAll(list);
+        }
+        for (int i = start; i < end; i++) index(kindAt(i), originAt(i), false);
+        moveGap(end);
+        gapStart = start + 1;
+        tokens[start] = token;
+        kinds[start] = token.getKind();
+        before[start] = merged;
+        index(kinds[start], origins[start], true);
+        Arrays.fill(tokens, gapStart, end, null);
+        Arrays.fill(before, gapStart, end, null);
+    }
+
+    /**
+     * removes a token (and keeps it in the gap if keep is true)
+     */
+    Token remove(int index, boolean keep) {
+        Token token = get(index);
+        ArrayList<Token> list = before(index);
+        ArrayList<Token> next = before(index + 1);
+        if (keep) {
+            if (list == null) list = new ArrayList<>();
+            list.add(token);
+        }
+        if (list != null && next != null) list.addAll(next);
+        else if (list == null) list = next;
+        index(kindAt(index), originAt(index), false);
+        moveGap(index + 1);
+        gapStart = index;
+        tokens[index] = null;
+        before[index] = null;
+        setBefore(index, list);
+        edits++;
+        return token;
+    }
+
+    @Override
+    public Token remove(int index) {
+        return remove(index, false);
+    }
+
+    @Override
+    public boolean add(Token token) {
+        int origin = size() == 0 ? 0 : originAt(size() - 1) + 1;
+        moveGap(size());
+        if (gapStart == gapEnd) {
+            int capacity = tokens.length * 2 + 16;
+            int tail = tokens.length - gapEnd;
+            tokens = Arrays.copyOf(tokens, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            origins = Arrays.copyOf(origins, capacity);
+            before = Arrays.copyOf(before, capacity);
+            gapEnd = capacity - tail;
+        }
+        tokens[gapStart] = token;
+        kinds[gapStart] = token.getKind();
+        origins[gapStart] = origin;
+        index(kinds[gapStart], origin, true);
+        before[gapStart] = trailing;
+        trailing = null;
+        gapStart++;
+        edits++;
+        modCount++;
+        return true;
+    }
+}
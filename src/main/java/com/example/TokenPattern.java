@@ -0,0 +1,385 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A model of Parser.replace (e.g. "IF expression LEFT_BRACE (program )?RIGHT_BRACE") compiled to a small program over
+ * token kinds (see Parser.kindOf).
+ *
+ * The model syntax is the subset of regular expressions used by the rules: token names, groups, alternatives
+ * and the ?, * and + quantifiers (greedy, or lazy when followed by ?). Spaces only separate names.
+ * Matches are chosen like the regex engine chose them on the map of token names: alternatives and quantifiers
+ * are tried in priority order and the first successful path wins.
+ */
+final class TokenPattern {
+    interface Input {
+        /**
+         * kind of the token at index (or -1 after the last token)
+         */
+        int kindAt(int index);
+    }
+
+    private static final int SYMBOL = 0;
+    private static final int SPLIT = 1; // continue at arg1, on failure at arg2
+    private static final int JUMP = 2;
+    private static final int MATCH = 3;
+
+    private final String model;
+    private final int[] ops;
+    private final int[] args1;
+    private final int[] args2;
+    private final int[] firstKinds;
+    private final int[] kinds;
+    private final int maxLength;
+
+    private TokenPattern(String model, int[] ops, int[] args1, int[] args2, int maxLength) {
+        this.model = model;
+        this.maxLength = maxLength;
+        this.ops = ops;
+        this.args1 = args1;
+        this.args2 = args2;
+        boolean[] visited = new boolean[ops.length];
+        ArrayList<Integer> first = new ArrayList<>();
+        collectFirst(0, visited, first);
+        firstKinds = toArray(first);
+        ArrayList<Integer> all = new ArrayList<>();
+        for (int pc = 0; pc < ops.length; pc++) {
+            if (ops[pc] == SYMBOL && !all.contains(args1[pc])) all.add(args1[pc]);
+        }
+        kinds = toArray(all);
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        Arrays.sort(array);
+        return array;
+    }
+
+    private void collectFirst(int pc, boolean[] visited, ArrayList<Integer> first) {
+        while (!visited[pc]) {
+            visited[pc] = true;
+            switch (ops[pc]) {
+                case SYMBOL:
+                    if (!first.contains(args1[pc])) first.add(args1[pc]);
+                    return;
+                case SPLIT:
+                    collectFirst(args1[pc], visited, first);
+                    pc = args2[pc];
+                    break;
+                case JUMP:
+                    pc = args1[pc];
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    public static TokenPattern compile(String model) {
+        ModelCompiler compiler = new ModelCompiler(model);
+        Node node = compiler.alternatives();
+        if (compiler.position != model.length()) throw compiler.error();
+        compiler.emit(node);
+        compiler.add(MATCH, 0, 0);
+        return new TokenPattern(model, Arrays.copyOf(compiler.ops, compiler.size),
+                Arrays.copyOf(compiler.args1, compiler.size), Arrays.copyOf(compiler.args2, compiler.size),
+                node.maxLength());
+    }
+
+    /**
+     * checks if a match can start with a token of this kind
+     */
+    public boolean canStartWith(int kind) {
+        return Arrays.binarySearch(firstKinds, kind) >= 0;
+    }
+
+    /**
+     * kinds of the tokens a match can start with (sorted, shared: it must not be changed)
+     */
+    int[] getFirstKinds() {
+        return firstKinds;
+    }
+
+    /**
+     * the maximum number of tokens in a match (Integer.MAX_VALUE if the model has * or +)
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * checks if the model uses tokens of this kind
+     */
+    public boolean uses(int kind) {
+        return Arrays.binarySearch(kinds, kind) >= 0;
+    }
+
+    /**
+     * kinds of all the tokens used in the model (sorted)
+     */
+    public int[] getKinds() {
+        return kinds.clone();
+    }
+
+    @Override
+    public String toString() {
+        return model;
+    }
+
+    public Matcher matcher(Input input) {
+        return new Matcher(input);
+    }
+
+    final class Matcher {
+        private final Input input;
+        private int[] stack = new int[32];
+        private int reach;
+
+        private Matcher(Input input) {
+            this.input = input;
+        }
+
+        /**
+         * index of the last token examined by the last call to match (a later change after it can't change the result)
+         */
+        public int reach() {
+            return reach;
+        }
+
+        /**
+         * returns the end (exclusive) of the match starting at start (or -1 if there is no match)
+         */
+        public int match(int start) {
+            int top = 0;
+            int pc = 0;
+            int position = start;
+            reach = start;
+            while (true) {
+                boolean failed = false;
+                switch (ops[pc]) {
+                    case SYMBOL:
+                        if (position > reach) reach = position;
+                        if (input.kindAt(position) == args1[pc]) {
+                            position++;
+                            pc++;
+                        } else failed = true;
+                        break;
+                    case SPLIT:
+                        if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                        stack[top++] = args2[pc];
+                        stack[top++] = position;
+                        pc = args1[pc];
+                        break;
+                    case JUMP:
+                        pc = args1[pc];
+                        break;
+                    default: // MATCH (models never match an empty list of tokens)
+                        if (position > start) return position;
+                        failed = true;
+                }
+                if (failed) {
+                    if (top == 0) return -1;
+                    position = stack[--top];
+                    pc = stack[--top];
+                }
+            }
+        }
+    }
+
+    private static final class Node {
+        static final int SYMBOL = 0, SEQUENCE = 1, ALTERNATIVES = 2, OPTIONAL = 3, STAR = 4, PLUS = 5;
+
+        final int type;
+        final int kind;
+        final boolean greedy;
+        final ArrayList<Node> children = new ArrayList<>();
+
+        Node(int type, int kind, boolean greedy) {
+            this.type = type;
+            this.kind = kind;
+            this.greedy = greedy;
+        }
+
+        boolean canBeEmpty() {
+            switch (type) {
+                case SYMBOL:
+                    return false;
+                case SEQUENCE:
+                    for (Node child : children) {
+                        if (!child.canBeEmpty()) return false;
+                    }
+                    return true;
+                case ALTERNATIVES:
+                    for (Node child : children) {
+                        if (child.canBeEmpty()) return true;
+                    }
+                    return false;
+                case PLUS:
+                    return children.get(0).canBeEmpty();
+                default:
+                    return true;
+            }
+        }
+
+        int maxLength() {
+            switch (type) {
+                case SYMBOL:
+                    return 1;
+                case SEQUENCE: {
+                    long length = 0;
+                    for (Node child : children) length += child.maxLength();
+                    return (int) Math.min(length, Integer.MAX_VALUE);
+                }
+                case ALTERNATIVES: {
+                    int length = 0;
+                    for (Node child : children) length = Math.max(length, child.maxLength());
+                    return length;
+                }
+                case OPTIONAL:
+                    return children.get(0).maxLength();
+                default:
+                    return Integer.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * parses a model and generates the program
+     */
+    private static final class ModelCompiler {
+        private final String model;
+        private int position = 0;
+        private int[] ops = new int[16];
+        private int[] args1 = new int[16];
+        private int[] args2 = new int[16];
+        private int size = 0;
+
+        ModelCompiler(String model) {
+            this.model = model;
+        }
+
+        IllegalArgumentException error() {
+            return new IllegalArgumentException("invalid model \"" + model + "\" at " + position);
+        }
+
+        private char peek() {
+            while (position < model.length() && model.charAt(position) == ' ') position++;
+            return position < model.length() ? model.charAt(position) : 0;
+        }
+
+        Node alternatives() {
+            Node node = new Node(Node.ALTERNATIVES, 0, true);
+            node.children.add(sequence());
+            while (peek() == '|') {
+                position++;
+                node.children.add(sequence());
+            }
+            return node.children.size() == 1 ? node.children.get(0) : node;
+        }
+
+        private Node sequence() {
+            Node node = new Node(Node.SEQUENCE, 0, true);
+            for (char c = peek(); c != 0 && c != '|' && c != ')'; c = peek()) {
+                Node atom;
+                if (c == '(') {
+                    position++;
+                    atom = alternatives();
+                    if (peek() != ')') throw error();
+                    position++;
+                } else if (Character.isLetter(c) || c == '_') {
+                    int start = position;
+                    while (position < model.length() &&
+                            (Character.isLetterOrDigit(model.charAt(position)) || model.charAt(position) == '_')) {
+                        position++;
+                    }
+                    atom = new Node(Node.SYMBOL, Parser.kindOf(model.substring(start, position)), true);
+                } else throw error();
+                atom = quantifier(atom);
+                node.children.add(atom);
+            }
+            return node;
+        }
+
+        private Node quantifier(Node atom) {
+            // quantifiers follow the atom directly (like in regular expressions)
+            while (position < model.length() && "?*+".indexOf(model.charAt(position)) != -1) {
+                char c = model.charAt(position++);
+                boolean greedy = true;
+                if (position < model.length() && model.charAt(position) == '?') {
+                    greedy = false;
+                    position++;
+                }
+                Node node = new Node(c == '?' ? Node.OPTIONAL : c == '*' ? Node.STAR : Node.PLUS, 0, greedy);
+                if (c != '?' && atom.canBeEmpty()) {
+                    throw new IllegalArgumentException("invalid model \"" + model + "\": repeated group can be empty");
+                }
+                node.children.add(atom);
+                atom = node;
+            }
+            return atom;
+        }
+
+        int add(int op, int arg1, int arg2) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                args1 = Arrays.copyOf(args1, size * 2);
+                args2 = Arrays.copyOf(args2, size * 2);
+            }
+            ops[size] = op;
+            args1[size] = arg1;
+            args2[size] = arg2;
+            return size++;
+        }
+
+        private void split(int pc, int preferred, int other, boolean greedy) {
+            args1[pc] = greedy ? preferred : other;
+            args2[pc] = greedy ? other : preferred;
+        }
+
+        void emit(Node node) {
+            switch (node.type) {
+                case Node.SYMBOL:
+                    add(SYMBOL, node.kind, 0);
+                    break;
+                case Node.SEQUENCE:
+                    for (Node child : node.children) emit(child);
+                    break;
+                case Node.ALTERNATIVES: {
+                    ArrayList<Integer> jumps = new ArrayList<>();
+                    for (int i = 0; i < node.children.size(); i++) {
+                        int split = i == node.children.size() - 1 ? -1 : add(SPLIT, 0, 0);
+                        if (split != -1) args1[split] = size;
+                        emit(node.children.get(i));
+                        if (split != -1) {
+                            jumps.add(add(JUMP, 0, 0));
+                            args2[split] = size;
+                        }
+                    }
+                    for (int jump : jumps) args1[jump] = size;
+                    break;
+                }
+                case Node.OPTIONAL: {
+                    int split = add(SPLIT, 0, 0);
+                    emit(node.children.get(0));
+                    split(split, split + 1, size, node.greedy);
+                    break;
+                }
+                case Node.STAR: {
+                    int split = add(SPLIT, 0, 0);
+                    emit(node.children.get(0));
+                    add(JUMP, split, 0);
+                    split(split, split + 1, size, node.greedy);
+                    break;
+                }
+                default: { // PLUS
+                    int start = size;
+                    emit(node.children.get(0));
+                    int split = add(SPLIT, 0, 0);
+                    split(split, start, size, node.greedy);
+                }
+            }
+        }
+    }
+}
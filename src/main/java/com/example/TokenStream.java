@@ -0,0 +1,155 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact result of the lexer: parallel int arrays of kind (index of the rule in the LexerSpec), start offset,
+ * length and line (the line number at the end of the token, like Token.getLine()).
+ *
+ * Token texts are not copied; they are read from the source only when they are needed (see Token.getText()).
+ */
+public final class TokenStream {
+    /**
+     * kind of the last token when the lexer was not able to match the rest of the input (only in ignoreErrors mode)
+     */
+    public static final int NONE = -1;
+
+    private final CharSequence source;
+    private final LexerSpec spec;
+    private int[] kinds;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size;
+    private int errorOffset = -1;
+
+    public TokenStream(CharSequence source, LexerSpec spec) {
+        this(source, spec, 16);
+    }
+
+    public TokenStream(CharSequence source, LexerSpec spec, int capacity) {
+        this.source = source;
+        this.spec = spec;
+        capacity = Math.max(capacity, 4);
+        kinds = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > kinds.length) {
+            capacity = Math.max(capacity, kinds.length + (kinds.length >> 1));
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+    }
+
+    public void add(int kind, int start, int length, int line) {
+        ensureCapacity(size + 1);
+        kinds[size] = kind;
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * appends the tokens [from, to) of another stream, adding startOffset to their starts and lineOffset to their lines
+     */
+    void addAll(TokenStream tokens, int from, int to, int startOffset, int lineOffset) {
+        int count = to - from;
+        ensureCapacity(size + count);
+        System.arraycopy(tokens.kinds, from, kinds, size, count);
+        System.arraycopy(tokens.lengths, from, lengths, size, count);
+        for (int i = 0; i < count; i++) {
+            starts[size + i] = tokens.starts[from + i] + startOffset;
+            lines[size + i] = tokens.lines[from + i] + lineOffset;
+        }
+        size += count;
+    }
+
+    /**
+     * returns the index of the token starting at offset (or -1)
+     */
+    int indexOf(int offset) {
+        int i = Arrays.binarySearch(starts, 0, size, offset);
+        return i < 0 ? -1 : i;
+    }
+
+    public CharSequence getSource() {
+        return source;
+    }
+
+    public LexerSpec getSpec() {
+        return spec;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int i) {
+        return kinds[i];
+    }
+
+    public String getName(int i) {
+        return kinds[i] == NONE ? "NONE" : spec.getName(kinds[i]);
+    }
+
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    public int getEnd(int i) {
+        return starts[i] + lengths[i];
+    }
+
+    public int getLine(int i) {
+        return lines[i];
+    }
+
+    /**
+     * materializes the text of a single token
+     */
+    public String getText(int i) {
+        return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+    }
+
+    /**
+     * offset of the input that could not be matched by any rule (or -1)
+     */
+    public int getErrorOffset() {
+        return errorOffset;
+    }
+
+    void setErrorOffset(int errorOffset) {
+        this.errorOffset = errorOffset;
+    }
+
+    public boolean hasError() {
+        return errorOffset != -1;
+    }
+
+    public Token getToken(int i) {
+        return new Token(getName(i), source, starts[i], starts[i] + lengths[i], lines[i]);
+    }
+
+    /**
+     * returns the tokens as a list (texts are still materialized lazily)
+     */
+    public ArrayList<Token> toTokens() {
+        ArrayList<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tokens.add(getToken(i));
+        }
+        return tokens;
+    }
+}
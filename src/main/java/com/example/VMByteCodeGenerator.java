@@ -2,10 +2,25 @@ package com.example;
 
 import java.util.*;
 
-import static com.example.Utils.copyArrays;
-
+/**
+ * Generates the code of VMWrapper.
+ *
+ * The generate methods write to one ByteCodeBuffer (so the code of a block is not copied to the code of every block
+ * around it), the outermost one returns the code of the buffer as an Object[].
+ */
 public class VMByteCodeGenerator extends Generator {
     private boolean recording = false;
+    private ByteCodeBuffer buffer = null;
+    private int depth = 0; // number of the running generate methods
+    // labels of continue and break in the recorded loop (or -1 outside of recorded loops)
+    private int continueLabel = -1;
+    private int breakLabel = -1;
+    private PeepholeOptimizer peepholeOptimizer = null;
+    private boolean shortCircuit = true;
+    private boolean jumpLoops = false;
+    // name of the function of the loops out of the recorded blocks (see setJumpLoops), a keyword so no other function
+    // has the name
+    private static final String LOOP_FUNCTION = "while";
     private Object[] OPCODE_POP = new Object[] { VMWrapper.POP };
     private static final Object[] empty = new Object[0];
 
@@ -33,88 +48,161 @@ public class VMByteCodeGenerator extends Generator {
         return (ScopeTool) tools.get(0);
     }
 
-    private int sizeof(Object[] code) {
-        int size = code.length;
-        if (recording) return size;
-        for (Object i : code) {
-            if (!(i instanceof Byte)) size--;
-        }
-        return size;
+    public PeepholeOptimizer getPeepholeOptimizer() {
+        return peepholeOptimizer;
+    }
+
+    /**
+     * sets the optimizer of the generated code (or null to not optimize it)
+     */
+    public void setPeepholeOptimizer(PeepholeOptimizer peepholeOptimizer) {
+        this.peepholeOptimizer = peepholeOptimizer;
+    }
+
+    public boolean isShortCircuit() {
+        return shortCircuit;
+    }
+
+    /**
+     * sets if the second operand of && and || is skipped when the first one decides the result (or AND and OR run
+     * with both operands)
+     */
+    public void setShortCircuit(boolean shortCircuit) {
+        this.shortCircuit = shortCircuit;
+    }
+
+    public boolean isJumpLoops() {
+        return jumpLoops;
+    }
+
+    /**
+     * sets if the loops out of the recorded blocks are made of SKIP and SKIPIF like the other loops (the loop is
+     * recorded once in a function that is called right away) or run by WHILE (which runs the recorded code and
+     * condition of the loop on every iteration), the loops using locals are always run by WHILE
+     */
+    public void setJumpLoops(boolean jumpLoops) {
+        this.jumpLoops = jumpLoops;
+    }
+
+    @Override
+    public Object generate(SyntaxTree.Block block) {
+        // (in case the last generation threw an exception)
+        depth = 0;
+        continueLabel = -1;
+        breakLabel = -1;
+        return super.generate(block);
+    }
+
+    /**
+     * like generate, but returns the buffer of the code (or null if there was an error)
+     */
+    public ByteCodeBuffer generateBuffer(SyntaxTree.Block block) {
+        ByteCodeBuffer buffer = new ByteCodeBuffer();
+        this.buffer = buffer;
+        depth = 1;
+        continueLabel = -1;
+        breakLabel = -1;
+        Object code = super.generate(block);
+        depth = 0;
+        this.buffer = null;
+        if (code != buffer) return null;
+        return peepholeOptimizer == null ? buffer : peepholeOptimizer.optimize(buffer);
     }
 
-    private Object[] generateOperator(SyntaxTree.Operator operator, byte opCode, Byte inplaceOpCode) {
-        Object[] value2 = (Object[]) operator.getValue2().evaluate(this);
+    /**
+     * starts a generate method (the first one makes the buffer)
+     */
+    private ByteCodeBuffer begin() {
+        if (depth++ == 0) buffer = new ByteCodeBuffer();
+        return buffer;
+    }
+
+    /**
+     * ends a generate method, the outermost one returns the code of the buffer and the others the buffer
+     */
+    private Object end() {
+        if (--depth != 0) return buffer;
+        if (peepholeOptimizer != null) buffer = peepholeOptimizer.optimize(buffer);
+        Object[] code = buffer.toArray();
+        buffer = null;
+        return code;
+    }
+
+    private Object generateOperator(SyntaxTree.Operator operator, byte opCode, Byte inplaceOpCode) {
+        ByteCodeBuffer buffer = begin();
+        Object folded = operator.getExtraData("folded"); // (see ConstantFoldingTool)
+        if (folded != null) {
+            ((SyntaxTree.Value) folded).evaluateValue(this);
+            return end();
+        }
         if (inplaceOpCode != null && operator.getExtraData("inplace") != null) {
-            Object[] res = new Object[value2.length + 2];
-            copyArrays(res, 0, value2, new Object[] { inplaceOpCode, operator.getExtraData("inplace") });
-            return res;
+            operator.getValue2().evaluate(this);
+            buffer.emit(inplaceOpCode, operator.getExtraData("inplace"));
+            return end();
         }
-        Object[] value1 = (Object[]) operator.getValue1().evaluate(this);
-        Object[] res = new Object[value1.length + value2.length + 1];
-        System.arraycopy(value1, 0, res, 0, value1.length);
-        System.arraycopy(value2, 0, res, value1.length, value2.length);
-        res[res.length - 1] = opCode;
-        return res;
+        operator.getValue1().evaluate(this);
+        operator.getValue2().evaluate(this);
+        buffer.emit(opCode);
+        return end();
+    }
+
+    private Object generateConstant(Object value) {
+        begin().emit(VMWrapper.PUT, value);
+        return end();
     }
 
     @Override
     public Object generateNumber(SyntaxTree.Number number) {
-        return new Object[]{VMWrapper.PUT, number.getData()};
+        return generateConstant(number.getData());
     }
 
     @Override
     public Object generateText(SyntaxTree.Text text) {
-        return new Object[]{VMWrapper.PUT, text + ""};
+        return generateConstant(text + "");
     }
 
     @Override
     public Object generateBoolean(SyntaxTree.Boolean bool) {
-        return new Object[]{VMWrapper.PUT, bool.getData()};
+        return generateConstant(bool.getData());
     }
 
     @Override
     public Object generateNull() {
-        return new Object[]{VMWrapper.PUT, null};
+        return generateConstant(null);
     }
 
     @Override
     public Object generateList(SyntaxTree.List list) {
-        ArrayList<Object> res = new ArrayList<>();
+        ByteCodeBuffer buffer = begin();
         ArrayList<SyntaxTree.Value> values = (ArrayList<SyntaxTree.Value>) list.getData();
-        for (SyntaxTree.Value value : values) {
-            res.addAll(0, Arrays.asList((Object[]) value.evaluate(this)));
+        // (the last item is pushed first)
+        for (int i = values.size() - 1; i >= 0; i--) {
+            values.get(i).evaluate(this);
         }
-        res.add(VMWrapper.CREATE_ARR);
-        res.add(values.size());
-
-        Object[] finalResult = new Object[res.size()];
-        finalResult = res.toArray(finalResult);
-        return finalResult;
+        buffer.emit(VMWrapper.CREATE_ARR, values.size());
+        return end();
     }
 
     @Override
     public Object generateMap(SyntaxTree.Map map) {
-        ArrayList<Object> res = new ArrayList<>();
+        ByteCodeBuffer buffer = begin();
         HashMap<SyntaxTree.Value, SyntaxTree.Value> values = (HashMap<SyntaxTree.Value, SyntaxTree.Value>) map.getData();
         for (Map.Entry<SyntaxTree.Value, SyntaxTree.Value> value : values.entrySet()) {
-            res.addAll(Arrays.asList((Object[]) value.getKey().evaluate(this)));
-            res.addAll(Arrays.asList((Object[]) value.getValue().evaluate(this)));
+            value.getKey().evaluate(this);
+            value.getValue().evaluate(this);
         }
-        res.add(VMWrapper.CREATE_MAP);
-        res.add(values.size());
-
-        Object[] finalResult = new Object[res.size()];
-        finalResult = res.toArray(finalResult);
-        return finalResult;
+        buffer.emit(VMWrapper.CREATE_MAP, values.size());
+        return end();
     }
 
     @Override
     public Object generateVariable(SyntaxTree.Variable variable) {
+        ByteCodeBuffer buffer = begin();
         if (variable.getInstance() != null) {
-            Object[] instance = (Object[]) variable.getInstance().evaluate(this);
-            Object[] res = new Object[instance.length + 3];
-            copyArrays(res, 0, instance, new Object[] { VMWrapper.PUT, variable.getVariableName(), VMWrapper.GET });
-            return res;
+            variable.getInstance().evaluate(this);
+            buffer.emit(VMWrapper.PUT, variable.getVariableName());
+            buffer.emit(VMWrapper.GET);
+            return end();
         }
         Object variableName = variable.getExtraData("id");
         if (variableName == null) {
@@ -122,32 +210,31 @@ public class VMByteCodeGenerator extends Generator {
         } else if ((int) variableName < 0) {
             // negative numbers are for function parameters
             // func f(a, b) -> access to "a" will be represented using -1 and "b" using -2
-            return new Object[] { VMWrapper.GETPARAM, - ((int) variableName) };
+            buffer.emit(VMWrapper.GETPARAM, - ((int) variableName));
+            return end();
         }
-        return new Object[] { VMWrapper.GETVAR, variableName };
+        buffer.emit(VMWrapper.GETVAR, variableName);
+        return end();
     }
 
     @Override
     public Object generateSetVariable(SyntaxTree.SetVariable setVariable) {
+        ByteCodeBuffer buffer = begin();
         if (setVariable.getInstance() != null) {
-            Object[] instance = (Object[]) setVariable.getInstance().evaluate(this);
-            Object[] value = (Object[]) setVariable.getValue().evaluate(this);
-            Object[] res = new Object[instance.length + value.length + 4];
-            copyArrays(res, 0, instance, new Object[] { VMWrapper.PUT, setVariable.getVariableName() },
-                    value, new Object[] { VMWrapper.SET, VMWrapper.POP });
-            return res;
+            setVariable.getInstance().evaluate(this);
+            buffer.emit(VMWrapper.PUT, setVariable.getVariableName());
+            setVariable.getValue().evaluate(this);
+            buffer.emit(VMWrapper.SET);
+            buffer.emit(VMWrapper.POP);
+            return end();
         }
         Object variableName = setVariable.getExtraData("id");
         if (variableName == null) variableName = setVariable.getVariableName();
-        Object[] data = (Object[]) setVariable.getValue().evaluate(this);
-        boolean inplace = setVariable.getValue().getExtraData("inplace") != null;
-        Object[] res = new Object[data.length + (inplace? 0:2)];
-        System.arraycopy(data, 0, res, 0, data.length);
-        if (!inplace) {
-            res[data.length] = VMWrapper.SETVAR;
-            res[data.length + 1] = variableName;
+        setVariable.getValue().evaluate(this);
+        if (setVariable.getValue().getExtraData("inplace") == null) {
+            buffer.emit(VMWrapper.SETVAR, variableName);
         }
-        return res;
+        return end();
     }
 
     @Override
@@ -215,14 +302,44 @@ public class VMByteCodeGenerator extends Generator {
         return generateOperator(lesserThanOrEqual, VMWrapper.LE, null);
     }
 
+    /**
+     * a && b and a || b, the second operand is skipped if the first one decides the result (which is a boolean):
+     * a SKIPIFN <decided> b SKIPIFN <decided> PUT true SKIP <end> decided: PUT false end: (SKIPIF and the other
+     * booleans for ||)
+     */
+    private Object generateShortCircuit(SyntaxTree.Operator operator, boolean isAnd) {
+        ByteCodeBuffer buffer = begin();
+        Object folded = operator.getExtraData("folded"); // (see ConstantFoldingTool)
+        if (folded != null) {
+            ((SyntaxTree.Value) folded).evaluateValue(this);
+            return end();
+        }
+        byte skip = isAnd ? VMWrapper.SKIPIFN : VMWrapper.SKIPIF;
+        // (the jumps in the recorded blocks count the operands too)
+        int decided = buffer.newLabel(recording);
+        int endLabel = buffer.newLabel(recording);
+        operator.getValue1().evaluate(this);
+        buffer.emitJump(skip, decided);
+        operator.getValue2().evaluate(this);
+        buffer.emitJump(skip, decided);
+        buffer.emit(VMWrapper.PUT, (Object) isAnd);
+        buffer.emitJump(VMWrapper.SKIP, endLabel);
+        buffer.placeLabel(decided);
+        buffer.emit(VMWrapper.PUT, (Object) !isAnd);
+        buffer.placeLabel(endLabel);
+        return end();
+    }
+
     @Override
     public Object generateAnd(SyntaxTree.And and) {
-        return generateOperator(and, VMWrapper.AND, null);
+        if (!shortCircuit) return generateOperator(and, VMWrapper.AND, null);
+        return generateShortCircuit(and, true);
     }
 
     @Override
     public Object generateOr(SyntaxTree.Or or) {
-        return generateOperator(or, VMWrapper.OR, null);
+        if (!shortCircuit) return generateOperator(or, VMWrapper.OR, null);
+        return generateShortCircuit(or, false);
     }
 
     @Override
@@ -267,193 +384,250 @@ public class VMByteCodeGenerator extends Generator {
 
     @Override
     public Object generateIf(SyntaxTree.If anIf) {
-        Object[] code = (Object[]) anIf.getCode().evaluate(this);
-        Object[] condition = (Object[]) anIf.getCondition().evaluate(this);
-        Object[] elseCode = null;
-        int elseSize = 0;
-        if (anIf.getElseCode() != null) {
-            elseCode = (Object[]) anIf.getElseCode().evaluate(this);
-            elseSize = elseCode.length + 2;
+        ByteCodeBuffer buffer = begin();
+        Object constant = anIf.getExtraData("constant"); // (see ConstantFoldingTool)
+        if (constant != null) {
+            if ((boolean) constant) anIf.getCode().evaluate(this);
+            else if (anIf.getElseCode() != null) anIf.getElseCode().evaluate(this);
+            return end();
         }
-
-        Object[] res = new Object[code.length + condition.length + 2 + elseSize];
-        copyArrays(res, 0, condition, new Object[]{VMWrapper.SKIPIFN, sizeof(code)}, code);
+        anIf.getCondition().evaluate(this);
+        // (the jumps in the recorded blocks count the operands too)
+        int elseLabel = buffer.newLabel(recording);
+        buffer.emitJump(VMWrapper.SKIPIFN, elseLabel);
+        anIf.getCode().evaluate(this);
         if (anIf.getElseCode() != null) {
-            res[condition.length + 1] = ((int) res[condition.length + 1]) + 1;
-            copyArrays(res, condition.length + 2 + code.length, new Object[]{VMWrapper.SKIP, sizeof(elseCode)}, elseCode);
+            int endLabel = buffer.newLabel(recording);
+            buffer.emitJump(VMWrapper.SKIP, endLabel);
+            buffer.placeLabel(elseLabel);
+            anIf.getElseCode().evaluate(this);
+            buffer.placeLabel(endLabel);
+        } else {
+            buffer.placeLabel(elseLabel);
         }
-        return res;
+        return end();
     }
 
     @Override
     public Object generatePrint(SyntaxTree.Print print) {
-        Object[] message = (Object[]) print.getMessage().evaluate(this);
-        Object[] res = new Object[message.length + 2];
-        copyArrays(res, 0, message);
-        res[message.length] = VMWrapper.CALLFUNC;
-        res[message.length + 1] = null;
-        return res;
+        ByteCodeBuffer buffer = begin();
+        print.getMessage().evaluate(this);
+        buffer.emit(VMWrapper.CALLFUNC, (Object) null);
+        return end();
     }
 
     @Override
     public Object generateWhile(SyntaxTree.While aWhile) {
+        ByteCodeBuffer buffer = begin();
+        if (Boolean.FALSE.equals(aWhile.getExtraData("constant"))) return end(); // (never runs)
         boolean isInRecordBlock = recording;
+        int outerContinueLabel = continueLabel;
+        int outerBreakLabel = breakLabel;
         recording = true;
-        Object[] code = (Object[]) aWhile.getCode().evaluate(this);
-        Object[] condition = (Object[]) aWhile.getCondition().evaluate(this);
-        if (!isInRecordBlock) recording = false;
-        Object[] res;
         if (isInRecordBlock) {
-            res = new Object[condition.length + code.length + 4];
-            copyArrays(res, 0, new Object[] { VMWrapper.SKIP, sizeof(code) } , code, condition,
-                    new Object[] { VMWrapper.SKIPIF, -(sizeof(code) + sizeof(condition) + 2) });
-            for (int i = 0; i < res.length; i++) {
-                if (Objects.equals(res[i], VMWrapper.CONTINUE)) {
-                    res[i] = VMWrapper.SKIP;
-                    res[i + 1] = res.length - i - condition.length - 4;
-                } else if (Objects.equals(res[i], VMWrapper.BREAK)) {
-                    res[i] = VMWrapper.SKIP;
-                    res[i + 1] = res.length - i - 2;
-                }
-            }
+            generateJumpLoop(aWhile);
+        } else if (jumpLoops && !usesLocals(aWhile)) {
+            // (the loop is recorded once as a function that is called right away)
+            buffer.emit(VMWrapper.REC);
+            generateJumpLoop(aWhile);
+            buffer.emit(VMWrapper.END);
+            buffer.emit(VMWrapper.PUT, 0);
+            buffer.emit(VMWrapper.MKFUNC, LOOP_FUNCTION);
+            buffer.emit(VMWrapper.CALLFUNC, LOOP_FUNCTION);
+            buffer.emit(VMWrapper.POP);
         } else {
-            res = new Object[condition.length + code.length + 5];
-            copyArrays(res, 0, new Object[] { VMWrapper.REC }, code, new Object[] { VMWrapper.END },
-                    new Object[] { VMWrapper.REC }, condition, new Object[] { VMWrapper.END, VMWrapper.WHILE });
+            // (continue and break of this loop are run by the VM)
+            continueLabel = -1;
+            breakLabel = -1;
+            buffer.emit(VMWrapper.REC);
+            aWhile.getCode().evaluate(this);
+            buffer.emit(VMWrapper.END);
+            buffer.emit(VMWrapper.REC);
+            aWhile.getCondition().evaluate(this);
+            buffer.emit(VMWrapper.END);
+            buffer.emit(VMWrapper.WHILE);
         }
-        return res;
+        recording = isInRecordBlock;
+        continueLabel = outerContinueLabel;
+        breakLabel = outerBreakLabel;
+        return end();
+    }
+
+    /**
+     * checks if block uses locals (the variables with IDs of ScopeTool are in the frame of the code around the loop,
+     * the function of a jump loop has a frame of its own, only the globals are found by their names in it)
+     */
+    private static boolean usesLocals(SyntaxTree.Block block) {
+        if (block.getExtraData("id") != null) return true;
+        if (block instanceof SyntaxTree.Function) return false; // (its locals are in its own frame)
+        int count = block.getCodeBlockCount();
+        for (int i = 0; i < count; i++) {
+            if (usesLocals(block.getCodeBlockAt(i))) return true;
+        }
+        count = block.getValueCount();
+        for (int i = 0; i < count; i++) {
+            if (usesLocals(block.getValueAt(i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * SKIP <condition> code condition SKIPIF <code> (continue skips to the condition and break to the end), the loop
+     * must be in a recorded block
+     */
+    private void generateJumpLoop(SyntaxTree.While aWhile) {
+        int codeLabel = buffer.newLabel(true);
+        continueLabel = buffer.newLabel(true);
+        breakLabel = buffer.newLabel(true);
+        buffer.emitJump(VMWrapper.SKIP, continueLabel);
+        buffer.placeLabel(codeLabel);
+        aWhile.getCode().evaluate(this);
+        buffer.placeLabel(continueLabel);
+        aWhile.getCondition().evaluate(this);
+        buffer.emitJump(VMWrapper.SKIPIF, codeLabel);
+        buffer.placeLabel(breakLabel);
     }
 
     public Object generateFree(ScopeTool.Free free) {
         Object variableName = free.getExtraData("id");
         if (variableName == null) variableName = free.getVariableName();
-        return new Object[] { VMWrapper.DELVAR, variableName };
+        begin().emit(VMWrapper.DELVAR, variableName);
+        return end();
     }
 
     @Override
     public Object generatePop(SyntaxTree.Value value) {
-        Object[] val = (Object[]) value.evaluateValue(this);
-        Object[] res = new Object[val.length + OPCODE_POP.length];
-        copyArrays(res, 0, val, OPCODE_POP);
-        return res;
+        ByteCodeBuffer buffer = begin();
+        value.evaluateValue(this);
+        buffer.append(OPCODE_POP);
+        return end();
     }
 
     @Override
     public Object generateFunc(SyntaxTree.Function function) {
+        ByteCodeBuffer buffer = begin();
+        // (a function may be declared in a recorded loop, the code after it is still recorded)
+        boolean isInRecordBlock = recording;
+        int outerContinueLabel = continueLabel;
+        int outerBreakLabel = breakLabel;
         recording = true;
-        Object[] code = (Object[]) function.getCode().evaluate(this);
-        Object[] res = new Object[code.length + 6];
-        copyArrays(res, 0, new Object[] { VMWrapper.REC }, code, new Object[] { VMWrapper.END },
-                new Object[] { VMWrapper.PUT, function.getArgs().length, VMWrapper.MKFUNC, function.getFunctionName() });
-        recording = false;
-        return res;
+        continueLabel = -1;
+        breakLabel = -1;
+        buffer.emit(VMWrapper.REC);
+        function.getCode().evaluate(this);
+        buffer.emit(VMWrapper.END);
+        buffer.emit(VMWrapper.PUT, function.getArgs().length);
+        buffer.emit(VMWrapper.MKFUNC, function.getFunctionName());
+        recording = isInRecordBlock;
+        continueLabel = outerContinueLabel;
+        breakLabel = outerBreakLabel;
+        return end();
     }
 
     @Override
     public Object generateCall(SyntaxTree.CallFunction callFunction) {
-        ArrayList<Object> res = new ArrayList<>();
-        SyntaxTree.Value[] values = callFunction.getArgs();
-        for (SyntaxTree.Value value : values) {
-            res.addAll(Arrays.asList((Object[]) value.evaluate(this)));
+        ByteCodeBuffer buffer = begin();
+        for (SyntaxTree.Value value : callFunction.getArgs()) {
+            value.evaluate(this);
         }
         if (callFunction.getInstance() != null) {
-            res.addAll(Arrays.asList((Object[]) callFunction.getInstance().evaluate(this)));
-            res.add(VMWrapper.CALLMETHOD);
-            res.add("#" + callFunction.getFunctionName());
+            callFunction.getInstance().evaluate(this);
+            buffer.emit(VMWrapper.CALLMETHOD, "#" + callFunction.getFunctionName());
         } else {
-            res.add(VMWrapper.CALLFUNC);
-            res.add(callFunction.getFunctionName());
+            buffer.emit(VMWrapper.CALLFUNC, callFunction.getFunctionName());
         }
-
-        Object[] finalResult = new Object[res.size()];
-        finalResult = res.toArray(finalResult);
-        return finalResult;
+        return end();
     }
 
     @Override
     public Object generateReturn(SyntaxTree.Return aReturn) {
-        Object[] value = (Object[]) aReturn.getValue().evaluate(this);
-        Object[] res = new Object[value.length + 1];
-        copyArrays(res, 0, value, new Byte[] { VMWrapper.RETURN });
-        return res;
+        ByteCodeBuffer buffer = begin();
+        aReturn.getValue().evaluate(this);
+        buffer.emit(VMWrapper.RETURN);
+        return end();
     }
 
     @Override
     public Object generateContinue(SyntaxTree.Continue aContinue) {
-        if (recording) return new Object[] { VMWrapper.CONTINUE, null }; // will be replaced with SKIP <N>
-        return new Object[] { VMWrapper.CONTINUE };
+        if (continueLabel != -1) begin().emitJump(VMWrapper.SKIP, continueLabel);
+        else if (recording) begin().emit(VMWrapper.CONTINUE, (Object) null);
+        else begin().emit(VMWrapper.CONTINUE);
+        return end();
     }
 
     @Override
     public Object generateBreak(SyntaxTree.Break aBreak) {
-        if (recording) return new Object[] { VMWrapper.BREAK, null }; // will be replaced with SKIP <N>
-        return new Object[] { VMWrapper.BREAK };
+        if (breakLabel != -1) begin().emitJump(VMWrapper.SKIP, breakLabel);
+        else if (recording) begin().emit(VMWrapper.BREAK, (Object) null);
+        else begin().emit(VMWrapper.BREAK);
+        return end();
+    }
+
+    @Override
+    public Object generateBlocks(SyntaxTree.Blocks blocks) {
+        begin();
+        for (SyntaxTree.Block block : blocks.getBlocks()) {
+            block.evaluate(this);
+        }
+        return end();
     }
 
     @Override
     public Object generateClass(SyntaxTree.Class aClass) {
-        ArrayList<Object> res = new ArrayList<>();
+        ByteCodeBuffer buffer = begin();
         int items = 0;
         for (SyntaxTree.Block block : aClass.getContent().getBlocks()) {
             if (block instanceof SyntaxTree.SetVariable && ((SyntaxTree.SetVariable) block).isDeclaration()) {
                 items++;
-                res.add(VMWrapper.PUT);
-                res.add(((SyntaxTree.SetVariable) block).getVariableName());
-                res.addAll(Arrays.asList((Object[]) ((SyntaxTree.SetVariable) block).getValue().evaluate(this)));
+                buffer.emit(VMWrapper.PUT, ((SyntaxTree.SetVariable) block).getVariableName());
+                ((SyntaxTree.SetVariable) block).getValue().evaluate(this);
             } else if (block instanceof SyntaxTree.Function) {
                 items++;
                 String tmp = ("#" + ((SyntaxTree.Function) block).getFunctionName())
                         .replace("#<init>", "<init>");
                 ((SyntaxTree.Function) block).setFunctionName(aClass.getName() + "#" +
                         ((SyntaxTree.Function) block).getFunctionName());
-                res.addAll(Arrays.asList((Object[]) block.evaluate(this)));
-                res.add(VMWrapper.PUT);
-                res.add(tmp);
-                res.add(VMWrapper.GETPTRTOLASTFUNC);
+                block.evaluate(this);
+                buffer.emit(VMWrapper.PUT, tmp);
+                buffer.emit(VMWrapper.GETPTRTOLASTFUNC);
             }
         }
         if (aClass.getParent() != null) {
             items++;
-            res.add(VMWrapper.PUT);
-            res.add(false);
-            res.add(VMWrapper.PUT);
-            res.add(aClass.getParent());
+            buffer.emit(VMWrapper.PUT, false);
+            buffer.emit(VMWrapper.PUT, aClass.getParent());
         }
 
-        res.add(VMWrapper.CREATE_MAP);
-        res.add(items);
-        res.add(VMWrapper.CREATE_CLASS);
-        res.add(aClass.getName());
-        Object[] finalResult = new Object[res.size()];
-        finalResult = res.toArray(finalResult);
-        return finalResult;
+        buffer.emit(VMWrapper.CREATE_MAP, items);
+        buffer.emit(VMWrapper.CREATE_CLASS, aClass.getName());
+        return end();
     }
 
     @Override
     public Object generateNew(SyntaxTree.New aNew) {
-        ArrayList<Object> res = new ArrayList<>();
+        ByteCodeBuffer buffer = begin();
         SyntaxTree.Value[] values = aNew.getArgs();
         if (values != null) {
             for (SyntaxTree.Value value : values) {
-                res.addAll(Arrays.asList((Object[]) value.evaluate(this)));
+                value.evaluate(this);
             }
         }
-
-        res.add(VMWrapper.CREATE_INSTANCE);
-        res.add(aNew.getClassName());
-
-        Object[] finalResult = new Object[res.size()];
-        finalResult = res.toArray(finalResult);
-        return finalResult;
+        buffer.emit(VMWrapper.CREATE_INSTANCE, aNew.getClassName());
+        return end();
     }
 
     @Override
     public Object generateThis(SyntaxTree.This aThis) {
-        return new Object[] { VMWrapper.THIS };
+        begin().emit(VMWrapper.THIS);
+        return end();
     }
 
     @Override
     public Object generateSuper(SyntaxTree.Super aSuper) {
-        return new Object[] { VMWrapper.THIS, VMWrapper.PUT, true, VMWrapper.GET };
+        ByteCodeBuffer buffer = begin();
+        buffer.emit(VMWrapper.THIS);
+        buffer.emit(VMWrapper.PUT, true);
+        buffer.emit(VMWrapper.GET);
+        return end();
     }
-}
\ No newline at end of file
+}
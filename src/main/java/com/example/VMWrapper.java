@@ -92,6 +92,15 @@ public class VMWrapper {
      * Run a single opcode on VM which its data is a double type (e.g. PUT NUM1)
      */
     public static native void runDouble(int vm, int opcode, int type, double data);
+    /**
+     * Set an item of the constant pool of the VM (the pool is used by runConstant)
+     */
+    private static native void setConstant(int vm, int index, int type, String data);
+    private static native void setConstantDouble(int vm, int index, int type, double data);
+    /**
+     * Run a single opcode on VM which its data is an item of the constant pool
+     */
+    private static native void runConstant(int vm, int opcode, int index);
 
     /**
      * Disassemble a single opcode
@@ -211,6 +220,37 @@ public class VMWrapper {
         }
     }
 
+    /**
+     * Run the code of a ByteCodeBuffer on vm, the constants are sent to the VM once (and the opcodes refer to them) so
+     * the texts and the numbers used many times are not converted again
+     */
+    public void run(ByteCodeBuffer code) {
+        for (int i = 0; i < code.getConstantCount(); i++) {
+            Object constant = code.getConstant(i);
+            if (constant == null) {
+                setConstant(vm, i, 0, null);
+            } else if (constant instanceof Boolean) {
+                setConstant(vm, i, (Boolean) constant ? 1 : 2, null);
+            } else if (constant instanceof Double) {
+                setConstantDouble(vm, i, 3, (double) constant);
+            } else if (constant instanceof BigDecimal) {
+                setConstant(vm, i, 4, constant + "");
+            } else {
+                setConstant(vm, i, 5, constant + "");
+            }
+        }
+        for (int i = 0; i < code.size(); i++) {
+            byte opcode = code.getOpcode(i);
+            if (!needsParameter(opcode) || code.getOperandKind(i) == ByteCodeBuffer.NONE) {
+                run(vm, opcode, 0, null);
+            } else if (code.getOperandKind(i) == ByteCodeBuffer.INT) {
+                runDouble(vm, opcode, 3, (int) code.getOperand(i));
+            } else {
+                runConstant(vm, opcode, code.getConstantIndex(i));
+            }
+        }
+    }
+
     /**
      * Disassemble a set of opcodes
      */
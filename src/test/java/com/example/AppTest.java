@@ -3,6 +3,14 @@ package com.example;
 import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import static org.junit.Assert.*;
@@ -125,7 +133,7 @@ public class AppTest
     }
 
     /**
-     * Test if variable is freed at the end of the scope
+     * Test if variable is freed at the end of the scope (only if the code doesn't end there)
      */
     @Test
     public void testNamespace() {
@@ -140,24 +148,73 @@ public class AppTest
                 )
         );
         assertArrayEquals(new Object[] {
-                VMWrapper.PUT, true, VMWrapper.SKIPIFN, 6, VMWrapper.PUT, "Hello", VMWrapper.SETVAR, 0,
-                VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null, VMWrapper.DELVAR, 0, VMWrapper.SKIP, 5,
-                VMWrapper.PUT, "Oops.", VMWrapper.SETVAR, 0, VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null,
-                VMWrapper.DELVAR, 0
+                VMWrapper.PUT, true, VMWrapper.SKIPIFN, 5, VMWrapper.PUT, "Hello", VMWrapper.SETVAR, 0,
+                VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null, VMWrapper.SKIP, 4,
+                VMWrapper.PUT, "Oops.", VMWrapper.SETVAR, 0, VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null
         }, ifElse);
         // PUT          BOOLTrue
-        // SKIPIFN      NUM6
+        // SKIPIFN      NUM5
         // PUT          TXTHello
         // SETVAR       NUM0
         // GETVAR       NUM0
         // CALLFUNC     null
-        // DELVAR       NUM0
-        // SKIP         NUM5
+        // SKIP         NUM4
         // PUT          TXTOops.
         // SETVAR       NUM0
         // GETVAR       NUM0
         // CALLFUNC     null
-        // DELVAR       NUM0
+        Object[] program = (Object[]) new VMByteCodeGenerator(false).generate(new SyntaxTree.Blocks(
+                new SyntaxTree.If(new SyntaxTree.Boolean(true),
+                        new SyntaxTree.SetVariable("msg", new SyntaxTree.Text("Hello")).setDeclaration(true),
+                        new SyntaxTree.Print(new SyntaxTree.Variable("msg"))
+                ),
+                new SyntaxTree.Print(new SyntaxTree.Text("Bye"))
+        ));
+        assertArrayEquals(new Object[] {
+                VMWrapper.PUT, true, VMWrapper.SKIPIFN, 5, VMWrapper.PUT, "Hello", VMWrapper.SETVAR, 0,
+                VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null, VMWrapper.DELVAR, 0, VMWrapper.PUT, "Bye",
+                VMWrapper.CALLFUNC, null
+        }, program);
+    }
+
+    /**
+     * Test if the locals with live ranges that don't overlap share their slots (ScopeTool)
+     */
+    @Test
+    public void testSlotReuse() {
+        VMByteCodeGenerator generator = new VMByteCodeGenerator();
+        Object[] code = (Object[]) generator.generate(CompilerMain.compile(new Compiler(
+                "func f(n) {\n  var a = n * 2\n  print a\n  var b = n + 1\n  print b\n  var i = 0\n" +
+                "  while i < n {\n    var t = i * i\n    print t\n    i = i + 2\n  }\n" +
+                "  if n > 1 {\n    var d = 4\n    print d\n  }\n  print n\n}")));
+        ArrayList<Object> set = new ArrayList<>(), deleted = new ArrayList<>();
+        for (int i = 0; i < code.length - 1; i++) {
+            if (Byte.valueOf(VMWrapper.SETVAR).equals(code[i])) set.add(code[i + 1]);
+            else if (Byte.valueOf(VMWrapper.DELVAR).equals(code[i])) deleted.add(code[i + 1]);
+        }
+        // (a, b, i and d in 0, t in 1 while i is used)
+        assertEquals(Arrays.asList(0, 0, 0, 1, 0), set);
+        assertEquals(2, ((ScopeTool) generator.tools.get(0)).getSlotCount());
+        // (t after the loop and d after the if, nothing at the end of the function)
+        assertEquals(Arrays.asList(1, 0), deleted);
+    }
+
+    /**
+     * Test if the names are resolved in the nearest scope (ScopeTool)
+     */
+    @Test
+    public void testChainedScopes() {
+        Object[] code = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(
+                "func f() {\n  var a = 1\n  if a > 0 {\n    var a = 2\n    if a > 1 {\n      print a\n    }\n  }\n" +
+                "  print a\n}")));
+        assertArrayEquals(new Object[] {
+                VMWrapper.REC, VMWrapper.PUT, BigDecimal.ONE, VMWrapper.SETVAR, 0, VMWrapper.GETVAR, 0,
+                VMWrapper.PUT, BigDecimal.ZERO, VMWrapper.GT, VMWrapper.SKIPIFN, 17,
+                VMWrapper.PUT, new BigDecimal(2), VMWrapper.SETVAR, 1, VMWrapper.GETVAR, 1,
+                VMWrapper.PUT, BigDecimal.ONE, VMWrapper.GT, VMWrapper.SKIPIFN, 4, VMWrapper.GETVAR, 1,
+                VMWrapper.CALLFUNC, null, VMWrapper.DELVAR, 1, VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null,
+                VMWrapper.END, VMWrapper.PUT, 0, VMWrapper.MKFUNC, "f"
+        }, code);
     }
 
     /**
@@ -308,7 +365,7 @@ public class AppTest
         ));
         assertArrayEquals(new Object[] {
                 VMWrapper.REC, VMWrapper.GETPARAM, 1, VMWrapper.GETPARAM, 2, VMWrapper.SUB, VMWrapper.SETVAR, 0,
-                VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null, VMWrapper.DELVAR, 0, VMWrapper.END, VMWrapper.PUT, 2,
+                VMWrapper.GETVAR, 0, VMWrapper.CALLFUNC, null, VMWrapper.END, VMWrapper.PUT, 2,
                 VMWrapper.MKFUNC, "sub", VMWrapper.PUT, 2.0, VMWrapper.PUT, 1.0, VMWrapper.CALLFUNC, "sub", VMWrapper.POP
         }, program);
     }
@@ -369,4 +426,437 @@ public class AppTest
                 VMWrapper.CALLMETHOD, "#test", VMWrapper.CALLFUNC, null
         }, program);
     }
+
+    /**
+     * Test the extra data of the blocks (the keys kept in fields and the other keys) and compiling without debug info
+     */
+    @Test
+    public void testExtraData() {
+        SyntaxTree.Block block = new SyntaxTree.Print(new SyntaxTree.Number(1));
+        SyntaxTree.Blocks parent = new SyntaxTree.Blocks(block);
+        assertNull(block.getExtraData("parent"));
+        block.setExtraData("parent", parent);
+        assertSame(parent, block.getParentBlock());
+        block.setExtraData("lineNumber", 200);
+        assertEquals(200, block.getLineNumber());
+        assertEquals(200, block.getExtraData("lineNumber"));
+        block.setExtraData("locals", true);
+        assertEquals(true, block.getExtraData("locals"));
+        block.setExtraData("locals", null);
+        assertNull(block.getExtraData("locals"));
+        SyntaxTree.Number folded = new SyntaxTree.Number(2);
+        block.setExtraData("folded", folded);
+        assertSame(folded, block.getExtraData("folded"));
+        assertNull(block.getExtraData("constant"));
+        block.setExtraData("constant", false);
+        assertEquals(false, block.getExtraData("constant"));
+        block.setExtraData("constant", true);
+        assertEquals(true, block.getExtraData("constant"));
+        block.setExtraData("constant", null);
+        assertNull(block.getExtraData("constant"));
+        block.setExtraData("tool", "data");
+        block.setExtraData(parent, 1);
+        assertEquals("data", block.getExtraData("tool"));
+        assertEquals(1, block.getExtraData(parent));
+        assertNull(block.getExtraData("unneededResult"));
+
+        Compiler compiler = new Compiler("print 1\nprint x");
+        assertEquals(2, ((SyntaxTree.Blocks) CompilerMain.compile(compiler)).getBlocks()[1].getLineNumber());
+        compiler.setDebugInfo(false);
+        SyntaxTree.Blocks program = (SyntaxTree.Blocks) CompilerMain.compile(compiler);
+        assertEquals(-1, program.getBlocks()[1].getLineNumber());
+        assertNull(program.getBlocks()[1].getExtraData("lineNumber"));
+    }
+
+    /**
+     * Test if walking a tree with the tools (Generator.runTools) doesn't allocate (after the first walks)
+     */
+    @Test
+    public void testRunToolsAllocations() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            code.append("func f").append(i).append("(a, b) {\n  var c = a\n  while c > b {\n    c = c - 1\n  }\n")
+                    .append("  if c == b {\n    print c\n  } else {\n    return c * 2\n  }\n}\nprint f")
+                    .append(i).append("(").append(i).append(", 2) + 1\n");
+        }
+        SyntaxTree.Block program = CompilerMain.compile(new Compiler(code));
+        VMByteCodeGenerator generator = new VMByteCodeGenerator();
+        generator.tools.clear(); // (ScopeTool keeps the scopes in maps)
+        generator.addTool(new OptimizerTool());
+        for (int i = 0; i < 20; i++) generator.runTools(program);
+        long thread = Thread.currentThread().getId();
+        long start = bean.getThreadAllocatedBytes(thread);
+        generator.runTools(program);
+        long allocated = bean.getThreadAllocatedBytes(thread) - start;
+        // (about 20000 nodes, a few bytes may be allocated by getThreadAllocatedBytes)
+        assertTrue(allocated + " bytes allocated", allocated < 1024);
+    }
+
+    /**
+     * Test ByteCodeBuffer and generating to it
+     */
+    @Test
+    public void testByteCodeBuffer() {
+        ByteCodeBuffer buffer = new ByteCodeBuffer();
+        buffer.emit(VMWrapper.PUT, "a");
+        buffer.emit(VMWrapper.PUT, "a");
+        buffer.emit(VMWrapper.SKIP, 0);
+        buffer.append(new Object[] { VMWrapper.POP, VMWrapper.GETVAR, 2, VMWrapper.CALLFUNC, null });
+        buffer.setOperand(2, 3);
+        assertEquals(6, buffer.size());
+        assertEquals(11, buffer.length());
+        assertEquals(2, buffer.getConstantCount()); // ("a" and null)
+        assertEquals(ByteCodeBuffer.INT, buffer.getOperandKind(4));
+        assertEquals(ByteCodeBuffer.NONE, buffer.getOperandKind(3));
+        assertArrayEquals(new Object[] { VMWrapper.PUT, "a", VMWrapper.PUT, "a", VMWrapper.SKIP, 3, VMWrapper.POP,
+                VMWrapper.GETVAR, 2, VMWrapper.CALLFUNC, null }, buffer.toArray());
+
+        // (break after a function declared in a loop skips to the end of the loop)
+        String code = "var i = 0\nwhile i < 10 {\n  while i > 2 {\n    func f(a) {\n      return a\n    }\n" +
+                "    break\n  }\n  i = i + 1\n}\nprint f(i)\n";
+        Object[] program = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(code)));
+        for (Object item : program) assertNotEquals(VMWrapper.BREAK, item);
+        buffer = new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(new Compiler(code)));
+        assertArrayEquals(program, buffer.toArray());
+
+        // (SKIPIFN of an if/else in a recorded block skips the body and the SKIP with its operand)
+        program = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(
+                "func f(a) {\n  if a {\n    print 1\n  } else {\n    print 2\n  }\n}")));
+        assertArrayEquals(new Object[] { VMWrapper.REC, VMWrapper.GETPARAM, 1, VMWrapper.SKIPIFN, 6,
+                VMWrapper.PUT, new java.math.BigDecimal(1), VMWrapper.CALLFUNC, null, VMWrapper.SKIP, 4,
+                VMWrapper.PUT, new java.math.BigDecimal(2), VMWrapper.CALLFUNC, null, VMWrapper.END,
+                VMWrapper.PUT, 1, VMWrapper.MKFUNC, "f" }, program);
+    }
+
+    /**
+     * Test the jumps of a recorded loop (the distances count the operands)
+     */
+    @Test
+    public void testRecordedLoopJumps() {
+        String code = "func f(a) {\n  while a > 0 {\n    if a == 1 {\n      continue\n    } else {\n      break\n    }\n" +
+                "  }\n}";
+        Object[] program = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(code)));
+        assertArrayEquals(new Object[] {
+                VMWrapper.REC, VMWrapper.SKIP, 13, VMWrapper.GETPARAM, 1, VMWrapper.PUT, new BigDecimal(1),
+                VMWrapper.EQ, VMWrapper.SKIPIFN, 4, VMWrapper.SKIP, 4, VMWrapper.SKIP, 2, VMWrapper.SKIP, 7,
+                VMWrapper.GETPARAM, 1, VMWrapper.PUT, new BigDecimal(0), VMWrapper.GT, VMWrapper.SKIPIF, -20,
+                VMWrapper.END, VMWrapper.PUT, 1, VMWrapper.MKFUNC, "f"
+        }, program);
+        // VM assembly (in the recorded block):
+        // SKIP         NUM13   -> condition
+        // GETPARAM     NUM1
+        // PUT          NUM1
+        // EQ
+        // SKIPIFN      NUM4    -> else
+        // SKIP         NUM4    -> condition (continue)
+        // SKIP         NUM2    -> end of if
+        // SKIP         NUM7    -> end of loop (break)
+        // GETPARAM     NUM1
+        // PUT          NUM0
+        // GT
+        // SKIPIF       NUM-20  -> body
+    }
+
+    /**
+     * Test the constant pool of the generated code (every name and literal is kept once)
+     */
+    @Test
+    public void testConstantPool() {
+        String code = "var text = 'a'\nprint text + 'a'\nprint text + 'a' + 10\nprint 10 + 10 > 20\nprint text == 'a'";
+        ByteCodeBuffer buffer = new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(new Compiler(code)));
+        // ("a", "text", the null of print, 10 and 20)
+        assertEquals(5, buffer.getConstantCount());
+        for (int i = 0; i < buffer.size(); i++) {
+            if (buffer.getOperandKind(i) == ByteCodeBuffer.CONSTANT) {
+                assertEquals(buffer.getOperand(i), buffer.getConstant(buffer.getConstantIndex(i)));
+            }
+        }
+        try {
+            VMWrapper vm = new VMWrapper();
+            vm.run(new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(new Compiler("var a = 'a' + 2\na"))));
+            assertEquals("a2", vm.pop().getData());
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            Assume.assumeNoException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Test writing and reading .vmc files
+     */
+    @Test
+    public void testByteCodeFile() throws IOException {
+        String code = "var text = 'é'\nfunc f(a) {\n  while a > 0 {\n    a = a - 1\n  }\n  return a == null\n}\n" +
+                "print text + f(1.50) + true";
+        ByteCodeBuffer buffer = new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(new Compiler(code)));
+        File file = File.createTempFile("test", ".vmc");
+        file.deleteOnExit();
+        ByteCodeFile.write(buffer, code, file);
+        assertTrue(ByteCodeFile.isByteCodeFile(file.toPath()));
+        ByteCodeFile read = ByteCodeFile.read(file.toPath());
+        assertEquals(ByteCodeFile.VERSION, read.getVersion());
+        assertTrue(read.isMadeFrom(code));
+        assertFalse(read.isMadeFrom(code + "\n"));
+        assertArrayEquals(buffer.toArray(), read.getCode().toArray());
+        assertEquals(buffer.getConstantCount(), read.getCode().getConstantCount());
+        ByteCodeBuffer jumps = new ByteCodeBuffer();
+        jumps.emit(VMWrapper.SKIP, -100000);
+        assertArrayEquals(new Object[] { VMWrapper.SKIP, -100000 }, readBack(jumps).toArray());
+        try {
+            ByteCodeFile.read(ByteBuffer.wrap(new byte[] { 'V', 'M', 'C' }));
+            fail();
+        } catch (IOException ignored) {
+        }
+        // (a text longer than the file)
+        byte[] corrupt = new byte[] { 'V', 'M', 'C', 0, ByteCodeFile.VERSION,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 };
+        try {
+            ByteCodeFile.read(ByteBuffer.wrap(corrupt));
+            fail();
+        } catch (IOException ignored) {
+        }
+        // (negative counts and constant indexes, a varint of 5 bytes is negative)
+        byte[] negative = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F };
+        byte[][] bodies = {
+                concat(negative),
+                concat(new byte[] { 0 }, negative),
+                concat(new byte[] { 0, 1, ByteCodeBuffer.CONSTANT }, negative) };
+        for (byte[] body : bodies) {
+            try {
+                ByteCodeFile.read(ByteBuffer.wrap(concat(Arrays.copyOf(corrupt, 37), new byte[] { 0 }, body)));
+                fail();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // (the path of the source is relative to the .vmc file)
+        File source = File.createTempFile("test", ".txt");
+        source.deleteOnExit();
+        ByteCodeFile.write(buffer, code, source, file);
+        read = ByteCodeFile.read(file.toPath());
+        assertEquals(source.getName(), read.getSourcePath());
+        assertEquals(source.getAbsoluteFile().toPath(), read.getSourceFile(file.toPath()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteCodeFile.write(buffer, code, out);
+        assertNull(ByteCodeFile.read(ByteBuffer.wrap(out.toByteArray())).getSourcePath());
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+
+    private static ByteCodeBuffer readBack(ByteCodeBuffer buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteCodeFile.write(buffer, "", out);
+        return ByteCodeFile.read(ByteBuffer.wrap(out.toByteArray())).getCode();
+    }
+
+    /**
+     * Test PeepholeOptimizer
+     */
+    @Test
+    public void testPeepholeOptimizer() {
+        // (the jumps out of the recorded blocks count opcodes)
+        ByteCodeBuffer code = new ByteCodeBuffer();
+        int end = code.newLabel(false);
+        int next = code.newLabel(false);
+        code.emit(VMWrapper.GETVAR, "a");
+        code.emitJump(VMWrapper.SKIPIFN, end);
+        code.emit(VMWrapper.PUT, "x");
+        code.emit(VMWrapper.POP);
+        code.emit(VMWrapper.PUT, "y");
+        code.emit(VMWrapper.SETVAR, "b");
+        code.emit(VMWrapper.GETVAR, "b");
+        code.emit(VMWrapper.POP);
+        code.placeLabel(end);
+        code.emitJump(VMWrapper.SKIP, next);
+        code.placeLabel(next);
+        code.emit(VMWrapper.GETVAR, "b");
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        assertArrayEquals(new Object[] { VMWrapper.GETVAR, "a", VMWrapper.SKIPIFN, 2, VMWrapper.PUT, "y",
+                VMWrapper.SETVAR, "b", VMWrapper.GETVAR, "b" }, optimizer.optimize(code).toArray());
+        assertEquals(2, optimizer.getRemoved(PeepholeOptimizer.Rule.DISCARDED_VALUE));
+        assertEquals(2, optimizer.getRemoved(PeepholeOptimizer.Rule.STORE_LOAD));
+        assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.EMPTY_JUMP));
+        optimizer = new PeepholeOptimizer(PeepholeOptimizer.Rule.EMPTY_JUMP);
+        assertEquals(code.size() - 1, optimizer.optimize(code).size());
+        assertEquals(1, optimizer.getRemoved());
+
+        // jumps to jumps and dead code
+        code = new ByteCodeBuffer();
+        int first = code.newLabel(false), second = code.newLabel(false), third = code.newLabel(false);
+        code.emit(VMWrapper.GETVAR, "a");
+        code.emitJump(VMWrapper.SKIPIFN, first);
+        code.emit(VMWrapper.PUT, "y");
+        code.emitJump(VMWrapper.SKIP, second);
+        code.placeLabel(first);
+        code.emit(VMWrapper.PUT, "z");
+        code.placeLabel(second);
+        code.emitJump(VMWrapper.SKIP, third);
+        code.emit(VMWrapper.PUT, "w");
+        code.placeLabel(third);
+        code.emit(VMWrapper.CALLFUNC, (Object) null);
+        optimizer = new PeepholeOptimizer();
+        assertArrayEquals(new Object[] { VMWrapper.GETVAR, "a", VMWrapper.SKIPIFN, 2, VMWrapper.PUT, "y",
+                VMWrapper.SKIP, 1, VMWrapper.PUT, "z", VMWrapper.CALLFUNC, null }, optimizer.optimize(code).toArray());
+        assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.DEAD_CODE));
+        assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.EMPTY_JUMP));
+
+        // (the jumps in the recorded blocks count opcodes and operands)
+        code = new ByteCodeBuffer();
+        first = code.newLabel(true);
+        second = code.newLabel(true);
+        code.emit(VMWrapper.REC);
+        code.emit(VMWrapper.GETPARAM, 1);
+        code.emitJump(VMWrapper.SKIPIFN, first);
+        code.emitJump(VMWrapper.SKIP, second);
+        code.placeLabel(first);
+        code.emit(VMWrapper.PUT, "x");
+        code.emit(VMWrapper.RETURN);
+        code.emit(VMWrapper.DELVAR, 0);
+        code.placeLabel(second);
+        code.emit(VMWrapper.GETPARAM, 1);
+        code.emit(VMWrapper.RETURN);
+        code.emit(VMWrapper.END);
+        optimizer = new PeepholeOptimizer();
+        assertArrayEquals(new Object[] { VMWrapper.REC, VMWrapper.GETPARAM, 1, VMWrapper.SKIPIF, 3, VMWrapper.PUT, "x",
+                VMWrapper.RETURN, VMWrapper.GETPARAM, 1, VMWrapper.RETURN, VMWrapper.END },
+                optimizer.optimize(code).toArray());
+        assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.INVERTED_JUMP));
+        assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.DEAD_CODE));
+
+        VMByteCodeGenerator generator = new VMByteCodeGenerator();
+        generator.setPeepholeOptimizer(new PeepholeOptimizer());
+        Object[] optimized = (Object[]) generator.generate(CompilerMain.compile(new Compiler(
+                "func f(a) {\n  var x = a\n  while x > 0 {\n    x = x - 1\n  }\n  5\n  return x\n}")));
+        Object[] unoptimized = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(
+                "func f(a) {\n  var x = a\n  while x > 0 {\n    x = x - 1\n  }\n  5\n  return x\n}")));
+        // (PUT 5 POP)
+        assertEquals(unoptimized.length - 3, optimized.length);
+    }
+
+    /**
+     * Test ConstantFoldingTool
+     */
+    @Test
+    public void testConstantFolding() {
+        ConstantFoldingTool tool = new ConstantFoldingTool();
+        Object[] code = (Object[]) new VMByteCodeGenerator(tool).generate(CompilerMain.compile(new Compiler(
+                "var day = 60 * 60 * 24\nprint 'a' + 'b'\nif false {\n  print 1\n} else {\n  print 2\n}\n" +
+                "while 1 > 2 {\n  print 3\n}\nprint 10 / 4 + 7 % 3\nprint 1 / 3")));
+        assertArrayEquals(new Object[] { VMWrapper.PUT, new BigDecimal(86400), VMWrapper.SETVAR, "day",
+                VMWrapper.PUT, "ab", VMWrapper.CALLFUNC, null,
+                VMWrapper.PUT, new BigDecimal(2), VMWrapper.CALLFUNC, null,
+                VMWrapper.PUT, new BigDecimal("3.5"), VMWrapper.CALLFUNC, null,
+                VMWrapper.PUT, new BigDecimal(1), VMWrapper.PUT, new BigDecimal(3), VMWrapper.DIV,
+                VMWrapper.CALLFUNC, null
+        }, code);
+        assertEquals(7, tool.getFolded());
+        assertEquals(2, tool.getPruned());
+        // (the folded values are the values computed by the VM)
+        String[] values = { "60 * 60 * 24", "'a' + 'b'", "1.5 * 4 - 0.25", "10 / 4", "7 % 3", "2 ** 10", "1 < 2",
+                "2 >= 3", "'a' == 'a'", "null != null", "true && false", "1 == 1.0" };
+        try {
+            VMWrapper vm = new VMWrapper();
+            for (String value : values) {
+                vm.run((Object[]) new VMByteCodeGenerator(false).generate(CompilerMain.compile(new Compiler(value))));
+                Object expected = vm.pop().getData();
+                vm.run((Object[]) new VMByteCodeGenerator(false, new ConstantFoldingTool())
+                        .generate(CompilerMain.compile(new Compiler(value))));
+                assertEquals(value, expected, vm.pop().getData());
+            }
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            Assume.assumeNoException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Test && and || (the second operand is skipped if the first one decides the result)
+     */
+    @Test
+    public void testShortCircuit() {
+        // (the jumps out of the recorded blocks count opcodes)
+        assertArrayEquals(new Object[] { VMWrapper.PUT, true, VMWrapper.SETVAR, "a",
+                VMWrapper.GETVAR, "a", VMWrapper.SKIPIFN, 4, VMWrapper.GETVAR, "a", VMWrapper.SKIPIFN, 2,
+                VMWrapper.PUT, true, VMWrapper.SKIP, 1, VMWrapper.PUT, false,
+                VMWrapper.SKIPIF, 4, VMWrapper.GETVAR, "a", VMWrapper.SKIPIF, 2,
+                VMWrapper.PUT, false, VMWrapper.SKIP, 1, VMWrapper.PUT, true, VMWrapper.CALLFUNC, null
+        }, (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(
+                "var a = true\nprint a && a || a"))));
+        // (the jumps in the recorded blocks count opcodes and operands)
+        assertArrayEquals(new Object[] { VMWrapper.REC, VMWrapper.GETPARAM, 1, VMWrapper.PUT, new BigDecimal(1),
+                VMWrapper.GT, VMWrapper.SKIPIFN, 11, VMWrapper.GETPARAM, 1, VMWrapper.PUT, new BigDecimal(5),
+                VMWrapper.LT, VMWrapper.SKIPIFN, 4, VMWrapper.PUT, true, VMWrapper.SKIP, 2, VMWrapper.PUT, false,
+                VMWrapper.RETURN, VMWrapper.END, VMWrapper.PUT, 1, VMWrapper.MKFUNC, "f"
+        }, (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(
+                "func f(a) {\n  return a > 1 and a < 5\n}"))));
+        VMByteCodeGenerator generator = new VMByteCodeGenerator();
+        generator.setShortCircuit(false);
+        assertArrayEquals(new Object[] { VMWrapper.PUT, true, VMWrapper.PUT, false, VMWrapper.OR, VMWrapper.POP },
+                (Object[]) generator.generate(CompilerMain.compile(new Compiler("true || false"))));
+        // (the second operand is called only if the first one doesn't decide the result)
+        String[] values = { "true && f()", "false && f()", "true || f()", "false || f()", "1 > 2 || 2 > 1" };
+        int[] calls = { 1, 0, 0, 1, 0 };
+        try {
+            VMWrapper vm = new VMWrapper();
+            for (int i = 0; i < values.length; i++) {
+                String code = "var calls = 0\nfunc f() {\n  calls = calls + 1\n  return false\n}\n" + values[i] +
+                        "\ncalls";
+                generator = new VMByteCodeGenerator(false);
+                generator.setShortCircuit(false);
+                vm.run((Object[]) generator.generate(CompilerMain.compile(new Compiler(code))));
+                vm.pop();
+                Object expected = vm.pop().getData();
+                vm.run((Object[]) new VMByteCodeGenerator(false).generate(CompilerMain.compile(new Compiler(code))));
+                assertEquals(values[i], (double) calls[i], vm.pop().getData());
+                assertEquals(values[i], expected, vm.pop().getData());
+            }
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            Assume.assumeNoException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Test the loops out of the recorded blocks made of jumps (see VMByteCodeGenerator.setJumpLoops)
+     */
+    @Test
+    public void testJumpLoops() {
+        String code = "var i = 0\nwhile i < 3 {\n  if i == 1 {\n    break\n  }\n  i = i + 1\n}\ni";
+        VMByteCodeGenerator generator = new VMByteCodeGenerator(false);
+        generator.setJumpLoops(true);
+        // (the loop is a recorded function, so the jumps count opcodes and operands)
+        assertArrayEquals(new Object[] { VMWrapper.PUT, new BigDecimal(0), VMWrapper.SETVAR, "i", VMWrapper.REC,
+                VMWrapper.SKIP, 13, VMWrapper.GETVAR, "i", VMWrapper.PUT, new BigDecimal(1), VMWrapper.EQ,
+                VMWrapper.SKIPIFN, 2, VMWrapper.SKIP, 11, VMWrapper.PUT, new BigDecimal(1), VMWrapper.INCREASE, "i",
+                VMWrapper.GETVAR, "i", VMWrapper.PUT, new BigDecimal(3), VMWrapper.LT, VMWrapper.SKIPIF, -20,
+                VMWrapper.END, VMWrapper.PUT, 0, VMWrapper.MKFUNC, "while", VMWrapper.CALLFUNC, "while",
+                VMWrapper.POP, VMWrapper.GETVAR, "i"
+        }, (Object[]) generator.generate(CompilerMain.compile(new Compiler(code))));
+        // (the loops in the functions are not changed)
+        String function = "func f(a) {\n  while a > 0 {\n    a = a - 1\n  }\n}";
+        assertArrayEquals((Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(function))),
+                (Object[]) generator.generate(CompilerMain.compile(new Compiler(function))));
+        // (the loops using locals are run by WHILE, the locals are in the frame of the code around the loop)
+        String local = "if true {\n  var a = 0\n  while a < 3 {\n    a = 1 + a\n  }\n  a\n}";
+        Object[] localLoop = (Object[]) generator.generate(CompilerMain.compile(new Compiler(local)));
+        assertArrayEquals((Object[]) new VMByteCodeGenerator(false).generate(CompilerMain.compile(new Compiler(local))),
+                localLoop);
+        assertFalse(Arrays.asList(localLoop).contains(VMWrapper.MKFUNC));
+        try {
+            VMWrapper vm = new VMWrapper();
+            vm.run((Object[]) generator.generate(CompilerMain.compile(new Compiler(code))));
+            assertEquals(1.0, vm.pop().getData());
+            vm = new VMWrapper();
+            vm.run(localLoop);
+            assertEquals(3.0, vm.pop().getData());
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            Assume.assumeNoException(e.getMessage(), e);
+        }
+    }
 }
@@ -0,0 +1,559 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Simple benchmarks (not run by the unit tests)
+ *
+ * usage: java -cp target/classes:target/test-classes com.example.Benchmarks [lexer|parallelLexer|parser|prattParser|
+ *     parallelParser|lazyFunctions|memory|syntaxArena|interning|byteCode|peephole|shortCircuit|jumpLoops|slots|scopes|
+ *     startup|loadSource <file>|loadByteCode <file>] (loadSource and loadByteCode are run by startup)
+ */
+public class Benchmarks {
+    private static final String SAMPLE = "func factorial(n) {\n" +
+            "  if n == 0 {\n" +
+            "    return 1\n" +
+            "  }\n" +
+            "  return factorial(n - 1) * n\n" +
+            "}\n" +
+            "var i = 0\n" +
+            "while i < 10 {\n" +
+            "  print \"factorial: \" + factorial(i)\n" +
+            "  i = i + 1\n" +
+            "}\n";
+
+    /**
+     * returns a generated program with (at least) the given size in characters
+     */
+    static String generate(int size) {
+        StringBuilder builder = new StringBuilder(size + SAMPLE.length());
+        while (builder.length() < size) {
+            builder.append(SAMPLE);
+        }
+        return builder.toString();
+    }
+
+    private static double megabytesPerSecond(int chars, long nanos) {
+        return (chars / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    static void lexer() {
+        String code = generate(256 * 1024);
+        for (int i = 0; i < 5; i++) { // warm up
+            new Lexer(Compiler.getLexerSpec()).scan(code);
+        }
+        int runs = 10;
+        long start = System.nanoTime();
+        TokenStream tokens = null;
+        for (int i = 0; i < runs; i++) {
+            tokens = new Lexer(Compiler.getLexerSpec()).scan(code);
+        }
+        long time = (System.nanoTime() - start) / runs;
+        System.out.printf("lexer: %d chars, %d tokens, %.2f ms, %.2f MB/s%n", code.length(), tokens.size(),
+                time / 1e6, megabytesPerSecond(code.length(), time));
+    }
+
+    static void parallelLexer() {
+        String code = generate(16 * 1024 * 1024);
+        double sequential = 0;
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelLexer lexer = new ParallelLexer(Compiler.getLexerSpec(), pool);
+            for (int i = 0; i < 3; i++) { // warm up
+                lexer.scan(code);
+            }
+            int runs = 5;
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                lexer.scan(code);
+            }
+            long time = (System.nanoTime() - start) / runs;
+            pool.shutdown();
+            if (threads == 1) sequential = time;
+            System.out.printf("parallel lexer: %2d threads, %.2f ms, %.2f MB/s, speedup %.2fx%n", threads, time / 1e6,
+                    megabytesPerSecond(code.length(), time), sequential / time);
+        }
+    }
+
+    /**
+     * returns a program with depth nested while loops
+     */
+    static String nested(int depth) {
+        StringBuilder builder = new StringBuilder("var i = 0\n");
+        for (int i = 0; i < depth; i++) {
+            builder.append("while i < ").append(i).append(" {\n  print i + 1\n");
+        }
+        for (int i = 0; i < depth; i++) {
+            builder.append("  i = i * 2\n}\n");
+        }
+        return builder.toString();
+    }
+
+    static void parser() {
+        for (int i = 0; i < 3; i++) { // warm up
+            CompilerMain.compile(new Compiler(nested(200)));
+        }
+        for (int depth = 250; depth <= 4000; depth *= 2) {
+            Compiler compiler = new Compiler(nested(depth));
+            long start = System.nanoTime();
+            Parser parser = CompilerMain.lex(compiler);
+            CompilerMain.parse(compiler, parser);
+            long time = System.nanoTime() - start;
+            System.out.printf("parser: depth %4d, %.2f ms, %d reductions, %d attempts, %d skipped attempts%n", depth,
+                    time / 1e6, parser.getChanges(), parser.getAttempts(), parser.getSkippedAttempts());
+        }
+    }
+
+    static void prattParser() {
+        for (int i = 0; i < 3; i++) { // warm up
+            Compiler compiler = new Compiler(nested(200));
+            CompilerMain.compile(compiler);
+            compiler.setPrattParser(true);
+            CompilerMain.compile(compiler);
+        }
+        for (int depth = 250; depth <= 4000; depth *= 2) {
+            Compiler compiler = new Compiler(nested(depth));
+            Parser parser = CompilerMain.lex(compiler);
+            long start = System.nanoTime();
+            CompilerMain.parse(compiler, parser);
+            long rules = System.nanoTime() - start;
+            parser = CompilerMain.lex(compiler);
+            start = System.nanoTime();
+            new PrattParser(parser).parse();
+            long pratt = System.nanoTime() - start;
+            System.out.printf("pratt parser: depth %4d, rules %.2f ms, pratt parser %.2f ms, speedup %.1fx%n", depth,
+                    rules / 1e6, pratt / 1e6, (double) rules / pratt);
+        }
+    }
+
+    /**
+     * returns a program with count top level functions and statements
+     */
+    static String functions(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append("func f").append(i).append("(a, b) {\n  if a > b {\n    return a - b\n  }\n")
+                    .append("  return b * 2\n}\nvar x").append(i).append(" = f").append(i).append("(").append(i)
+                    .append(", 2)\nprint x").append(i).append("\n");
+        }
+        return builder.toString();
+    }
+
+    static void parallelParser() {
+        Compiler compiler = new Compiler(functions(20000));
+        double sequential = 0;
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelParser parser = new ParallelParser(compiler, pool);
+            if (threads == 1) parser.setChunkSize(Integer.MAX_VALUE); // not split
+            for (int i = 0; i < 3; i++) { // warm up
+                parser.parse(CompilerMain.lex(compiler));
+            }
+            int runs = 5;
+            long time = 0;
+            for (int i = 0; i < runs; i++) {
+                Parser tokens = CompilerMain.lex(compiler);
+                long start = System.nanoTime();
+                parser.parse(tokens);
+                time += System.nanoTime() - start;
+            }
+            time /= runs;
+            pool.shutdown();
+            if (threads == 1) sequential = time;
+            System.out.printf("parallel parser: %2d threads, %.2f ms, speedup %.2fx%n", threads, time / 1e6,
+                    sequential / time);
+        }
+    }
+
+    /**
+     * returns a library of count functions (in groups of 10 functions calling the next one) and a program calling two
+     * groups
+     */
+    static String library(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append("func f").append(i).append("(a, b) {\n  var c = a * 2\n  while c > b {\n    c = c - 1\n")
+                    .append("  }\n");
+            if (i % 10 != 9) builder.append("  if c == b {\n    return f").append(i + 1).append("(c, b - 1)\n  }\n");
+            builder.append("  return c\n}\n");
+        }
+        return builder.append("print f0(10, 2) + f").append(count / 2).append("(1, 2)\n").toString();
+    }
+
+    private static long usedMemory(Object program) {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (program == null) throw new IllegalStateException(); // (keeps program reachable)
+        return used;
+    }
+
+    static void lazyFunctions() {
+        Compiler compiler = new Compiler(library(20000));
+        for (boolean lazy : new boolean[] { false, true }) {
+            compiler.setLazyFunctions(lazy);
+            for (int i = 0; i < 3; i++) { // warm up
+                new VMByteCodeGenerator().generate(CompilerMain.compile(compiler));
+            }
+            long before = usedMemory(compiler);
+            long start = System.nanoTime();
+            SyntaxTree.Block program = CompilerMain.compile(compiler);
+            long parse = System.nanoTime() - start;
+            long memory = usedMemory(program) - before;
+            start = System.nanoTime();
+            new VMByteCodeGenerator().generate(program);
+            long generate = System.nanoTime() - start;
+            System.out.printf("lazy functions: %-5s parse %.2f ms, generate %.2f ms, program %.2f MB%n", lazy,
+                    parse / 1e6, generate / 1e6, memory / 1e6);
+        }
+    }
+
+    private static int countNodes(SyntaxTree.Block block) {
+        int count = 1;
+        for (int i = 0; i < block.getCodeBlockCount(); i++) count += countNodes(block.getCodeBlockAt(i));
+        for (int i = 0; i < block.getValueCount(); i++) count += countNodes(block.getValueAt(i));
+        return count;
+    }
+
+    static void memory() {
+        for (boolean debugInfo : new boolean[] { true, false }) {
+            Compiler compiler = new Compiler(functions(20000));
+            compiler.setPrattParser(true);
+            compiler.setDebugInfo(debugInfo);
+            long before = usedMemory(compiler);
+            // (parsed sequentially, the workers of a pool may keep the last tasks)
+            SyntaxTree.Block program = CompilerMain.parseProgram(compiler, CompilerMain.lex(compiler));
+            long parsed = usedMemory(program);
+            int nodes = countNodes(program);
+            // (the generator adds the extra data of the tools to the tree)
+            new VMByteCodeGenerator().generate(program);
+            long generated = usedMemory(program);
+            System.out.printf("memory: debug info %-5s, %d nodes, %.1f bytes per node after parsing, %.1f after " +
+                    "generating%n", debugInfo, nodes, (double) (parsed - before) / nodes,
+                    (double) (generated - before) / nodes);
+        }
+    }
+
+    private static int countNodes(SyntaxArena.Cursor cursor) {
+        int count = 1;
+        for (int i = 0; i < cursor.childCount(); i++) {
+            if (!cursor.hasChild(i)) continue;
+            cursor.enter(i);
+            count += countNodes(cursor);
+            cursor.exit();
+        }
+        return count;
+    }
+
+    static void syntaxArena() {
+        Compiler compiler = new Compiler(functions(20000));
+        compiler.setPrattParser(true);
+        long before = usedMemory(compiler);
+        SyntaxTree.Block program = CompilerMain.parseProgram(compiler, CompilerMain.lex(compiler));
+        long tree = usedMemory(program) - before;
+        int nodes = countNodes(program);
+        SyntaxArena arena = SyntaxArena.of(program);
+        program = null;
+        long used = usedMemory(arena) - before;
+        SyntaxArena.Cursor cursor = arena.cursor();
+        for (int i = 0; i < 10; i++) countNodes(cursor); // warm up
+        int runs = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) countNodes(cursor);
+        long walk = (System.nanoTime() - start) / runs;
+        System.out.printf("syntax arena: %d nodes, tree %.1f bytes per node, arena %.1f bytes per node, walk %.2f ms%n",
+                nodes, (double) tree / nodes, (double) used / nodes, walk / 1e6);
+        start = System.nanoTime();
+        SyntaxTree.Block copy = arena.toTree();
+        System.out.printf("syntax arena: toTree %.2f ms (%d nodes)%n", (System.nanoTime() - start) / 1e6,
+                countNodes(copy));
+    }
+
+    // (many repeated constants, like tables of settings)
+    private static String constants(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append("var v").append(i).append(" = ").append(i % 100).append(" * 60 + ").append(i % 7)
+                    .append("\nprint v").append(i).append(" + 3600 * 24 + \"s\"\n");
+        }
+        return builder.toString();
+    }
+
+    static void interning() {
+        String code = constants(50000);
+        for (boolean interning : new boolean[] { false, true }) {
+            Compiler compiler = new Compiler(code);
+            compiler.setPrattParser(true);
+            compiler.setInterning(interning);
+            for (int i = 0; i < 3; i++) { // warm up
+                new VMByteCodeGenerator().generate(CompilerMain.parseProgram(compiler, CompilerMain.lex(compiler)));
+            }
+            long before = usedMemory(compiler);
+            SyntaxTree.Block program = CompilerMain.parseProgram(compiler, CompilerMain.lex(compiler));
+            long memory = usedMemory(program) - before;
+            long start = System.nanoTime();
+            new VMByteCodeGenerator().generate(program);
+            long generate = System.nanoTime() - start;
+            System.out.printf("interning: %-5s, program %.2f MB, generate %.2f ms%n", interning, memory / 1e6,
+                    generate / 1e6);
+        }
+    }
+
+    static void byteCode() {
+        Compiler compiler = new Compiler(functions(5000));
+        compiler.setPrattParser(true);
+        long best = Long.MAX_VALUE;
+        int length = 0;
+        for (int i = 0; i < 10; i++) {
+            // (the generator adds the extra data of the tools to the tree)
+            SyntaxTree.Block program = CompilerMain.compile(compiler);
+            long start = System.nanoTime();
+            length = ((Object[]) new VMByteCodeGenerator().generate(program)).length;
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("byte code: generate %.2f ms (%d items)%n", best / 1e6, length);
+    }
+
+    /**
+     * functions with nested loops (loops with locals, if/else chains and break)
+     */
+    static String loops(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append("func loop").append(i).append("(n) {\n  var sum = 0\n  var i = 0\n  while i < n {\n")
+                    .append("    var j = 0\n    while j < n {\n      if j > i {\n        break\n      }\n")
+                    .append("      if i % 3 == j % 3 {\n        if j > 2 {\n          sum = sum + j\n")
+                    .append("        } else {\n")
+                    .append("          sum = sum - 1\n        }\n      } else {\n        sum = sum + 1\n      }\n")
+                    .append("      j = j + 1\n    }\n    i = i + 1\n  }\n  0\n  return sum\n}\n")
+                    .append("print loop").append(i).append("(200)\n");
+        }
+        return builder.toString();
+    }
+
+    static void peephole() {
+        Compiler compiler = new Compiler(loops(20));
+        compiler.setPrattParser(true);
+        ByteCodeBuffer code = new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(compiler));
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        long start = System.nanoTime();
+        ByteCodeBuffer optimized = optimizer.optimize(code);
+        long optimize = System.nanoTime() - start;
+        System.out.printf("peephole: %d -> %d opcodes (%.2f ms)%n%s", code.size(), optimized.size(), optimize / 1e6,
+                optimizer.report());
+        try {
+            for (ByteCodeBuffer run : new ByteCodeBuffer[] { code, optimized, code, optimized }) {
+                VMWrapper vm = new VMWrapper();
+                start = System.nanoTime();
+                vm.run(run);
+                VMWrapper.flush();
+                System.out.printf("run %s: %.2f ms%n", run == code ? "generated" : "optimized",
+                        (System.nanoTime() - start) / 1e6);
+            }
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+            System.out.println("run: the VM is not available (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * a loop of guards (&& and ||) with expensive second operands
+     */
+    static String guards(int count) {
+        return "func expensive(n) {\n  var i = 0\n  while i < 100 {\n    i = i + 1\n  }\n  return n > 2\n}\n" +
+                "var hits = 0\nvar n = 0\nwhile n < " + count + " {\n" +
+                "  if n < 0 && expensive(n) {\n    hits = hits + 1\n  }\n" +
+                "  if n >= 0 || expensive(n) {\n    hits = hits + 1\n  }\n" +
+                "  if n > " + count + " and expensive(n) or n < 0 and expensive(n) {\n    hits = hits + 1\n  }\n" +
+                "  n = n + 1\n}\nprint hits\n";
+    }
+
+    static void shortCircuit() {
+        for (boolean shortCircuit : new boolean[] { false, true }) {
+            VMByteCodeGenerator generator = new VMByteCodeGenerator();
+            generator.setShortCircuit(shortCircuit);
+            ByteCodeBuffer code = generator.generateBuffer(CompilerMain.compile(new Compiler(guards(10000))));
+            System.out.printf("short circuit: %-5s, %d opcodes%n", shortCircuit, code.size());
+            try {
+                VMWrapper vm = new VMWrapper();
+                long start = System.nanoTime();
+                vm.run(code);
+                VMWrapper.flush();
+                System.out.printf("run: %.2f ms%n", (System.nanoTime() - start) / 1e6);
+            } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+                System.out.println("run: the VM is not available (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    static void jumpLoops() {
+        String code = "var sum = 0\nvar i = 0\nwhile i < 1000000 {\n  if i % 7 == 0 {\n    i = i + 1\n" +
+                "    continue\n  }\n  sum = sum + i\n  i = i + 1\n}\nprint sum\n";
+        for (boolean jumpLoops : new boolean[] { false, true }) {
+            VMByteCodeGenerator generator = new VMByteCodeGenerator();
+            generator.setJumpLoops(jumpLoops);
+            ByteCodeBuffer byteCode = generator.generateBuffer(CompilerMain.compile(new Compiler(code)));
+            System.out.printf("jump loops: %-5s, %d opcodes%n", jumpLoops, byteCode.size());
+            try {
+                VMWrapper vm = new VMWrapper();
+                long start = System.nanoTime();
+                vm.run(byteCode);
+                VMWrapper.flush();
+                long time = System.nanoTime() - start;
+                System.out.printf("run: %.2f ms (%.2f iterations/us)%n", time / 1e6, 1e6 / (time / 1e3));
+            } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+                System.out.println("run: the VM is not available (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    static void slots() {
+        Compiler compiler = new Compiler(loops(2000));
+        compiler.setPrattParser(true);
+        SyntaxTree.Block program = CompilerMain.compile(compiler);
+        VMByteCodeGenerator generator = new VMByteCodeGenerator();
+        long start = System.nanoTime();
+        ByteCodeBuffer code = generator.generateBuffer(program);
+        long time = System.nanoTime() - start;
+        int locals = 0, deleted = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.getOpcode(i) == VMWrapper.DELVAR) deleted++;
+        }
+        for (SyntaxTree.Block function : ((SyntaxTree.Blocks) program).getBlocks()) {
+            if (function instanceof SyntaxTree.Function) locals += 3; // (sum, i and j)
+        }
+        System.out.printf("slots: %d locals in %d slots, %d DELVAR, %d opcodes (%.2f ms)%n", locals,
+                ((ScopeTool) generator.tools.get(0)).getSlotCount(), deleted, code.size(), time / 1e6);
+    }
+
+    /**
+     * a function with depth nested ifs (a local in every if, the locals of the function used in the innermost if)
+     */
+    static String scopes(int depth) {
+        StringBuilder builder = new StringBuilder("func f(n) {\n  var a = n\n");
+        for (int i = 0; i < depth; i++) {
+            builder.append("if a > ").append(i).append(" {\nvar b").append(i).append(" = a\n");
+        }
+        for (int i = 0; i < 100; i++) builder.append("a = a + n\n");
+        for (int i = 0; i < depth; i++) builder.append("}\n");
+        return builder.append("}\n").toString();
+    }
+
+    static void scopes() {
+        for (int i = 0; i < 3; i++) { // warm up
+            new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(new Compiler(scopes(200))));
+        }
+        for (int depth = 250; depth <= 4000; depth *= 2) {
+            SyntaxTree.Block program = CompilerMain.compile(new Compiler(scopes(depth)));
+            long start = System.nanoTime();
+            new VMByteCodeGenerator().generateBuffer(program);
+            System.out.printf("scopes: depth %4d, %.2f ms%n", depth, (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /**
+     * time of a new JVM running Benchmarks with args (the best of 5 runs)
+     */
+    private static long startupTime(String... args) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String[] command = new String[args.length + 4];
+        command[0] = java;
+        command[1] = "-cp";
+        command[2] = System.getProperty("java.class.path");
+        command[3] = Benchmarks.class.getName();
+        System.arraycopy(args, 0, command, 4, args.length);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) throw new IOException("benchmark failed: " + String.join(" ", args));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    static void startup() throws IOException, InterruptedException {
+        String code = functions(5000);
+        File source = File.createTempFile("startup", ".txt");
+        File byteCode = File.createTempFile("startup", ".vmc");
+        source.deleteOnExit();
+        byteCode.deleteOnExit();
+        Files.write(source.toPath(), code.getBytes(StandardCharsets.UTF_8));
+        Compiler compiler = new Compiler(code);
+        compiler.setPrattParser(true);
+        ByteCodeFile.write(new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(compiler)), code, byteCode);
+        long fromSource = startupTime("loadSource", source.getPath());
+        long fromFile = startupTime("loadByteCode", byteCode.getPath());
+        System.out.printf("startup: source (%d KB) %.2f ms, .vmc (%d KB) %.2f ms%n", source.length() / 1024,
+                fromSource / 1e6, byteCode.length() / 1024, fromFile / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String benchmark = args.length == 0 ? "lexer" : args[0];
+        switch (benchmark) {
+            case "lexer":
+                lexer();
+                break;
+            case "parallelLexer":
+                parallelLexer();
+                break;
+            case "parser":
+                parser();
+                break;
+            case "prattParser":
+                prattParser();
+                break;
+            case "parallelParser":
+                parallelParser();
+                break;
+            case "lazyFunctions":
+                lazyFunctions();
+                break;
+            case "memory":
+                memory();
+                break;
+            case "syntaxArena":
+                syntaxArena();
+                break;
+            case "interning":
+                interning();
+                break;
+            case "byteCode":
+                byteCode();
+                break;
+            case "peephole":
+                peephole();
+                break;
+            case "shortCircuit":
+                shortCircuit();
+                break;
+            case "jumpLoops":
+                jumpLoops();
+                break;
+            case "slots":
+                slots();
+                break;
+            case "scopes":
+                scopes();
+                break;
+            case "startup":
+                startup();
+                break;
+            case "loadSource": { // (used by startup)
+                Compiler compiler = new Compiler(Source.map(args[1]));
+                compiler.setPrattParser(true);
+                new VMByteCodeGenerator().generateBuffer(CompilerMain.compile(compiler));
+                break;
+            }
+            case "loadByteCode": // (used by startup)
+                ByteCodeFile.read(new File(args[1]).toPath());
+                break;
+            default:
+                Utils.printError("unknown benchmark: ", benchmark);
+                Utils.exit(1);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the compiler (Lexer).
+ */
+public class LexerTest {
+    private static String names(ArrayList<Token> tokens) {
+        StringBuilder builder = new StringBuilder();
+        for (Token token : tokens) {
+            builder.append(token.getName()).append(' ');
+        }
+        return builder.toString().trim();
+    }
+
+    /**
+     * Test if rules are applied in the order they were added
+     */
+    @Test
+    public void testRulePriority() {
+        ArrayList<Token> tokens = new Lexer(Compiler.getLexerSpec()).lex("if true {} else if false {} else {}");
+        assertEquals("IF BOOL IGNORE LEFT_BRACE RIGHT_BRACE IGNORE ELSEIF BOOL IGNORE LEFT_BRACE RIGHT_BRACE IGNORE " +
+                "ELSE IGNORE LEFT_BRACE RIGHT_BRACE", names(tokens));
+
+        tokens = new Lexer(Compiler.getLexerSpec()).lex("print nullable ** 2 || 3");
+        assertEquals("PRINT NULL ID IGNORE EXPONENTIATION IGNORE NUM IGNORE OP3 IGNORE NUM", names(tokens));
+        assertEquals("able", tokens.get(2).getText());
+    }
+
+    /**
+     * Test if the precompiled rules produce the same tokens as a lexer configured with Compiler.initLexer
+     */
+    @Test
+    public void testSharedSpec() {
+        String code = "var s = \"x\"\n\nfunc f(a, b) {\n\treturn a * b % 2\n}\nprint f(1, 2) >= 10";
+        Lexer lexer = new Lexer();
+        Compiler.initLexer(lexer);
+        ArrayList<Token> expected = lexer.lex(code);
+        ArrayList<Token> tokens = new Lexer(Compiler.getLexerSpec()).lex(code);
+        assertEquals(expected.toString(), tokens.toString());
+        assertEquals(expected.get(expected.size() - 1).getLine(), tokens.get(tokens.size() - 1).getLine());
+        assertEquals(6, tokens.get(tokens.size() - 1).getLine());
+    }
+
+    /**
+     * Test lexing the same spec from several threads
+     */
+    @Test
+    public void testConcurrentLexing() throws Exception {
+        String code = "var i = 0\nwhile i < 10 {\n  print 'i' + i\n  i = i + 1\n}\n";
+        String expected = names(new Lexer(Compiler.getLexerSpec()).lex(code));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ArrayList<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> names(new Lexer(Compiler.getLexerSpec()).lex(code))));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test if the rules of a shared spec are protected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testSharedSpecIsImmutable() {
+        new Lexer(Compiler.getLexerSpec()).add("NUM", "\\d+");
+    }
+
+    /**
+     * Test the offsets and lines of the token stream
+     */
+    @Test
+    public void testTokenStream() {
+        String code = "var a = 10\nprint a";
+        TokenStream tokens = new Lexer(Compiler.getLexerSpec()).scan(code);
+        assertFalse(tokens.hasError());
+        assertEquals(9, tokens.size());
+        assertEquals("NUM", tokens.getName(5));
+        assertEquals(8, tokens.getStart(5));
+        assertEquals(2, tokens.getLength(5));
+        assertEquals(1, tokens.getLine(5));
+        assertEquals("\n", tokens.getText(6));
+        assertEquals(2, tokens.getLine(6));
+        assertEquals(2, tokens.getLine(8));
+
+        Token token = tokens.getToken(8);
+        assertSame(code, token.getSource());
+        assertEquals(1, token.length());
+        assertEquals("a", token.getText());
+    }
+
+    /**
+     * Test the tokens generated when there is an error in the input
+     */
+    @Test
+    public void testLexingErrors() {
+        TokenStream tokens = new Lexer(Compiler.getLexerSpec()).scan("a = 1 ` 2");
+        assertEquals(0, tokens.size());
+        assertEquals(6, tokens.getErrorOffset());
+
+        Lexer lexer = new Lexer(Compiler.getLexerSpec());
+        lexer.ignoreErrors(true);
+        tokens = lexer.scan("a = 1 ` 2");
+        assertEquals(7, tokens.size());
+        assertEquals(TokenStream.NONE, tokens.getKind(6));
+        assertEquals("` 2", tokens.getText(6));
+    }
+
+    /**
+     * Test if a big input is lexed in a reasonable time (lexing used to be quadratic in the size of the input)
+     */
+    @Test(timeout = 10000)
+    public void testBigInput() {
+        String code = Benchmarks.generate(4 * 1024 * 1024);
+        TokenStream tokens = new Lexer(Compiler.getLexerSpec()).scan(code);
+        assertFalse(tokens.hasError());
+        assertEquals(code.length(), tokens.getEnd(tokens.size() - 1));
+    }
+
+    /**
+     * Test if the texts saved by the parser are spans of the source
+     */
+    @Test
+    public void testSavedTexts() {
+        Parser parser = new Parser(new Lexer(Compiler.getLexerSpec()).lex("print 1 +  2"));
+        parser.purge("IGNORE");
+        parser.setSaveTexts(true);
+        parser.replace("NUM OP2 NUM", "expression", p -> null);
+        assertEquals("1 +  2", parser.getTokens().get(1).getText());
+    }
+
+    private static String repeat(String s, int count) {
+        return new String(new char[count]).replace("\0", s);
+    }
+
+    /**
+     * Test text literals with escaped quotes and literals that are not terminated
+     */
+    @Test
+    public void testStringLiterals() {
+        StringLiteralToken literal = new StringLiteralToken();
+        assertEquals(6, literal.match("\"a\\\"b\" + 1", 0));
+        assertEquals(6, literal.match("'a\\'b' + 1", 0));
+        assertEquals(4, literal.match("\"\\\\\"\"", 0));
+        assertEquals(4, literal.match("'\"\"' + 1", 0));
+        assertEquals(-1, literal.match("\"abc", 0));
+        assertEquals(-1, literal.match("\"a\\\"", 0));
+        assertEquals(-1, literal.match("\"a\nb\"", 0));
+        assertEquals(-1, literal.match("'a\\\nb'", 0));
+        assertEquals(3, literal.match("x = 'a'", 4));
+
+        Errors.clear();
+        TokenStream tokens = new Lexer(Compiler.getLexerSpec()).scan("print 'abc\nprint 1");
+        assertEquals(0, tokens.size());
+        assertTrue(Errors.wasThereAnError());
+        Errors.clear();
+    }
+
+    /**
+     * Test inputs that made the old (regex based) scanner backtrack for seconds
+     */
+    @Test(timeout = 5000)
+    public void testPathologicalStringLiterals() {
+        StringLiteralToken literal = new StringLiteralToken();
+        String text = repeat("a", 1 << 20);
+        assertEquals(-1, literal.match("\"" + text, 0));
+        assertEquals(text.length() + 2, literal.match("\"" + text + "\"", 0));
+        assertEquals(-1, literal.match("'" + repeat("\\'", 100000), 0));
+        assertEquals(-1, literal.match("\"" + repeat("\\\"a", 100000) + "\n\"", 0));
+        assertEquals(400002, literal.match("'" + repeat("\\\\", 200000) + "'", 0));
+
+        String code = repeat("print \"" + repeat("x", 4096) + "\"\n", 256);
+        TokenStream tokens = new Lexer(Compiler.getLexerSpec()).scan(code);
+        assertEquals(3 * 256, tokens.size());
+        assertEquals("TXT", tokens.getName(tokens.size() - 2));
+    }
+
+    /**
+     * Test lexing a memory-mapped file and a file with "\r\n" line separators
+     */
+    @Test
+    public void testMappedSource() throws IOException {
+        String code = "var s = 'x'\r\n\r\nwhile s != 'xxx' {\r\n  s = s + 'x'\r\n}\r\nprint s\r\n";
+        Path file = Files.createTempFile("compiler", ".txt");
+        try {
+            Files.write(file, code.getBytes(StandardCharsets.UTF_8));
+            CharSequence source = Source.map(file.toString());
+            assertEquals(code, source.toString());
+            assertEquals("'x'", source.subSequence(8, 11).toString());
+            ArrayList<Token> tokens = new Lexer(Compiler.getLexerSpec()).lex(source);
+            assertEquals(names(new Lexer(Compiler.getLexerSpec()).lex(code.replace("\r", ""))), names(tokens));
+            assertEquals(7, tokens.get(tokens.size() - 1).getLine());
+
+            SyntaxTree.Block program = CompilerMain.compile(new Compiler(source));
+            assertFalse(Errors.wasThereAnError());
+            assertEquals(3, ((SyntaxTree.Blocks) program).getBlocks().length);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertSameTokens(TokenStream expected, TokenStream tokens) {
+        assertEquals(expected.getErrorOffset(), tokens.getErrorOffset());
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getKind(i), tokens.getKind(i));
+            assertEquals(expected.getStart(i), tokens.getStart(i));
+            assertEquals(expected.getLength(i), tokens.getLength(i));
+            assertEquals(expected.getLine(i), tokens.getLine(i));
+        }
+    }
+
+    private static TokenStream scanParallel(LexerSpec spec, CharSequence code, boolean ignoreErrors) {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelLexer lexer = new ParallelLexer(spec, pool);
+            lexer.setChunkSize(64);
+            lexer.ignoreErrors(ignoreErrors);
+            return lexer.scan(code);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test if the parallel lexer generates the same tokens as the sequential lexer
+     */
+    @Test
+    public void testParallelLexing() {
+        String code = Benchmarks.generate(64 * 1024) + "print 'a\\'b'\r\n\r\n\n" + Benchmarks.generate(1024);
+        assertSameTokens(new Lexer(Compiler.getLexerSpec()).scan(code), scanParallel(Compiler.getLexerSpec(), code, false));
+
+        Errors.clear();
+        String error = code + "print 'a\n" + code;
+        assertSameTokens(new Lexer(Compiler.getLexerSpec()).scan(error), scanParallel(Compiler.getLexerSpec(), error, false));
+        assertTrue(Errors.wasThereAnError());
+        Errors.clear();
+        Lexer lexer = new Lexer(Compiler.getLexerSpec());
+        lexer.ignoreErrors(true);
+        assertSameTokens(lexer.scan(error), scanParallel(Compiler.getLexerSpec(), error, true));
+    }
+
+    /**
+     * Test the parallel lexer with tokens containing newlines (chunks that start inside a token)
+     */
+    @Test
+    public void testParallelLexingAcrossChunks() {
+        Lexer lexer = new Lexer();
+        lexer.add("NEWLINE", new NewlineToken());
+        lexer.add("COMMENT", "/\\*(.|\\n)*?\\*/");
+        lexer.add("IGNORE", " +");
+        lexer.add("ID", "[a-z]+");
+        String code = repeat("abc def\nx /* a\n\nb\n */ y\n/*\n\n\n" + repeat("z\n", 50) + "*/ w\n", 40);
+        assertSameTokens(lexer.scan(code), scanParallel(lexer.getSpec(), code, false));
+    }
+
+    /**
+     * Test if re-lexing after an edit generates the same tokens as lexing the edited input
+     */
+    @Test
+    public void testIncrementalLexing() {
+        Lexer lexer = new Lexer(Compiler.getLexerSpec());
+        lexer.ignoreErrors(true);
+        String code = Benchmarks.generate(1024);
+        TokenStream tokens = lexer.scan(code);
+        String[] inserts = { "", "a", " ", "\n", "if ", "'", "\"x\"", "else if ", "`", "}\n{", "12.5", "**" };
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(code.length() + 1);
+            int removed = random.nextInt(Math.min(8, code.length() - offset) + 1);
+            String inserted = inserts[random.nextInt(inserts.length)];
+            code = code.substring(0, offset) + inserted + code.substring(offset + removed);
+            tokens = lexer.relex(tokens, offset, removed, inserted);
+            assertEquals(code, tokens.getSource().toString());
+            Lexer expected = new Lexer(Compiler.getLexerSpec());
+            expected.ignoreErrors(true);
+            assertSameTokens(expected.scan(code), tokens);
+        }
+
+        String edited = "else " + code.substring(3, code.length() - 10) + " if ";
+        Lexer expected = new Lexer(Compiler.getLexerSpec());
+        expected.ignoreErrors(true);
+        assertSameTokens(expected.scan(edited), lexer.relex(tokens, edited));
+
+        // (ELSEIF starts more than one token before the edit)
+        tokens = new Lexer(Compiler.getLexerSpec()).scan("print 1\nelse i");
+        for (String source : new String[] { "print 1\nelse if", "print 1\nelse if " }) {
+            tokens = lexer.relex(tokens, source);
+            assertSameTokens(new Lexer(Compiler.getLexerSpec()).scan(source), tokens);
+        }
+        assertEquals("ELSEIF", tokens.getName(tokens.size() - 1));
+    }
+
+    /**
+     * Test if the lines of the shell after a line with a lex error are still counted (the block is closed)
+     */
+    @Test
+    public void testShellInputAfterError() {
+        Shell.Input input = new Shell.Input();
+        HashSet<String> variables = new HashSet<>();
+        input.add("while true {", variables);
+        assertTrue(input.isIncomplete());
+        input.add("  print 'oops", variables);
+        assertTrue(input.isIncomplete());
+        input.add("  var a = 1", variables);
+        input.add("}", variables);
+        assertFalse(input.isIncomplete());
+        assertEquals(0, input.getOpenBrackets());
+        assertTrue(variables.contains("a"));
+    }
+}
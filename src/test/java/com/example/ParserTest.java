@@ -4,6 +4,12 @@ import org.junit.Assume;
 import org.junit.Test;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -11,16 +17,30 @@ import static org.junit.Assert.*;
  * Unit test for the compiler (Parser).
  */
 public class ParserTest {
+    /**
+     * compiles code with the rules (and checks if PrattParser makes the same program)
+     */
+    private static SyntaxTree.Block compile(String code) {
+        SyntaxTree.Block program = CompilerMain.compile(new Compiler(code));
+        Parser parser = CompilerMain.lex(new Compiler(code));
+        SyntaxTree.Block pratt = new PrattParser(parser).parse();
+        assertNotNull(pratt);
+        // (the trees are changed by the generator)
+        assertArrayEquals((Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(code))),
+                (Object[]) new VMByteCodeGenerator().generate(pratt));
+        return program;
+    }
+
     /**
      * Test number literals
      */
     @Test
     public void testNumber() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("10"));
+        SyntaxTree.Block program = compile("10");
         assertTrue(program instanceof SyntaxTree.Number);
         assertEquals(new SyntaxTree.Number("10"), ((SyntaxTree.Number) program).getData());
 
-        program = CompilerMain.compile(new Compiler("1234.9876"));
+        program = compile("1234.9876");
         assertTrue(program instanceof SyntaxTree.Number);
         assertEquals(new SyntaxTree.Number("1234.9876"), ((SyntaxTree.Number) program).getData());
     }
@@ -30,7 +50,7 @@ public class ParserTest {
      */
     @Test
     public void testString() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("'Hello, World!!!'"));
+        SyntaxTree.Block program = compile("'Hello, World!!!'");
         assertTrue(program instanceof SyntaxTree.Text);
         assertEquals("Hello, World!!!", ((SyntaxTree.Text) program).getData());
     }
@@ -40,7 +60,7 @@ public class ParserTest {
      */
     @Test
     public void testMath() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("10 * 2 + 5 / 2"));
+        SyntaxTree.Block program = compile("10 * 2 + 5 / 2");
         assertTrue(program instanceof SyntaxTree.Add);
         assertTrue(((SyntaxTree.Add) program).getValue1() instanceof SyntaxTree.Mul);
         assertTrue(((SyntaxTree.Add) program).getValue2() instanceof SyntaxTree.Div);
@@ -59,7 +79,7 @@ public class ParserTest {
      */
     @Test
     public void testLogic() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("true and false || true"));
+        SyntaxTree.Block program = compile("true and false || true");
         assertTrue(program instanceof SyntaxTree.Or);
         assertTrue(((SyntaxTree.Or) program).getValue1() instanceof SyntaxTree.And);
         assertTrue(((SyntaxTree.Or) program).getValue2() instanceof SyntaxTree.Boolean);
@@ -75,7 +95,7 @@ public class ParserTest {
      */
     @Test
     public void testComparison() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("100 == 200 != true"));
+        SyntaxTree.Block program = compile("100 == 200 != true");
         assertTrue(program instanceof SyntaxTree.NotEquals);
         assertTrue(((SyntaxTree.NotEquals) program).getValue1() instanceof SyntaxTree.Equals);
         assertTrue(((SyntaxTree.NotEquals) program).getValue2() instanceof SyntaxTree.Boolean);
@@ -92,14 +112,14 @@ public class ParserTest {
      */
     @Test
     public void testIf() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("if true { } else { print 10 }"));
+        SyntaxTree.Block program = compile("if true { } else { print 10 }");
         assertTrue(program instanceof SyntaxTree.If);
         assertEquals(0, ((SyntaxTree.If) program).getCode().getBlocks().length);
         assertEquals(1, ((SyntaxTree.If) program).getElseCode().getBlocks().length);
         assertTrue(((SyntaxTree.If) program).getElseCode().getBlocks()[0] instanceof SyntaxTree.Print);
         assertTrue(((SyntaxTree.If) program).getCondition() instanceof SyntaxTree.Boolean);
 
-        program = CompilerMain.compile(new Compiler("if true { print 30 } else if false { } else if true { print 20 } else {  }"));
+        program = compile("if true { print 30 } else if false { } else if true { print 20 } else {  }");
         assertTrue(program instanceof SyntaxTree.If);
         assertEquals(1, ((SyntaxTree.If) program).getCode().getCodeBlocks().length);
         assertTrue(((SyntaxTree.If) program).getElseCode().getBlocks()[0] instanceof SyntaxTree.If);
@@ -112,13 +132,13 @@ public class ParserTest {
      */
     @Test
     public void testWhile() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("while true { print 10 }"));
+        SyntaxTree.Block program = compile("while true { print 10 }");
         assertTrue(program instanceof SyntaxTree.While);
         assertEquals(1, ((SyntaxTree.While) program).getCode().getBlocks().length);
         assertTrue(((SyntaxTree.While) program).getCode().getBlocks()[0] instanceof SyntaxTree.Print);
         assertTrue(((SyntaxTree.While) program).getCondition() instanceof SyntaxTree.Boolean);
 
-        program = CompilerMain.compile(new Compiler("while true {}"));
+        program = compile("while true {}");
         assertTrue(program instanceof SyntaxTree.While);
         assertEquals(0, ((SyntaxTree.While) program).getCode().getBlocks().length);
     }
@@ -128,10 +148,10 @@ public class ParserTest {
      */
     @Test
     public void testVariable() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("var a = 10\n" +
+        SyntaxTree.Block program = compile("var a = 10\n" +
                 "a = 20\n" +
                 "print a\n" +
-                "var b"));
+                "var b");
         assertTrue(program instanceof SyntaxTree.Blocks);
         assertEquals(4, ((SyntaxTree.Blocks) program).getBlocks().length);
         assertTrue(((SyntaxTree.Blocks) program).getBlocks()[0] instanceof SyntaxTree.SetVariable);
@@ -165,10 +185,10 @@ public class ParserTest {
      */
     @Test
     public void testFunction() {
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("func printSum(a, b) {\n" +
+        SyntaxTree.Block program = compile("func printSum(a, b) {\n" +
                 "   print a + b\n" +
                 "}\n" +
-                "printSum(1, 2)"));
+                "printSum(1, 2)");
         assertTrue(program instanceof SyntaxTree.Blocks);
         assertEquals(2, ((SyntaxTree.Blocks) program).getBlocks().length);
         assertTrue(((SyntaxTree.Blocks) program).getBlocks()[0] instanceof SyntaxTree.Function);
@@ -192,14 +212,14 @@ public class ParserTest {
     @Test
     public void testRecursiveFunction() {
 
-        SyntaxTree.Block program = CompilerMain.compile(new Compiler("func factorial(n) {\n" +
+        SyntaxTree.Block program = compile("func factorial(n) {\n" +
                 "  if n == 0 {\n" +
                 "    return 1\n" +
                 "  }\n" +
                 "  return factorial(n - 1) * n\n" +
                 "}\n" +
                 "\n" +
-                "factorial(5)"));
+                "factorial(5)");
         VMByteCodeGenerator vmByteCodeGenerator = new VMByteCodeGenerator(false);
         try {
             VMWrapper vm = new VMWrapper();
@@ -211,4 +231,284 @@ public class ParserTest {
             Assume.assumeNoException(e.getMessage(), e);
         }
     }
+
+    private static Parser parser(String names) {
+        ArrayList<Token> tokens = new ArrayList<>();
+        for (String name : names.split(" ")) {
+            tokens.add(new Token(name, name.toLowerCase()));
+        }
+        return new Parser(tokens);
+    }
+
+    /**
+     * Test if models choose the same matches as the regular expressions they were written as
+     */
+    @Test
+    public void testReplaceModels() {
+        Parser parser = parser("A B B C A C A B");
+        parser.replace("A (B )*C", "x", p -> null);
+        assertEquals("x x A B", parser.getMap());
+
+        parser = parser("A B B C A B");
+        parser.replace("A (B|B B)", "x", p -> null);
+        assertEquals("x B C x", parser.getMap());
+
+        parser = parser("A B B C");
+        parser.replace("A (B )*?B", "x", p -> null);
+        assertEquals("x B C", parser.getMap());
+
+        // left associative (the new token is matched again)
+        parser = parser("E P E P E P E");
+        parser.replace("E P E", "E", p -> null);
+        assertEquals("E", parser.getMap());
+    }
+
+    /**
+     * Test if the tokens after a match rejected by the checker are matched
+     */
+    @Test
+    public void testReplaceWithChecker() {
+        Parser parser = parser("R E O E R E R");
+        parser.replace("R( E)?", "p", p -> null, (p, index) -> index + 2 >= p.getTokens().size() ||
+                !p.getTokens().get(index + 2).getName().equals("O"));
+        assertEquals("R E O E p p", parser.getMap());
+    }
+
+    /**
+     * Test models using removed tokens
+     */
+    @Test
+    public void testReplaceWithRemovedTokens() {
+        Parser parser = parser("p NEWLINE p NEWLINE NEWLINE p SEMICOLON p");
+        parser.remove("NEWLINE");
+        assertEquals("p p p SEMICOLON p", parser.getMap());
+        assertEquals("p NEWLINE p NEWLINE p SEMICOLON p", parser.getMap("NEWLINE"));
+        parser.replace("p( (NEWLINE|SEMICOLON) p)+", "p", p -> {
+            assertEquals(7, p.getTokens().size());
+            return null;
+        }, "NEWLINE");
+        assertEquals("p", parser.getMap());
+        // the second NEWLINE of the second gap was not a part of the match
+        assertEquals("p", parser.getMap("NEWLINE"));
+    }
+
+    /**
+     * Test if long programs are parsed without a stack overflow
+     */
+    @Test(timeout = 20000)
+    public void testLongProgram() {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            code.append("var a").append(i).append(" = ").append(i).append(" + 1\n");
+        }
+        SyntaxTree.Block program = compile(code.toString());
+        assertTrue(program instanceof SyntaxTree.Blocks);
+        assertEquals(20000, ((SyntaxTree.Blocks) program).getBlocks().length);
+    }
+
+    /**
+     * Test if the passes of CompilerMain.parse (which only run the rules near the changed tokens) make the same tree as
+     * running all the rules on all the tokens
+     */
+    @Test
+    public void testIncrementalPasses() {
+        StringBuilder code = new StringBuilder("var x = 1\n");
+        for (int i = 0; i < 50; i++) {
+            code.append("while x < ").append(i).append(" {\nif x == 2 {\nreturn x\n} else {\nprint f(x, 2 * 3)\n}\n");
+        }
+        for (int i = 0; i < 50; i++) {
+            code.append("x = x + 1; func f").append(i).append("(a, b) {\nreturn a - b\n}\n}\n");
+        }
+        code.append("print x\n");
+        Compiler compiler = new Compiler(code.toString());
+        Parser parser = CompilerMain.lex(compiler);
+        CompilerMain.parse(compiler, parser);
+        Parser expected = CompilerMain.lex(compiler);
+        String map = null;
+        while (!expected.getMap().equals(map)) {
+            map = expected.getMap();
+            compiler.parse(expected);
+        }
+        assertEquals("program", parser.getMap());
+        assertArrayEquals((Object[]) new VMByteCodeGenerator().generate(compiler.afterParse(expected)),
+                (Object[]) new VMByteCodeGenerator().generate(compiler.afterParse(parser)));
+        assertTrue(parser.getSkippedAttempts() > parser.getAttempts());
+    }
+
+    /**
+     * Test PrattParser on a generated program and on inputs it leaves to the rules
+     */
+    @Test
+    public void testPrattParser() {
+        StringBuilder code = new StringBuilder("var x = 1\n");
+        for (int i = 0; i < 50; i++) {
+            code.append("while x < ").append(i).append(" {\nif x == 2 {\nreturn x ** 2 - 1\n} else if x >= 3 {\n")
+                    .append("continue\n} else {\nprint f(x, 2 * 3)\nprint x < 1 and true or x != 0\n}\n");
+        }
+        for (int i = 0; i < 50; i++) {
+            code.append("x = x + 1; func f").append(i).append("(a, b) {\nreturn a - b % 2\n}\nbreak\n}\n");
+        }
+        code.append("print x\n");
+        compile(code.toString());
+
+        // not a program of the grammar: the rules are used
+        Compiler compiler = new Compiler("print 1 print 2");
+        assertNull(new PrattParser(CompilerMain.lex(compiler)).parse());
+        compiler.setPrattParser(true);
+        assertTrue(CompilerMain.compile(compiler) instanceof SyntaxTree.Print);
+    }
+
+    private static List<String> messages(ArrayList<String[]> errors) {
+        ArrayList<String> messages = new ArrayList<>();
+        for (String[] error : errors) messages.add(String.join("", error));
+        Collections.sort(messages);
+        return messages;
+    }
+
+    private static SyntaxTree.Block parseInParallel(String code, ArrayList<String[]> errors) {
+        Compiler compiler = new Compiler(code);
+        Parser parser = CompilerMain.lex(compiler);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ParallelParser parallelParser = new ParallelParser(compiler, pool);
+        parallelParser.setChunkSize(16);
+        SyntaxTree.Block[] program = new SyntaxTree.Block[1];
+        errors.addAll(Errors.collect(() -> program[0] = parallelParser.parse(parser)));
+        pool.shutdown();
+        return program[0];
+    }
+
+    /**
+     * Test if ParallelParser makes the same program as parsing all the tokens at once (with the same lines and errors)
+     */
+    @Test
+    public void testParallelParser() {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            code.append("func f").append(i).append("(a, b) {\n  if a > b {\n    return a\n  }\n  return b +\n 1\n}\n")
+                    .append("var x").append(i).append(" = f").append(i).append("(1, 2); print x").append(i)
+                    .append("\nif x").append(i).append(" == 2 {\n  print 1\n}\nelse {\n  print 2\n}\n");
+        }
+        ArrayList<String[]> errors = new ArrayList<>();
+        SyntaxTree.Block program = parseInParallel(code.toString(), errors);
+        assertTrue(errors.isEmpty());
+        SyntaxTree.Block[] blocks = ((SyntaxTree.Blocks) program).getBlocks();
+        int line = code.substring(0, code.lastIndexOf("if x")).split("\n").length + 1;
+        assertEquals(line, blocks[blocks.length - 1].getExtraData("lineNumber"));
+        assertArrayEquals((Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(new Compiler(code))),
+                (Object[]) new VMByteCodeGenerator().generate(program));
+
+        code = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            code.append("print ").append(i).append("\nelse {\n}\nprint 1\nprint 2\nelse if true {\n}\n");
+        }
+        String invalid = code.toString();
+        parseInParallel(invalid, errors);
+        ArrayList<String[]> expected = Errors.collect(() -> CompilerMain.compile(new Compiler(invalid)));
+        // (the errors are in the order of the chunks, the rules report them in the order of the rules)
+        assertEquals(8, errors.size());
+        assertEquals(messages(expected), messages(errors));
+    }
+
+    /**
+     * Test if only the functions called by the program are parsed with Compiler.setLazyFunctions
+     */
+    @Test
+    public void testLazyFunctions() {
+        String used = "func square(x) {\n  return x * x\n}\nfunc sum(a, b) {\n  return b + square(a)\n}\n";
+        String code = "func unused(a) {\n  print a +\n  onlyFromUnused()\n}\n" + used +
+                "func onlyFromUnused() { print 1 }\nprint sum(2, 3)\n";
+        Object[] expected = (Object[]) new VMByteCodeGenerator().generate(compile(used + "print sum(2, 3)\n"));
+        for (boolean pratt : new boolean[] { false, true }) {
+            Compiler compiler = new Compiler(code);
+            compiler.setPrattParser(pratt);
+            compiler.setLazyFunctions(true);
+            SyntaxTree.Block[] program = new SyntaxTree.Block[1];
+            // (the body of unused is never parsed)
+            assertTrue(Errors.collect(() -> program[0] = CompilerMain.compile(compiler)).isEmpty());
+            assertEquals(3, ((SyntaxTree.Blocks) program[0]).getBlocks().length);
+            assertArrayEquals(expected, (Object[]) new VMByteCodeGenerator().generate(program[0]));
+        }
+    }
+
+    private static int countNodes(SyntaxArena.Cursor cursor) {
+        int count = 1;
+        for (int i = 0; i < cursor.childCount(); i++) {
+            if (!cursor.hasChild(i)) continue;
+            cursor.enter(i);
+            count += countNodes(cursor);
+            cursor.exit();
+        }
+        return count;
+    }
+
+    /**
+     * Test converting programs to SyntaxArena and back
+     */
+    @Test
+    public void testSyntaxArena() {
+        String code = "var x = 1\nfunc f(a, b) {\n  while a > b {\n    a = a - 1\n  }\n  return a * b\n}\n" +
+                "if x == 1 {\n  print f(x, 2)\n} else if x >= 2 or false {\n  print 'two'\n} else {\n  print null\n}";
+        SyntaxArena arena = SyntaxArena.of(compile(code));
+        SyntaxArena.Cursor cursor = arena.cursor();
+        assertEquals(SyntaxArena.BLOCKS, cursor.kind());
+        assertEquals(arena.size(), countNodes(cursor));
+        assertEquals(0, cursor.getDepth());
+        cursor.enter(cursor.childCount() - 1);
+        assertEquals(SyntaxArena.IF, cursor.kind());
+        assertEquals(8, cursor.line());
+        SyntaxTree.Block program = arena.toTree();
+        assertEquals(8, ((SyntaxTree.Blocks) program).getBlocks()[2].getLineNumber());
+        assertArrayEquals((Object[]) new VMByteCodeGenerator().generate(compile(code)),
+                (Object[]) new VMByteCodeGenerator().generate(program));
+
+        HashMap<SyntaxTree.Value, SyntaxTree.Value> map = new HashMap<>();
+        map.put(new SyntaxTree.Text("one"), new SyntaxTree.Number(1));
+        SyntaxTree.Block block = new SyntaxTree.Blocks(new SyntaxTree.Print(new SyntaxTree.List(new SyntaxTree.Map(map),
+                new SyntaxTree.Variable("a").fromInstance(new SyntaxTree.This()), new SyntaxTree.Boolean(true))),
+                new SyntaxTree.Class("A", "B", new SyntaxTree.SetVariable("a", new SyntaxTree.Null())));
+        arena = SyntaxArena.of(block);
+        SyntaxArena copy = SyntaxArena.of(arena.toTree());
+        assertEquals(arena.size(), copy.size());
+        for (int i = 0; i < arena.size(); i++) {
+            assertEquals(arena.kind(i), copy.kind(i));
+            assertEquals(arena.childCount(i), copy.childCount(i));
+            for (int j = 0; j < arena.childCount(i); j++) assertEquals(arena.child(i, j), copy.child(i, j));
+            assertEquals(arena.literal(i) instanceof String[] ? Arrays.asList((String[]) arena.literal(i)) :
+                    arena.literal(i), copy.literal(i) instanceof String[] ? Arrays.asList((String[]) copy.literal(i)) :
+                    copy.literal(i));
+        }
+    }
+
+    /**
+     * Test sharing the literals and the operations of literals (Parser.intern)
+     */
+    @Test
+    public void testInterning() {
+        String code = "var x = 2 * 3 + 1\nprint 2 * 3 + 1\n2 * 3 + 1\nprint 2 * 3 + 1\nprint x + 1\nprint x + 1\n" +
+                "print 'a' == 'a'\nprint 2 * 3 + 1.0";
+        Compiler compiler = new Compiler(code);
+        compiler.setInterning(false);
+        Object[] expected = (Object[]) new VMByteCodeGenerator().generate(CompilerMain.compile(compiler));
+        for (boolean pratt : new boolean[] { false, true }) {
+            compiler = new Compiler(code);
+            compiler.setPrattParser(pratt);
+            SyntaxTree.Block program = CompilerMain.compile(compiler);
+            SyntaxTree.Block[] blocks = ((SyntaxTree.Blocks) program).getBlocks();
+            SyntaxTree.Value value = ((SyntaxTree.SetVariable) blocks[0]).getValue();
+            assertTrue(value.isShared());
+            assertSame(value, ((SyntaxTree.Print) blocks[1]).getMessage());
+            assertSame(value, ((SyntaxTree.Print) blocks[3]).getMessage());
+            // (a value used as a program is copied)
+            assertNotSame(value, blocks[2]);
+            assertFalse(blocks[2].isShared());
+            assertTrue(value.structurallyEquals((SyntaxTree.Value) blocks[2]));
+            assertFalse(value.structurallyEquals(((SyntaxTree.Print) blocks[7]).getMessage()));
+            SyntaxTree.Value x = ((SyntaxTree.Print) blocks[4]).getMessage();
+            assertFalse(x.isShared());
+            assertNotSame(x, ((SyntaxTree.Print) blocks[5]).getMessage());
+            SyntaxTree.Operator equals = (SyntaxTree.Operator) ((SyntaxTree.Print) blocks[6]).getMessage();
+            assertSame(equals.getValue1(), equals.getValue2());
+            assertArrayEquals(expected, (Object[]) new VMByteCodeGenerator().generate(program));
+        }
+    }
 }